@@ -0,0 +1,107 @@
+package org.springframework.samples.petclinic.migration;
+
+import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Runs the consistency checker on its own thread, every intervalMillis while DO_RUN_BACKGROUND_CONSISTENCY_CHECKER is on,
+or once on request. Each run is incremental: with the range summaries only the ranges written since the last run, or
+appended past a table's high-water mark, are read again. The result of the last run and the progress of the current one
+are kept for getStatus(), so nobody has to wait on a request thread for a check to finish.
+ */
+public class BackgroundConsistencyChecker implements AutoCloseable {
+
+    private final Driver driver;
+    private final RangeSummaries rangeSummaries;
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean queued = new AtomicBoolean();
+
+    private volatile boolean running = false;
+    private volatile long runs = 0;
+    private volatile long lastStarted = 0;
+    private volatile long lastFinished = 0;
+    private volatile int lastInconsistencies = 0;
+    private volatile String lastReport = null;
+    private volatile String lastError = null;
+
+    public BackgroundConsistencyChecker(Driver driver, RangeSummaries rangeSummaries, long intervalMillis) {
+        this.driver = driver;
+        this.rangeSummaries = rangeSummaries;
+        this.intervalMillis = intervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "background-consistency-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (intervalMillis > 0) {
+            this.scheduler.scheduleWithFixedDelay(this::scheduledRun, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void scheduledRun() {
+        if (FeatureToggleManager.DO_RUN_BACKGROUND_CONSISTENCY_CHECKER.isEnabled()) {
+            run();
+        }
+    }
+
+    /*
+    Queues a run right away, whatever the toggle says. Returns false when a run is already queued.
+     */
+    public boolean runNow() {
+        if (!queued.compareAndSet(false, true)) return false;
+        scheduler.execute(() -> {
+            queued.set(false);
+            run();
+        });
+        return true;
+    }
+
+    /*
+    Runs are serialized by the single scheduler thread; Driver also keeps them apart from checks started on /consistencyChecker.
+     */
+    private void run() {
+        running = true;
+        lastStarted = System.currentTimeMillis();
+        try {
+            lastReport = driver.consistencyChecker(false);
+            lastInconsistencies = driver.getInconsistency();
+            lastError = null;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            lastError = e.toString();
+        } finally {
+            lastFinished = System.currentTimeMillis();
+            runs++;
+            running = false;
+        }
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", FeatureToggleManager.DO_RUN_BACKGROUND_CONSISTENCY_CHECKER.isEnabled());
+        status.put("intervalMillis", intervalMillis);
+        status.put("running", running);
+        status.put("progress", driver.getCheckerProgress());
+        status.put("runs", runs);
+        status.put("lastStarted", lastStarted > 0 ? Instant.ofEpochMilli(lastStarted).toString() : null);
+        status.put("lastFinished", lastFinished > 0 ? Instant.ofEpochMilli(lastFinished).toString() : null);
+        status.put("lastInconsistencies", lastInconsistencies);
+        status.put("lastError", lastError);
+        status.put("lastReport", lastReport);
+        status.put("tables", rangeSummaries.getStatus());
+        return status;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
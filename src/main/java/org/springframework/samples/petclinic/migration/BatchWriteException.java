@@ -0,0 +1,16 @@
+package org.springframework.samples.petclinic.migration;
+
+import java.sql.SQLException;
+
+/*
+Thrown by TableDataGateway when a batch could not be written or committed. The transaction has been rolled back, so
+none of the rows (or checkpoints) queued since the last commit are in the database.
+ */
+public class BatchWriteException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BatchWriteException(SQLException cause) {
+        super("Batch rolled back: " + cause.getMessage(), cause);
+    }
+}
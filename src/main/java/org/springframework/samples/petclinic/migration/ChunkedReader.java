@@ -0,0 +1,100 @@
+package org.springframework.samples.petclinic.migration;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.samples.petclinic.model.BaseEntity;
+
+import javax.persistence.EntityManager;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/*
+Walks a table of the old datastore in id order, one keyset-paginated chunk at a time (WHERE id > lastId ORDER BY id).
+Only the current chunk is on the heap: the persistence context is cleared before the next chunk is fetched.
+ */
+public class ChunkedReader<T extends BaseEntity> implements Iterable<List<T>> {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    /*
+    A repository query returning the page of rows whose id is greater than lastId, ordered by id.
+     */
+    public interface ChunkQuery<T> {
+        List<T> findChunkAfter(Integer lastId, Pageable page);
+    }
+
+    private ChunkQuery<T> query;
+    private int chunkSize;
+    private EntityManager entityManager;
+    private int startAfterId;
+
+    public ChunkedReader(ChunkQuery<T> query, int chunkSize, EntityManager entityManager){
+        this(query, chunkSize, entityManager, 0);
+    }
+
+    public ChunkedReader(ChunkQuery<T> query, int chunkSize, EntityManager entityManager, int startAfterId){
+        this.query = query;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.entityManager = entityManager;
+        this.startAfterId = startAfterId;
+    }
+
+    /*
+    The rows of all chunks, one at a time.
+     */
+    public Iterator<T> rows() {
+        Iterator<List<T>> chunks = iterator();
+        return new Iterator<T>() {
+            private Iterator<T> chunk = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!chunk.hasNext() && chunks.hasNext()) {
+                    chunk = chunks.next().iterator();
+                }
+                return chunk.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return chunk.next();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<List<T>> iterator() {
+        return new Iterator<List<T>>() {
+            private int lastId = startAfterId;
+            private List<T> next;
+            private boolean exhausted = false;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !exhausted){
+                    if (entityManager != null) entityManager.clear(); // drop the previous chunk from the persistence context
+                    next = query.findChunkAfter(lastId, PageRequest.of(0, chunkSize));
+                    if (next.isEmpty()){
+                        next = null;
+                        exhausted = true;
+                    } else {
+                        lastId = next.get(next.size() - 1).getId();
+                        exhausted = next.size() < chunkSize;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public List<T> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                List<T> chunk = next;
+                next = null;
+                return chunk;
+            }
+        };
+    }
+}
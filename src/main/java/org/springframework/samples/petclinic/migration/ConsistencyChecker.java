@@ -2,9 +2,26 @@ package org.springframework.samples.petclinic.migration;
 
 
 import java.sql.ResultSet;
-import java.time.format.DateTimeFormatter;
-import java.util.Collection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import javax.persistence.EntityManager;
+
+import org.springframework.samples.petclinic.model.BaseEntity;
 import org.springframework.samples.petclinic.owner.Owner;
 import org.springframework.samples.petclinic.owner.OwnerRepository;
 import org.springframework.samples.petclinic.owner.Pet;
@@ -14,16 +31,42 @@ import org.springframework.samples.petclinic.vet.VetRepository;
 import org.springframework.samples.petclinic.visit.Visit;
 import org.springframework.samples.petclinic.visit.VisitRepository;
 
+/*
+Each checker streams a table from both datastores in id order and merges them (SortMergeChecker), so a full check is
+one sequential scan per side comparing one fingerprint per row. Differences are repaired in SQLite once the scan is
+done, in batched transactions: missing and changed rows are upserted and extra rows deleted.
+
+With RangeSummaries, owners, pets and visits are compared range by range instead: the hash trees of both datastores
+are brought up to date (a full scan the first time, the dirty ranges afterwards) and only the id ranges whose hashes
+differ are read and merged.
+
+With a ForkJoinPool, each table is split into id ranges that are read and compared on the pool, every worker with its
+own SQLite connection. The repairs are still written by the calling thread, so SQLite only ever sees one writer.
+ */
 public class ConsistencyChecker {
 
+    private static final String SELECT_VETS = "SELECT id, first_name, last_name FROM vets";
+    private static final String SELECT_VISITS = "SELECT id, pet_id, visit_date, description FROM visits";
+    private static final String SELECT_OWNERS = "SELECT id, first_name, last_name, address, city, telephone FROM owners";
+    private static final String SELECT_PETS = "SELECT id, name, birth_date, type_id, owner_id FROM pets";
+    private static final String ALL_ROWS = " ORDER BY id";
+    private static final String ROW_RANGE = " WHERE id BETWEEN %d AND %d ORDER BY id";
+    private static final int RANGES_PER_THREAD = 4; // so a slow range does not leave the other threads idle
+
     private SqlDB db;
     private TableDataGateway tdg;
-    
+
     private VetRepository vets;
     private OwnerRepository owners;
     private PetRepository pets;
     private VisitRepository visits;
-    private int inconsistency;
+    private final AtomicInteger inconsistency = new AtomicInteger();
+    private EntityManager entityManager;
+    private int chunkSize = ChunkedReader.DEFAULT_CHUNK_SIZE;
+    private int commitInterval = TableDataGateway.DEFAULT_COMMIT_INTERVAL;
+    private RangeSummaries rangeSummaries;
+    private ForkJoinPool pool;
+    private Supplier<SqlDB> openReader;
 
     private String consistency = "";
 
@@ -36,198 +79,477 @@ public class ConsistencyChecker {
      * @return the inconsistency
      */
     public int getInconsistency() {
-        return inconsistency;
+        return inconsistency.get();
     }
 
     /**
      * @param inconsistency the inconsistency to set
      */
     public void setInconsistency(int inconsistency) {
-        this.inconsistency = inconsistency;
+        this.inconsistency.set(inconsistency);
     }
-    
+
     public void connectRepos(VetRepository vets, OwnerRepository owners, PetRepository pets, VisitRepository visits) {
         this.vets = vets;
         this.owners = owners;
         this.pets = pets;
-        this.visits = visits; 
+        this.visits = visits;
+    }
+
+    /*
+    Number of rows read from the old datastore at a time. The entity manager's persistence context is cleared between chunks.
+     */
+    public void setStreaming(EntityManager entityManager, int chunkSize) {
+        this.entityManager = entityManager;
+        this.chunkSize = chunkSize;
+    }
+
+    /*
+    Number of repairs written per transaction; a vet counts as one repair with its specialties.
+     */
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    /*
+    Hash trees to narrow the owners, pets and visits checks down to the ranges that differ. Without them every row is compared.
+     */
+    public void setRangeSummaries(RangeSummaries rangeSummaries) {
+        this.rangeSummaries = rangeSummaries;
+    }
+
+    /*
+    Reads and compares the id ranges of a table on the pool. Each worker opens its own reader connection with openReader.
+     */
+    public void setParallelism(ForkJoinPool pool, Supplier<SqlDB> openReader) {
+        this.pool = pool;
+        this.openReader = openReader;
     }
 
     public String vetsChecker(){
-        Collection<Vet> vetCollectionOld = vets.findAll(); // old data store
-          // first retrive the same id;
-            // if it exists then check theyre equal
-            // else create it in new data store
-        int countInsert = 0;
-        int countUpdate = 0;
-        for (Vet vet : vetCollectionOld){
-            
-            int id = vet.getId();
-            ResultSet resultSet = this.tdg.getById(id, "vets");
-            boolean isSame;
-            String firstName;
-            String lastName;           
-            try{
-                firstName = resultSet.getString("first_name");
-                lastName = resultSet.getString("last_name");
-                isSame = vet.getFirstName().equals(firstName);
-                isSame = isSame && vet.getLastName().equals(lastName);
-
-                if (!isSame){
-                    this.tdg.deleteById(resultSet.getInt("id"), "vets");
-                    this.tdg.insertVet(vet);
-                    countUpdate ++; 
+        List<Vet> vetsOld = new ArrayList<>(vets.findAll()); // cached, and small enough to sort in memory
+        vetsOld.sort(Comparator.comparing(Vet::getId));
+
+        SortMergeChecker<Vet> check = new SortMergeChecker<Vet>().merge(vetsOld.iterator(), RowFingerprint::of,
+            db.select(SELECT_VETS + ALL_ROWS), RowFingerprint::vet);
+
+        return repair(check, "vets", vet -> {
+            tdg.batchDeleteVetSpecialties(vet.getId());
+            tdg.batchInsertVet(vet);
+        }).toString();
+    }
+
+    public String visitsChecker(){
+        return check(visitsTable(), tdg::batchInsertVisit);
+    }
+
+    public String ownersChecker(){
+        return check(ownersTable(), tdg::batchInsertOwner) + "\n" + petsChecker();
+    }
+
+    public String petsChecker(){
+        return check(petsTable(), tdg::batchInsertPet);
+    }
+
+    private Table<Owner> ownersTable() {
+        return new Table<>("owners", owners::findChunkAfter, owners::findMaxId, SELECT_OWNERS, RowFingerprint::owner);
+    }
+
+    private Table<Pet> petsTable() {
+        return new Table<>("pets", pets::findChunkAfter, pets::findMaxId, SELECT_PETS, RowFingerprint::pet);
+    }
+
+    private Table<Visit> visitsTable() {
+        return new Table<>("visits", visits::findChunkAfter, visits::findMaxId, SELECT_VISITS, RowFingerprint::visit);
+    }
+
+    /*
+    How to read an id range of a migrated table from both datastores.
+     */
+    private static class Table<T extends BaseEntity> {
+        final String name;
+        final ChunkedReader.ChunkQuery<T> query;
+        final Supplier<Integer> maxId;
+        final String select;
+        final SortMergeChecker.RowFingerprinter rowFingerprint;
+
+        Table(String name, ChunkedReader.ChunkQuery<T> query, Supplier<Integer> maxId, String select,
+              SortMergeChecker.RowFingerprinter rowFingerprint) {
+            this.name = name;
+            this.query = query;
+            this.maxId = maxId;
+            this.select = select;
+            this.rowFingerprint = rowFingerprint;
+        }
+    }
+
+    /*
+    Reads one id range [first, last] using the given SQLite connection.
+     */
+    private interface RangeRead<R> {
+        R read(SqlDB reader, int first, int last);
+    }
+
+    private <T extends BaseEntity> String check(Table<T> table, Consumer<T> insert) {
+        if (rangeSummaries == null) {
+            List<SortMergeChecker<T>> checks = readRanges(partition(lastId(table) + 1, 1),
+                (reader, first, last) -> merge(table, reader, first, last));
+            return repair(combine(checks), table.name, insert).toString();
+        }
+
+        RangeSummaries.Summary summary = rangeSummaries.of(table.name);
+        synchronized (summary) {
+            RangeTree tree = summary.legacy;
+            List<Integer> dirtyLeaves = summary.drainDirtyLeaves();
+            boolean rebuilt = !summary.built;
+            int lastId = lastId(table);
+            List<int[]> rehashed;
+            if (rebuilt) {
+                summary.legacy.clear();
+                summary.migrated.clear();
+                rehashed = partition((tree.leafOf(lastId) + 1) * tree.getLeafWidth(), tree.getLeafWidth());
+            } else {
+                // rows appended past the high-water mark are rehashed even if nothing marked them dirty
+                Set<Integer> leaves = new TreeSet<>(dirtyLeaves);
+                for (int leaf = tree.leafOf(summary.highWaterMark); lastId > summary.highWaterMark && leaf <= tree.leafOf(lastId); leaf++) {
+                    leaves.add(leaf);
                 }
-            } catch (Exception e){
-                e.printStackTrace();
-                this.tdg.insertVet(vet);
-                countInsert++;
+                rehashed = leafRanges(tree, new ArrayList<>(leaves));
+            }
+            for (LeafSums sums : readRanges(rehashed, (reader, first, last) -> sumLeaves(table, tree, reader, first, last, true))) {
+                sums.applyTo(summary);
             }
+            summary.built = true;
+            summary.highWaterMark = lastId;
+
+            List<int[]> differing = leafRanges(tree, RangeTree.diff(summary.legacy, summary.migrated));
+            List<SortMergeChecker<T>> checks = readRanges(differing, (reader, first, last) -> merge(table, reader, first, last));
+            Repairs repairs = repair(combine(checks), table.name, insert);
+            if (repairs.failed()) {
+                // the sums of these ranges still differ; rehash them next time instead of trusting a partial repair
+                for (int[] range : differing) {
+                    summary.dirtyLeaves.add(tree.leafOf(range[0]));
+                }
+            } else {
+                for (LeafSums sums : readRanges(differing, (reader, first, last) -> sumLeaves(table, tree, reader, first, last, false))) {
+                    sums.applyTo(summary);
+                }
+            }
+            summary.lastChecked = System.currentTimeMillis();
+            return "Differing " + table.name + " ranges: " + differing.size()
+                + (rebuilt ? " (hash trees rebuilt)" : " (" + rehashed.size() + " ranges rehashed)") + "\n" + repairs;
         }
-        this.inconsistency += countInsert + countUpdate;
-        return "Number of created vets : " + String.valueOf(countInsert) + "\n" + "Number of updated vets: " + String.valueOf(countUpdate);
     }
 
-    public String visitsChecker(){
-        Collection<Visit> visitCollectionOld = visits.findAll(); // old data store
-        // first retrive the same id;
-        // if it exists then check theyre equal
-        // else create it in new data store
-        int countInsert = 0;
-        int countUpdate = 0;
-        for (Visit visit : visitCollectionOld) {
-
-            int id = visit.getId();
-            ResultSet resultSet = this.tdg.getById(id, "visits");
-            boolean isSame;
-            int petID;
-            String date;          
-            String description;
-            
+    /*
+    Estimates the inconsistency rate of owners, pets and visits without repairing anything. The ids of each table are
+    split into strata of equal width and the same number of random ids is drawn from each, so every part of the id
+    space is represented. Ids that exist in neither datastore are not counted; since every stratum is as wide and
+    sampled as often as the others, the pooled rate is also the stratified estimate.
+     */
+    public List<InconsistencyEstimate> sampledChecker(int sampleSize, int strata, double confidence) {
+        List<InconsistencyEstimate> estimates = new ArrayList<>();
+        for (String tableName : new String[]{"owners", "pets", "visits"}) {
+            estimates.add(sample(tableName, sampleSize, strata, confidence));
+        }
+        return estimates;
+    }
+
+    InconsistencyEstimate sample(String tableName, int sampleSize, int strata, double confidence) {
+        switch (tableName) {
+            case "owners": return sample(ownersTable(), sampleSize, strata, confidence);
+            case "pets": return sample(petsTable(), sampleSize, strata, confidence);
+            case "visits": return sample(visitsTable(), sampleSize, strata, confidence);
+            default: throw new IllegalArgumentException("No sampled check for table " + tableName);
+        }
+    }
+
+    private <T extends BaseEntity> InconsistencyEstimate sample(Table<T> table, int sampleSize, int strata, double confidence) {
+        int ids = lastId(table) + 1;
+        int parts = Math.max(1, Math.min(strata, ids));
+        int perStratum = Math.max(1, sampleSize / parts);
+        int rows = 0;
+        int inconsistent = 0;
+        for (int[] counts : readRanges(split(ids, 1, parts), (reader, first, last) -> sampleStratum(table, reader, first, last, perStratum))) {
+            rows += counts[0];
+            inconsistent += counts[1];
+        }
+        return new InconsistencyEstimate(table.name, rows, inconsistent, confidence);
+    }
+
+    /*
+    Compares count random ids of [first, last] (all of them if the stratum is smaller). Returns the number of ids
+    found in either datastore and how many of those were inconsistent.
+     */
+    private <T extends BaseEntity> int[] sampleStratum(Table<T> table, SqlDB reader, int first, int last, int count) {
+        Set<Integer> ids = new TreeSet<>();
+        if (last - first + 1 <= count) {
+            for (int id = first; id <= last; id++) ids.add(id);
+        } else {
+            while (ids.size() < count) ids.add(ThreadLocalRandom.current().nextInt(first, last + 1));
+        }
+        int[] counts = new int[2];
+        for (int id : ids) {
+            if (id <= 0) continue;
+            Iterator<T> legacy = legacyRange(table.query, id, id);
+            T entity = legacy.hasNext() ? legacy.next() : null;
+            ResultSet row = reader.select(table.select + String.format(ROW_RANGE, id, id));
             try {
-                petID = resultSet.getInt("pet_id");
-                date = resultSet.getString("visit_date");
-                description = resultSet.getString("description");
-                
-                isSame = visit.getPetId().equals(petID) && visit.getDate().toString().equals(date) 
-                                && visit.getDescription().equals(description);
-                
-
-                if (!isSame) {
-                    this.tdg.deleteById(resultSet.getInt("id"), "visits");
-                    this.tdg.insertVisit(visit);
-                    countUpdate++;
-                 }
-            } catch (Exception e) {
+                boolean hasRow = row != null && row.next();
+                if (entity == null && !hasRow) continue;
+                counts[0]++;
+                if (entity == null || !hasRow || RowFingerprint.of(entity) != table.rowFingerprint.fingerprint(row)) counts[1]++;
+            } catch (SQLException e) {
                 e.printStackTrace();
-                this.tdg.insertVisit(visit);
-                countInsert++;
             }
         }
-    
-        this.inconsistency += countInsert + countUpdate;
-        return "Number of created visits: " + String.valueOf(countInsert) + "\n" +"Number of updated visits: " + String.valueOf(countUpdate);
+        return counts;
     }
-    
-    public String ownersChecker(){
-        Collection<Owner> ownersCollectionOld = owners.findAll();
-        // first retrive the same id;
-        // if it exists then check theyre equal
-        // else create it in new data store
-        int countInsert = 0;
-        int countUpdate = 0;
-        int countInsertPet = 0;
-        int countUpdatePet = 0;
-                
-        for (Owner owner : ownersCollectionOld) {
-            Collection<Pet> pets = owner.getPets();
-            String petName;
-            String birthDate;
-            String type;
-            int ownerId;
-            Boolean samePet;
-            for(Pet pet : pets){// name, birth_date, type_id, owner_id 
-                int id = pet.getId();
-                ResultSet newPet = this.tdg.getById(id, "pets");
-
-                try{
-                    petName = newPet.getString("name");
-                    birthDate = newPet.getString("birth_date");
-                    type = tdg.getPetType(newPet.getInt("type_id"));
-                    ownerId = newPet.getInt("owner_id");
-
-                    samePet=        pet.getName().equals(petName) 
-                                && pet.getBirthDate().toString().equals(birthDate) 
-                                && pet.getType().toString().equals(type)
-                                && pet.getOwner().getId().equals(ownerId);
-                    
-
-
-
-                    if(!samePet){
-                         this.tdg.deleteById(newPet.getInt("id"), "pets");
-                         this.tdg.insertPet(pet);
-                        countUpdatePet++;
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    this.tdg.insertPet(pet);
-                    countInsertPet++;
+
+    private <T extends BaseEntity> SortMergeChecker<T> merge(Table<T> table, SqlDB reader, int first, int last) {
+        return new SortMergeChecker<T>().merge(legacyRange(table.query, first, last), RowFingerprint::of,
+            reader.select(table.select + String.format(ROW_RANGE, first, last)), table.rowFingerprint);
+    }
+
+    private static <T extends BaseEntity> SortMergeChecker<T> combine(List<SortMergeChecker<T>> checks) {
+        SortMergeChecker<T> combined = new SortMergeChecker<>();
+        for (SortMergeChecker<T> check : checks) {
+            combined.addAll(check);
+        }
+        return combined;
+    }
+
+    /*
+    The highest id of the table in either datastore.
+     */
+    private int lastId(Table<?> table) {
+        Integer legacyMaxId = table.maxId.get();
+        int lastId = legacyMaxId != null ? legacyMaxId : 0;
+        ResultSet rows = db.select("SELECT MAX(id) FROM " + table.name);
+        try {
+            if (rows != null && rows.next()) lastId = Math.max(lastId, rows.getInt(1));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return lastId;
+    }
+
+    /*
+    Splits the ids [0, ids) into a few ranges per thread, each a multiple of align ids long.
+     */
+    private List<int[]> partition(int ids, int align) {
+        return split(ids, align, pool == null ? 1 : pool.getParallelism() * RANGES_PER_THREAD);
+    }
+
+    private static List<int[]> split(int ids, int align, int parts) {
+        int size = (ids + parts - 1) / parts;
+        size = Math.max(align, (size + align - 1) / align * align);
+        List<int[]> ranges = new ArrayList<>();
+        for (int first = 0; first < ids; first += size) {
+            ranges.add(new int[]{first, Math.min(ids, first + size) - 1});
+        }
+        return ranges;
+    }
+
+    private static List<int[]> leafRanges(RangeTree tree, List<Integer> leaves) {
+        List<int[]> ranges = new ArrayList<>();
+        for (int leaf : leaves) {
+            ranges.add(new int[]{tree.firstId(leaf), tree.lastId(leaf)});
+        }
+        return ranges;
+    }
+
+    /*
+    Runs read over every range and returns the results in range order. On the pool, each worker opens one reader
+    connection for the whole call; without a pool the ranges are read one after another on this checker's connection.
+     */
+    private <R> List<R> readRanges(List<int[]> ranges, RangeRead<R> read) {
+        List<R> results = new ArrayList<>();
+        if (pool == null) {
+            for (int[] range : ranges) {
+                results.add(read.read(db, range[0], range[1]));
+            }
+            return results;
+        }
+
+        Map<Thread, SqlDB> readers = new ConcurrentHashMap<>();
+        RuntimeException failure = null;
+        try {
+            List<ForkJoinTask<R>> tasks = new ArrayList<>();
+            for (int[] range : ranges) {
+                tasks.add(pool.submit(() -> read.read(readers.computeIfAbsent(Thread.currentThread(), thread -> openReader.get()), range[0], range[1])));
+            }
+            for (ForkJoinTask<R> task : tasks) {
+                try {
+                    results.add(task.join());
+                } catch (RuntimeException e) {
+                    if (failure == null) failure = e;
                 }
             }
-            
-            int id = owner.getId();
-            ResultSet resultSet = this.tdg.getById(id, "owners");
-            boolean isSame;
-            String firstName;
-            String lastName;
-            String address;
-            String city;
-            String telephone; 
+        } finally {
+            readers.values().forEach(SqlDB::close);
+        }
+        if (failure != null) throw failure;
+        return results;
+    }
 
-            try {
-                firstName = resultSet.getString("first_name");
-               // System.out.println("the first name is" + firstName);
-                //System.out.println(owner.getFirstName());
-                lastName = resultSet.getString("last_name");
-            //    System.out.println("the last name is" +lastName);
-            //    System.out.println(owner.getLastName());
-                address = resultSet.getString("address");
-            //    System.out.println(address);
-            //    System.out.println(owner.getAddress());
-                city = resultSet.getString("city");
-            //    System.out.println(city);
-            //    System.out.println(owner.getCity());
-                telephone = resultSet.getString("telephone"); 
-            //    System.out.println(telephone);
-            //   System.out.println(owner.getTelephone());
-
-                isSame = owner.getFirstName().equals(firstName) && owner.getLastName().equals(lastName)
-                            && owner.getAddress().equals(address) 
-                            && owner.getCity().equals(city)
-                            && owner.getTelephone().equals(telephone);
-                
-                if (!isSame) {
-                    this.tdg.deleteById(resultSet.getInt("id"), "visits");
-                    this.tdg.insertOwner(owner);
-                    countUpdate++;
+    /*
+    The legacy rows with ids in [first, last], read in chunks of at most the range size. On a pool worker no
+    persistence context is bound to the thread, so there is nothing to clear between chunks.
+     */
+    private <T extends BaseEntity> Iterator<T> legacyRange(ChunkedReader.ChunkQuery<T> query, int first, int last) {
+        EntityManager context = pool == null ? entityManager : null;
+        Iterator<T> rows = new ChunkedReader<>(query, Math.min(chunkSize, last - first + 1), context, first - 1).rows();
+        return new Iterator<T>() {
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && rows.hasNext()) {
+                    T row = rows.next();
+                    if (row.getId() <= last) next = row;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                this.tdg.insertOwner(owner);
-                countInsert++;
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                T row = next;
+                next = null;
+                return row;
+            }
+        };
+    }
+
+    /*
+    The fingerprint sums of the leaves in [first, last], for SQLite and optionally for the old datastore.
+     */
+    private <T extends BaseEntity> LeafSums sumLeaves(Table<T> table, RangeTree tree, SqlDB reader, int first, int last, boolean legacyToo) {
+        LeafSums sums = new LeafSums(tree.leafOf(first), tree.leafOf(last), legacyToo);
+        if (legacyToo) {
+            Iterator<T> rows = legacyRange(table.query, first, last);
+            while (rows.hasNext()) {
+                T row = rows.next();
+                sums.legacy[tree.leafOf(row.getId()) - sums.firstLeaf] += RowFingerprint.of(row);
+            }
+        }
+        ResultSet rows = reader.select(table.select + String.format(ROW_RANGE, first, last));
+        try {
+            while (rows != null && rows.next()) {
+                sums.migrated[tree.leafOf(rows.getInt("id")) - sums.firstLeaf] += table.rowFingerprint.fingerprint(rows);
             }
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
+        return sums;
+    }
 
-        this.inconsistency += countInsert + countUpdate + countInsertPet + countUpdatePet;
-        return "Number of created owners: " + String.valueOf(countInsertPet) + "\n" +"Number of updated owners: " + String.valueOf(countUpdatePet) + "\n" +
-               "Number of created pets: " + String.valueOf(countInsert) + "\n" +"Number of updated pets: " + String.valueOf(countUpdate);
+    /*
+    Leaf sums computed on a worker; the trees themselves are only written by the checking thread.
+     */
+    private static class LeafSums {
+        final int firstLeaf;
+        final long[] legacy;
+        final long[] migrated;
 
+        LeafSums(int firstLeaf, int lastLeaf, boolean legacyToo) {
+            this.firstLeaf = firstLeaf;
+            this.legacy = legacyToo ? new long[lastLeaf - firstLeaf + 1] : null;
+            this.migrated = new long[lastLeaf - firstLeaf + 1];
+        }
 
+        void applyTo(RangeSummaries.Summary summary) {
+            for (int i = 0; i < migrated.length; i++) {
+                if (legacy != null) summary.legacy.setLeaf(firstLeaf + i, legacy[i]);
+                summary.migrated.setLeaf(firstLeaf + i, migrated[i]);
+            }
+        }
+    }
 
-        
+    /*
+    Writes the repairs in transactions of commitInterval repairs: extra rows are deleted, and missing and changed rows
+    are both written with an UPSERT, so a changed row costs one statement instead of a delete and an insert. Only
+    committed repairs are reported; once a transaction fails the remaining rows are left for the next check.
+     */
+    private <T extends BaseEntity> Repairs repair(SortMergeChecker<T> check, String tableName, Consumer<T> upsert) {
+        this.inconsistency.addAndGet(check.getInconsistencies());
+        Repairs repairs = new Repairs(tableName, check.getInconsistencies());
+        if (check.getInconsistencies() == 0) return repairs;
+        tdg.beginBatch(Integer.MAX_VALUE); // committed by repairs.add, which knows what each transaction holds
+        tdg.setUpsert(true);
+        try {
+            for (Integer id : check.getExtra()) {
+                tdg.batchDeleteById(id, tableName);
+                repairs.add(Repairs.DELETED);
+            }
+            for (T entity : check.getMissing()) {
+                upsert.accept(entity);
+                repairs.add(Repairs.CREATED);
+            }
+            for (T entity : check.getChanged()) {
+                upsert.accept(entity);
+                repairs.add(Repairs.UPDATED);
+            }
+            repairs.commit();
+        } catch (BatchWriteException e) {
+            e.printStackTrace();
+            repairs.failure = e;
+        } finally {
+            tdg.setUpsert(false);
+            tdg.endBatch(); // nothing left to write, a failed batch was rolled back
+        }
+        return repairs;
     }
 
-}
-    
+    /*
+    The repairs of a table: counted as pending while they are added to the batch, and as committed once their
+    transaction is.
+     */
+    private class Repairs {
+        static final int CREATED = 0;
+        static final int UPDATED = 1;
+        static final int DELETED = 2;
+
+        final String tableName;
+        final int found;
+        final int[] pending = new int[3];
+        final int[] committed = new int[3];
+        BatchWriteException failure;
+
+        Repairs(String tableName, int found) {
+            this.tableName = tableName;
+            this.found = found;
+        }
+
+        void add(int kind) {
+            pending[kind]++;
+            if (pending[CREATED] + pending[UPDATED] + pending[DELETED] >= commitInterval) commit();
+        }
+
+        void commit() {
+            tdg.flushBatch();
+            for (int kind = 0; kind < pending.length; kind++) {
+                committed[kind] += pending[kind];
+                pending[kind] = 0;
+            }
+        }
+
+        boolean failed() {
+            return failure != null;
+        }
+
+        @Override
+        public String toString() {
+            String report = "Number of created " + tableName + ": " + committed[CREATED] + "\n"
+                + "Number of updated " + tableName + ": " + committed[UPDATED] + "\n"
+                + "Number of deleted " + tableName + ": " + committed[DELETED];
+            if (failed()) {
+                int left = found - committed[CREATED] - committed[UPDATED] - committed[DELETED];
+                report += "\nRepair of " + tableName + " failed, " + left + " rows left for the next check: " + failure.getMessage();
+            }
+            return report;
+        }
+    }
 
+}
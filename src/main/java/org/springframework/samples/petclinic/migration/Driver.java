@@ -2,10 +2,15 @@ package org.springframework.samples.petclinic.migration;
 
 import org.springframework.samples.petclinic.owner.OwnerRepository;
 import org.springframework.samples.petclinic.owner.PetRepository;
+import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
 import org.springframework.samples.petclinic.vet.VetRepository;
 import org.springframework.samples.petclinic.visit.VisitRepository;
 
+import javax.persistence.EntityManager;
 import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Driver {
 
@@ -14,15 +19,102 @@ public class Driver {
     private PetRepository pets;
     private VisitRepository visits;
     private int inconsistency;
+    private EntityManager entityManager;
+    private int commitInterval = TableDataGateway.DEFAULT_COMMIT_INTERVAL;
+    private int chunkSize = ChunkedReader.DEFAULT_CHUNK_SIZE;
+    private int readerThreads = 4;
+    private SqlDBPool shadowDb;
+    private RangeSummaries rangeSummaries;
+    private int checkerParallelism = Runtime.getRuntime().availableProcessors();
+    private volatile String checkerProgress = "idle";
+    private int sampleSize = 400;
+    private int sampleStrata = 20;
+    private double sampleConfidence = 0.95;
+    private double escalationThreshold = 0.01;
+    private final SQLitePragmaProfile forkliftProfile;
+    private final SQLitePragmaProfile shadowProfile;
 
     /*
     Gives us access to the old database, pass these along to your objects/methods to use them.
      */
     public Driver(VetRepository vets, OwnerRepository owners, PetRepository pets, VisitRepository visits){
+        this(vets, owners, pets, visits, SQLitePragmaProfile.BULK_LOAD, SQLitePragmaProfile.ONLINE);
+    }
+
+    /*
+    The forklift opens its connection with forkliftProfile; the connections opened outside the pool, such as the
+    ones of the consistency checker's workers, use shadowProfile.
+     */
+    public Driver(VetRepository vets, OwnerRepository owners, PetRepository pets, VisitRepository visits,
+                  SQLitePragmaProfile forkliftProfile, SQLitePragmaProfile shadowProfile){
         this.vets = vets;
         this.owners = owners;
         this.pets = pets;
         this.visits = visits;
+        this.forkliftProfile = forkliftProfile;
+        this.shadowProfile = shadowProfile;
+    }
+
+    /*
+    Number of rows the forklift writes per transaction.
+     */
+    public void setCommitInterval(int commitInterval){
+        this.commitInterval = commitInterval;
+    }
+
+    /*
+    Number of rows the streaming forklift reads at a time. The entity manager's persistence context is cleared between chunks.
+     */
+    public void setStreaming(EntityManager entityManager, int chunkSize){
+        this.entityManager = entityManager;
+        this.chunkSize = chunkSize;
+    }
+
+    /*
+    Number of threads reading the old datastore when DO_PARALLEL_FORKLIFT is on.
+     */
+    public void setReaderThreads(int readerThreads){
+        this.readerThreads = readerThreads;
+    }
+
+    /*
+    Pool the dashboard and the consistency checker borrow their connections from, instead of opening their own.
+     */
+    public void setShadowDb(SqlDBPool shadowDb){
+        this.shadowDb = shadowDb;
+    }
+
+    /*
+    Hash trees the consistency checker keeps between runs, so it only reads the id ranges that differ.
+     */
+    public void setRangeSummaries(RangeSummaries rangeSummaries){
+        this.rangeSummaries = rangeSummaries;
+    }
+
+    /*
+    Number of threads the consistency checker compares id ranges on; 0 or less means one per core, 1 checks on the calling thread.
+     */
+    public void setCheckerParallelism(int checkerParallelism){
+        this.checkerParallelism = checkerParallelism > 0 ? checkerParallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /*
+    Rows sampled per table by the sampled consistency check, in how many strata, the confidence of the reported
+    interval, and the estimated inconsistency rate above which it escalates to a full check.
+     */
+    public void setSampling(int sampleSize, int sampleStrata, double sampleConfidence, double escalationThreshold){
+        this.sampleSize = sampleSize;
+        this.sampleStrata = sampleStrata;
+        this.sampleConfidence = sampleConfidence;
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    private SqlDB openShadowDb(){
+        return shadowDb != null ? shadowDb.borrow() : openShadowConnection();
+    }
+
+    private SqlDB openShadowConnection(){
+        return new SQLiteDB(SQLiteDB.MIGRATION_DB, shadowProfile);
     }
 
     /*
@@ -36,7 +128,7 @@ public class Driver {
     Lists out the content of the table sqlite_seq, queries the db and returns are a formatted json string.
      */
     public String listDB(){
-        SqlDB db = new SQLiteDB();
+        SqlDB db = openShadowDb();
         ResultSet resultSet = db.select("SELECT * FROM sqlite_sequence");
         System.out.println(resultSet);
         String response = "";
@@ -61,26 +153,60 @@ public class Driver {
     This method invokes the forklift methods, copying all the contents of the old db to the new at a specific moment in time.
      */
     public String forklift(){
+        return forklift(false);
+    }
+
+    /*
+    With resume, the tables of a previous (interrupted) forklift are kept and each table continues after the last id
+    recorded in forklift_progress. Resuming always streams, since only the streaming readers can start mid-table.
+     */
+    public String forklift(boolean resume){
+        if (rangeSummaries != null) rangeSummaries.invalidate();
         String now = java.time.LocalTime.now().toString();
 
-        SqlDB db = new SQLiteDB();
+        SqlDB db = new SQLiteDB(SQLiteDB.MIGRATION_DB, forkliftProfile);
         Forklift forklift = new Forklift(db);
-        forklift.initSchema();
-        forklift.liftPetTypes(pets);
-        forklift.liftVets(vets);
-        forklift.liftOwnersAndPets(owners);
-        forklift.liftVisits(visits);
-        forklift.liftSpecialties();
-        db.close();
-        return "Forklift executed at: " + now;
+        forklift.setCommitInterval(commitInterval);
+        forklift.setChunkSize(chunkSize);
+        forklift.timed("schema", () -> forklift.initSchema(resume));
+        String report = resume ? "Resumed from checkpoints: " + forklift.getCheckpoints() + "\n" : "";
+        try {
+            if (FeatureToggleManager.DO_PARALLEL_FORKLIFT.isEnabled()) {
+                String[] pipelineReport = new String[1];
+                forklift.timed("pipeline", () -> pipelineReport[0] = forklift.liftInParallel(pets, vets, owners, visits, readerThreads));
+                report += pipelineReport[0];
+            } else {
+                forklift.timed("types", () -> forklift.liftPetTypes(pets));
+                forklift.timed("vets", () -> forklift.liftVets(vets));
+                if (FeatureToggleManager.DO_STREAM_FORKLIFT.isEnabled() || resume) {
+                    forklift.timed("owners and pets", () -> forklift.streamOwnersAndPets(owners, entityManager));
+                    forklift.timed("visits", () -> forklift.streamVisits(visits, entityManager));
+                } else {
+                    forklift.timed("owners and pets", () -> forklift.liftOwnersAndPets(owners));
+                    forklift.timed("visits", () -> forklift.liftVisits(visits));
+                }
+                forklift.timed("specialties", forklift::liftSpecialties);
+            }
+            if (FeatureToggleManager.DO_DEFER_INDEX_BUILD_ON_FORKLIFT.isEnabled()) {
+                forklift.timed("indexes", forklift::buildIndexes);
+                forklift.timed("analyze", forklift::analyze);
+            }
+        } catch (BatchWriteException e) {
+            e.printStackTrace();
+            report += "Forklift stopped: " + e.getMessage() + "\n/forklift?resume=true continues after the last checkpoint.\n";
+        } finally {
+            db.close();
+        }
+        return "Forklift executed at: " + now + "\n" + report + forklift.getPhaseReport();
     }
 
     public String emptyDB(){
         String now = java.time.LocalTime.now().toString();
-        SqlDB db = new SQLiteDB();
+        SqlDB db = openShadowDb();
         Forklift forklift = new Forklift(db);
         forklift.dropClinicTables();
         db.close();
+        if (rangeSummaries != null) rangeSummaries.invalidate();
         return "Dropped tables at: " + now;
     }
 
@@ -90,20 +216,91 @@ public class Driver {
     }
 
 	public String consistencyChecker() {
+        return consistencyChecker(false);
+    }
+
+    /*
+    A full check rebuilds the range hash trees from both datastores, which also finds changes made outside the application.
+    Checks never overlap: one started while another runs (e.g. in the background) waits for it.
+     */
+    public synchronized String consistencyChecker(boolean full) {
         String now = java.time.LocalTime.now().toString();
-        SqlDB db = new SQLiteDB();
+        SqlDB db = openShadowDb();
         ConsistencyChecker checker = new ConsistencyChecker(db);
         checker.connectRepos(vets, owners, pets, visits);
-        
+        checker.setStreaming(entityManager, chunkSize);
+        checker.setCommitInterval(commitInterval);
+        if (rangeSummaries != null) {
+            if (full) rangeSummaries.invalidate();
+            checker.setRangeSummaries(rangeSummaries);
+        }
+        // the workers open their own connections rather than drain the pool the controllers borrow from
+        ForkJoinPool pool = checkerParallelism > 1 ? new ForkJoinPool(checkerParallelism) : null;
+        if (pool != null) checker.setParallelism(pool, this::openShadowConnection);
+
         checker.setInconsistency(0);
 
-        String result = now + "\n" + checker.vetsChecker() + "\n" + checker.visitsChecker() + "\n" + checker.ownersChecker();
-        
-        this.inconsistency = checker.getInconsistency();
+        try {
+            checkerProgress = "checking vets";
+            String result = now + "\n" + checker.vetsChecker();
+            checkerProgress = "checking visits";
+            result += "\n" + checker.visitsChecker();
+            checkerProgress = "checking owners and pets";
+            result += "\n" + checker.ownersChecker();
 
-        result+= "\n" + "Total inconsistencies: "+this.inconsistency;
-        db.close();
-        return result;
+            this.inconsistency = checker.getInconsistency();
+
+            result+= "\n" + "Total inconsistencies: "+this.inconsistency;
+            return result;
+        } finally {
+            checkerProgress = "idle";
+            db.close();
+            if (pool != null) pool.shutdown();
+        }
+    }
+
+    /*
+    Estimates the inconsistency rate of each table from a sample instead of comparing every row, and only runs a full
+    check (which also repairs) when an estimate is above the escalation threshold.
+     */
+    public String sampledConsistencyChecker() {
+        String now = java.time.LocalTime.now().toString();
+        List<InconsistencyEstimate> estimates;
+        synchronized (this) {
+            SqlDB db = openShadowDb();
+            ConsistencyChecker checker = new ConsistencyChecker(db);
+            checker.connectRepos(vets, owners, pets, visits);
+            checker.setStreaming(entityManager, chunkSize);
+            ForkJoinPool pool = checkerParallelism > 1 ? new ForkJoinPool(checkerParallelism) : null;
+            if (pool != null) checker.setParallelism(pool, this::openShadowConnection);
+            try {
+                checkerProgress = "sampling";
+                estimates = checker.sampledChecker(sampleSize, sampleStrata, sampleConfidence);
+            } finally {
+                checkerProgress = "idle";
+                db.close();
+                if (pool != null) pool.shutdown();
+            }
+        }
+
+        String result = now;
+        List<String> escalating = new ArrayList<>();
+        for (InconsistencyEstimate estimate : estimates) {
+            result += "\n" + estimate;
+            if (estimate.getRate() > escalationThreshold) escalating.add(estimate.getTableName());
+        }
+        if (escalating.isEmpty()) {
+            return result + "\nNo estimate above " + 100 * escalationThreshold + "%, no full check needed.";
+        }
+        return result + "\nEstimated rate of " + String.join(", ", escalating) + " above " + 100 * escalationThreshold
+            + "%, escalating to a full check:\n" + consistencyChecker(true);
+    }
+
+    /*
+    The table the running consistency check is on, or idle.
+     */
+    public String getCheckerProgress(){
+        return checkerProgress;
     }
 
 
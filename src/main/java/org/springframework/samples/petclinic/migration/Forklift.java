@@ -1,18 +1,27 @@
 package org.springframework.samples.petclinic.migration;
 
 
+import org.springframework.samples.petclinic.model.BaseEntity;
 import org.springframework.samples.petclinic.owner.Owner;
 import org.springframework.samples.petclinic.owner.OwnerRepository;
 import org.springframework.samples.petclinic.owner.PetRepository;
 import org.springframework.samples.petclinic.owner.PetType;
 import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
+import org.springframework.samples.petclinic.vet.Specialty;
 import org.springframework.samples.petclinic.vet.Vet;
 import org.springframework.samples.petclinic.vet.VetRepository;
 import org.springframework.samples.petclinic.visit.Visit;
 import org.springframework.samples.petclinic.visit.VisitRepository;
 import org.springframework.samples.petclinic.owner.Pet;
 
+import javax.persistence.EntityManager;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 
 public class Forklift {
@@ -28,71 +37,192 @@ public class Forklift {
         "DROP TABLE IF EXISTS pets",
         "DROP TABLE IF EXISTS types",
         "DROP TABLE IF EXISTS owners",
+        "DROP TABLE IF EXISTS forklift_progress",
     };
 
 
     /*
-    Queries that create structure of the tables and indices.
+    Queries that create structure of the tables.
      */
-    private String  initSchemaStatements[] = {
+    private String  createTableStatements[] = {
         "CREATE TABLE IF NOT EXISTS `vets` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `first_name` TEXT, `last_name` TEXT )",
-        "CREATE INDEX IF NOT EXISTS `last_name_vets` ON `vets` ( `last_name` )",
         "CREATE TABLE IF NOT EXISTS `specialties` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `name` TEXT )",
-        "CREATE INDEX IF NOT EXISTS `name_specialities` ON `specialties` ( `name` )",
         "CREATE TABLE IF NOT EXISTS `vet_specialties` ( `vet_id` INTEGER NOT NULL, `specialty_id` INTEGER NOT NULL, FOREIGN KEY(`specialty_id`) REFERENCES `specialties`(`id`), FOREIGN KEY(`vet_id`) REFERENCES `vets`(`id`) )",
         "CREATE TABLE IF NOT EXISTS `types` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `name` TEXT )",
-        "CREATE INDEX IF NOT EXISTS `name_types` ON `types` ( `name` )",
         "CREATE TABLE IF NOT EXISTS `owners` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `first_name` TEXT, `last_name` TEXT, `address` TEXT, `city` TEXT, `telephone` TEXT )",
-        "CREATE INDEX IF NOT EXISTS `last_name` ON `owners` ( `last_name` )",
         "CREATE TABLE IF NOT EXISTS `pets` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `name` TEXT, `birth_date` TEXT, `type_id` INTEGER NOT NULL, `owner_id` INTEGER NOT NULL, FOREIGN KEY(`owner_id`) REFERENCES `owners`(`id`) )",
-        "CREATE INDEX IF NOT EXISTS `name_pets` ON `pets` ( `name` )",
-        "CREATE TABLE IF NOT EXISTS `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT, FOREIGN KEY(`pet_id`) REFERENCES `pets`(`id`) )"
+        "CREATE TABLE IF NOT EXISTS `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT, FOREIGN KEY(`pet_id`) REFERENCES `pets`(`id`) )",
+        "CREATE TABLE IF NOT EXISTS `forklift_progress` ( `table_name` TEXT PRIMARY KEY, `last_id` INTEGER NOT NULL, `updated_at` TEXT )"
+    };
+
+    /*
+    Queries that create the indices. In a bulk load they are built once the data is in, instead of being maintained on every insert.
+     */
+    private String  createIndexStatements[] = {
+        "CREATE INDEX IF NOT EXISTS `last_name_vets` ON `vets` ( `last_name` )",
+        "CREATE INDEX IF NOT EXISTS `name_specialities` ON `specialties` ( `name` )",
+        "CREATE INDEX IF NOT EXISTS `name_types` ON `types` ( `name` )",
+        "CREATE INDEX IF NOT EXISTS `last_name` ON `owners` ( `last_name` )",
+        "CREATE INDEX IF NOT EXISTS `name_pets` ON `pets` ( `name` )"
+    };
+
+    private String  dropIndexStatements[] = {
+        "DROP INDEX IF EXISTS `last_name_vets`",
+        "DROP INDEX IF EXISTS `name_specialities`",
+        "DROP INDEX IF EXISTS `name_types`",
+        "DROP INDEX IF EXISTS `last_name`",
+        "DROP INDEX IF EXISTS `name_pets`"
     };
 
     /*
     Queries that insert the specialities into the table. No way to get these from old datastore at the moment.
      */
     private String specialitiesStatements [] = {
-        "INSERT  INTO specialties VALUES (1, 'radiology')",
-        "INSERT  INTO specialties VALUES (2, 'surgery')",
-        "INSERT  INTO specialties VALUES (3, 'dentistry')"
+        "INSERT OR IGNORE INTO specialties VALUES (1, 'radiology')",
+        "INSERT OR IGNORE INTO specialties VALUES (2, 'surgery')",
+        "INSERT OR IGNORE INTO specialties VALUES (3, 'dentistry')"
     };
 
     private SqlDB db;
     private TableDataGateway tdg;
+    private int commitInterval = TableDataGateway.DEFAULT_COMMIT_INTERVAL;
+    private int chunkSize = ChunkedReader.DEFAULT_CHUNK_SIZE;
+
+    // last committed id of each table, read from forklift_progress when resuming
+    private Map<String, Integer> checkpoints = new HashMap<>();
+    // whether the tables were kept, so rows may already be in them
+    private boolean tablesKept = false;
+
+    // wall-clock time of each phase of the forklift, in the order they ran
+    private Map<String, Long> phaseMillis = new LinkedHashMap<>();
 
     public Forklift(SqlDB db){
         this.db = db;
         this.tdg = new TableDataGateway(db);
+        this.tdg.setCheckpointing(true);
+    }
+
+    /*
+    Number of rows written per transaction when lifting a table.
+     */
+    public void setCommitInterval(int commitInterval){
+        this.commitInterval = commitInterval;
+    }
+
+    /*
+    Number of rows read from the old datastore at a time when streaming.
+     */
+    public void setChunkSize(int chunkSize){
+        this.chunkSize = chunkSize;
     }
 
     /*
     This method initilizes the database to the correct schema.
      */
     public void initSchema(){
+        initSchema(false);
+    }
+
+    /*
+    When resuming, the tables are kept and every lift continues after the checkpoint recorded for its table. Whenever the
+    tables are kept (also with DO_DROP_TABLES_UPON_FORKLIFT off) rows that are already there are skipped, as they were
+    before the lifts were batched, instead of failing their batch.
+     */
+    public void initSchema(boolean resume){
+
+        boolean dropTables = FeatureToggleManager.DO_DROP_TABLES_UPON_FORKLIFT.isEnabled() && !resume;
+        if (dropTables) dropClinicTables();
+
 
-        if (FeatureToggleManager.DO_DROP_TABLES_UPON_FORKLIFT) dropClinicTables();
+        for (String statement : createTableStatements){
+            db.execute(statement);
+        }
+
+        if (FeatureToggleManager.DO_DEFER_INDEX_BUILD_ON_FORKLIFT.isEnabled()) {
+            for (String statement : dropIndexStatements){
+                db.execute(statement); // left over when the tables were kept
+            }
+        } else {
+            buildIndexes();
+        }
 
+        this.checkpoints = resume ? this.tdg.getCheckpoints() : new HashMap<>();
+        this.tablesKept = !dropTables;
+        this.tdg.setIgnoreDuplicates(tablesKept);
+    }
 
-        for (String statement : initSchemaStatements){
+    /*
+    Builds the indices and refreshes the query planner statistics. Run after the data is loaded in a bulk load.
+     */
+    public void buildIndexes(){
+        for (String statement : createIndexStatements){
             db.execute(statement);
         }
     }
 
+    public void analyze(){
+        db.execute("ANALYZE");
+    }
+
+    /*
+    Runs one phase of the forklift and records how long it took, also when it fails. The times are returned by
+    getPhaseReport.
+     */
+    public void timed(String phase, Runnable work){
+        long start = System.nanoTime();
+        try {
+            work.run();
+        } finally {
+            phaseMillis.merge(phase, (System.nanoTime() - start) / 1000000, Long::sum);
+        }
+    }
+
+    public String getPhaseReport(){
+        String report = "";
+        long total = 0;
+        for (Map.Entry<String, Long> phase : phaseMillis.entrySet()){
+            report += String.format("%s: %d ms\n", phase.getKey(), phase.getValue());
+            total += phase.getValue();
+        }
+        return report + String.format("Total: %d ms\n", total);
+    }
+
+    public Map<String, Integer> getCheckpoints(){
+        return checkpoints;
+    }
+
+    private int startAfter(String tableName){
+        return checkpoints.getOrDefault(tableName, 0);
+    }
+
     public void dropClinicTables(){
         for (String statement : dropTableStatements){
             db.execute(statement);
         }
     }
 
+    /*
+    Rows of lists read in one go, in id order and without the ones already lifted, so they can be checkpointed.
+     */
+    private <T extends BaseEntity> List<T> remaining(Collection<T> rows, String tableName){
+        int lastId = startAfter(tableName);
+        return rows.stream()
+            .filter(row -> row.getId() > lastId)
+            .sorted(Comparator.comparing(BaseEntity::getId))
+            .collect(Collectors.toList());
+    }
+
     /*
     This method forklifts the PetType table
      */
     public void liftPetTypes(PetRepository pets){
-        Collection<PetType> typeCollection = pets.findPetTypes();
+        Collection<PetType> typeCollection = remaining(pets.findPetTypes(), "types");
+        this.tdg.beginBatch(commitInterval);
         for (PetType type : typeCollection){
-            this.tdg.insertType(type);
+            this.tdg.batchInsertType(type);
+            this.tdg.checkpoint("types", type.getId());
         }
+        this.tdg.endBatch();
     }
 
     /*
@@ -108,27 +238,123 @@ public class Forklift {
     This method forklifts the Vets table.
      */
     public void liftVets(VetRepository vets){
-        Collection<Vet> vetCollection = vets.findAll();
+        Collection<Vet> vetCollection = remaining(vets.findAll(), "vets");
+        this.tdg.beginBatch(commitInterval);
         for (Vet vet : vetCollection){
-            this.tdg.insertVet(vet);
+            liftVet(vet);
         }
+        this.tdg.endBatch();
+    }
+
+    /*
+    A vet only counts as lifted with all of its specialties. Those have no unique key to skip them on when the tables
+    were kept, so they are deleted before they are inserted again.
+     */
+    private void liftVet(Vet vet){
+        if (tablesKept) this.tdg.batchDeleteVetSpecialties(vet.getId());
+        this.tdg.batchInsertVet(vet);
+        this.tdg.checkpoint("vets", vet.getId());
     }
 
 	public void liftOwnersAndPets(OwnerRepository owners) {
-        Collection<Owner> ownersCollection = owners.findAll();
+        Collection<Owner> ownersCollection = remaining(owners.findAll(), "owners");
+        this.tdg.beginBatch(commitInterval);
         for (Owner owner : ownersCollection){
-            this.tdg.insertOwner(owner); // insert the owner
-            Collection<Pet> pets = owner.getPets(); // get his pets
-            for(Pet pet: pets){ // insert each of them
-                this.tdg.insertPet(pet);
-            }
+            liftOwnerAndPets(owner);
         }
+        this.tdg.endBatch();
 	}
 
+    private void liftOwnerAndPets(Owner owner){
+        this.tdg.batchInsertOwner(owner); // insert the owner
+        Collection<Pet> pets = owner.getPets(); // get his pets
+        for(Pet pet: pets){ // insert each of them
+            this.tdg.batchInsertPet(pet);
+        }
+        this.tdg.checkpoint("owners", owner.getId()); // the owner only counts as lifted with all of its pets
+    }
+
 	public void liftVisits(VisitRepository visits) {
-        Collection<Visit> visitsCollection = visits.findAll();
+        Collection<Visit> visitsCollection = remaining(visits.findAll(), "visits");
+        this.tdg.beginBatch(commitInterval);
         for (Visit visit : visitsCollection){
-            this.tdg.insertVisit(visit); // insert the owner
+            this.tdg.batchInsertVisit(visit); // insert the visit
+            this.tdg.checkpoint("visits", visit.getId());
         }
+        this.tdg.endBatch();
 	}
+
+    /*
+    Streaming version of liftOwnersAndPets: owners are read in id-ordered chunks and the persistence context is
+    cleared between chunks, so heap use does not grow with the size of the table.
+     */
+    public void streamOwnersAndPets(OwnerRepository owners, EntityManager entityManager) {
+        this.tdg.beginBatch(commitInterval);
+        for (List<Owner> chunk : new ChunkedReader<>(owners::findChunkAfter, chunkSize, entityManager, startAfter("owners"))){
+            for (Owner owner : chunk){
+                liftOwnerAndPets(owner);
+            }
+        }
+        this.tdg.endBatch();
+    }
+
+    /*
+    Streaming version of liftVisits.
+     */
+    public void streamVisits(VisitRepository visits, EntityManager entityManager) {
+        this.tdg.beginBatch(commitInterval);
+        for (List<Visit> chunk : new ChunkedReader<>(visits::findChunkAfter, chunkSize, entityManager, startAfter("visits"))){
+            for (Visit visit : chunk){
+                this.tdg.batchInsertVisit(visit);
+                this.tdg.checkpoint("visits", visit.getId());
+            }
+        }
+        this.tdg.endBatch();
+    }
+
+    /*
+    Lifts every table through a ForkliftPipeline, following the foreign keys of createTableStatements:
+    types -> owners with their pets -> visits and specialties -> vets with their specialties. Independent branches are
+    read concurrently by readerThreads threads while this thread does all the writing. Owners and vets are lifted and
+    checkpointed the same way as by the serial lifts, so either kind of forklift can resume the other. Returns the
+    per-stage throughput.
+     */
+    public String liftInParallel(PetRepository pets, VetRepository vets, OwnerRepository owners, VisitRepository visits, int readerThreads) {
+        this.tdg.beginBatch(commitInterval);
+        ForkliftPipeline pipeline = new ForkliftPipeline(this.tdg::flushBatch, readerThreads, ForkliftPipeline.DEFAULT_QUEUE_CAPACITY)
+            .stage("types", writes -> {
+                for (PetType type : remaining(pets.findPetTypes(), "types")){
+                    writes.accept(() -> {
+                        this.tdg.batchInsertType(type);
+                        this.tdg.checkpoint("types", type.getId());
+                    });
+                }
+            })
+            .stage("owners", writes -> {
+                for (List<Owner> chunk : new ChunkedReader<>(owners::findChunkAfter, chunkSize, null, startAfter("owners"))){
+                    for (Owner owner : chunk){
+                        writes.accept(() -> liftOwnerAndPets(owner));
+                    }
+                }
+            }, "types")
+            .stage("visits", writes -> {
+                for (List<Visit> chunk : new ChunkedReader<>(visits::findChunkAfter, chunkSize, null, startAfter("visits"))){
+                    for (Visit visit : chunk){
+                        writes.accept(() -> {
+                            this.tdg.batchInsertVisit(visit);
+                            this.tdg.checkpoint("visits", visit.getId());
+                        });
+                    }
+                }
+            }, "owners")
+            .stage("specialties", writes -> writes.accept(this::liftSpecialties))
+            .stage("vets", writes -> {
+                for (Vet vet : remaining(vets.findAll(), "vets")){
+                    writes.accept(() -> liftVet(vet));
+                }
+            }, "specialties");
+        String report = pipeline.run();
+        this.tdg.endBatch();
+        return report;
+    }
 }
@@ -0,0 +1,192 @@
+package org.springframework.samples.petclinic.migration;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+Runs the forklift as a producer/consumer pipeline. Each stage lifts one table: its reader runs on a pool of reader
+threads and emits writes into a bounded queue, which a single writer (the calling thread) drains onto the SQLite
+connection. A stage only starts reading once every stage it depends on has been written and committed, so foreign keys
+are respected while independent branches of the schema are read concurrently.
+ */
+public class ForkliftPipeline {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /*
+    Reads the rows of a stage from the old datastore and hands one write per row to the pipeline.
+    The writes run on the writer thread.
+     */
+    public interface StageReader {
+        void read(Consumer<Runnable> writes);
+    }
+
+    private static class Stage {
+        String name;
+        StageReader reader;
+        List<Stage> dependsOn = new ArrayList<>();
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        AtomicLong rows = new AtomicLong();
+        volatile long startNanos;
+        long endNanos;
+        Throwable failure;
+    }
+
+    /*
+    Queue element: either a row write or the end marker of a stage.
+     */
+    private static class Write {
+        Stage stage;
+        Runnable write;
+        Throwable failure;
+        boolean end;
+    }
+
+    private Map<String, Stage> stages = new LinkedHashMap<>();
+    private Runnable flush;
+    private int readerThreads;
+    private BlockingQueue<Write> queue;
+
+    /*
+    flush is run on the writer thread at the end of each stage, and must commit everything written so far.
+     */
+    public ForkliftPipeline(Runnable flush, int readerThreads, int queueCapacity){
+        this.flush = flush;
+        this.readerThreads = Math.max(1, readerThreads);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    /*
+    Adds a stage. Dependencies must have been added before the stages that depend on them.
+     */
+    public ForkliftPipeline stage(String name, StageReader reader, String... dependsOn){
+        Stage stage = new Stage();
+        stage.name = name;
+        stage.reader = reader;
+        for (String dependency : dependsOn){
+            Stage required = stages.get(dependency);
+            if (required == null) throw new IllegalArgumentException("Unknown stage " + dependency + " required by " + name);
+            stage.dependsOn.add(required);
+        }
+        stages.put(name, stage);
+        return this;
+    }
+
+    /*
+    Runs every stage and blocks until all of them are written. Returns the per-stage throughput report. A batch that
+    fails to commit stops the whole run and is thrown: the checkpoints written after it would skip its rows.
+     */
+    public String run(){
+        long start = System.nanoTime();
+        ExecutorService readers = Executors.newFixedThreadPool(readerThreads);
+        try {
+            for (Stage stage : stages.values()){
+                CompletableFuture<?>[] dependencies = stage.dependsOn.stream().map(d -> d.written).toArray(CompletableFuture[]::new);
+                CompletableFuture.allOf(dependencies)
+                    .thenRunAsync(() -> read(stage), readers)
+                    // async: a failed dependency is completed on the writer thread, which must never block on the queue
+                    .whenCompleteAsync((ignored, failure) -> {
+                        if (failure != null) enqueueEnd(stage, failure);
+                    }, readers);
+            }
+            write();
+        } finally {
+            readers.shutdownNow();
+        }
+        return report(System.nanoTime() - start);
+    }
+
+    private void read(Stage stage){
+        stage.startNanos = System.nanoTime();
+        stage.reader.read(write -> {
+            Write element = new Write();
+            element.stage = stage;
+            element.write = write;
+            stage.rows.incrementAndGet();
+            put(element);
+        });
+        enqueueEnd(stage, null);
+    }
+
+    private void enqueueEnd(Stage stage, Throwable failure){
+        Write element = new Write();
+        element.stage = stage;
+        element.end = true;
+        element.failure = failure;
+        put(element);
+    }
+
+    private void put(Write element){
+        try {
+            queue.put(element);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Forklift pipeline interrupted", e);
+        }
+    }
+
+    /*
+    The single writer: applies writes in queue order until every stage has ended.
+     */
+    private void write(){
+        int remaining = stages.size();
+        while (remaining > 0){
+            Write element;
+            try {
+                element = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!element.end){
+                try {
+                    element.write.run();
+                } catch (BatchWriteException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // a bad row must not stop the writer, or the readers would block forever
+                }
+                continue;
+            }
+            flush.run();
+            Stage stage = element.stage;
+            stage.endNanos = System.nanoTime();
+            if (element.failure != null){
+                stage.failure = element.failure;
+                stage.written.completeExceptionally(element.failure);
+            } else {
+                stage.written.complete(null);
+            }
+            remaining--;
+        }
+    }
+
+    private String report(long totalNanos){
+        String report = "";
+        for (Stage stage : stages.values()){
+            if (stage.failure != null){
+                report += String.format("%s: FAILED (%s)\n", stage.name, rootCause(stage.failure));
+                continue;
+            }
+            double seconds = Math.max(stage.endNanos - stage.startNanos, 1) / 1e9;
+            report += String.format("%s: %d rows in %d ms (%.0f rows/s)\n",
+                stage.name, stage.rows.get(), (long) (seconds * 1000), stage.rows.get() / seconds);
+        }
+        report += String.format("Pipeline total: %d ms with %d reader threads\n", totalNanos / 1000000, readerThreads);
+        return report;
+    }
+
+    private static String rootCause(Throwable failure){
+        while (failure.getCause() != null) failure = failure.getCause();
+        return failure.toString();
+    }
+}
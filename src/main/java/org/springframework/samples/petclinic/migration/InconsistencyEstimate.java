@@ -0,0 +1,75 @@
+package org.springframework.samples.petclinic.migration;
+
+/*
+The inconsistency rate of a table estimated from a sample of its rows, with a Wilson score interval. Unlike the normal
+approximation, the Wilson interval stays inside [0, 1] and is still meaningful when no inconsistency was sampled,
+which is the common case.
+ */
+class InconsistencyEstimate {
+
+    private final String tableName;
+    private final int rows;
+    private final int inconsistent;
+    private final double confidence;
+    private final double lower;
+    private final double upper;
+
+    InconsistencyEstimate(String tableName, int rows, int inconsistent, double confidence) {
+        this.tableName = tableName;
+        this.rows = rows;
+        this.inconsistent = inconsistent;
+        this.confidence = confidence;
+        if (rows == 0) {
+            this.lower = 0;
+            this.upper = 1;
+        } else {
+            double z = z(confidence);
+            double p = (double) inconsistent / rows;
+            double denominator = 1 + z * z / rows;
+            double centre = (p + z * z / (2.0 * rows)) / denominator;
+            double margin = z * Math.sqrt(p * (1 - p) / rows + z * z / (4.0 * rows * rows)) / denominator;
+            this.lower = Math.max(0, centre - margin);
+            this.upper = Math.min(1, centre + margin);
+        }
+    }
+
+    /*
+    The two-sided standard normal quantile for the confidence level (1.96 for 0.95), using the rational approximation
+    26.2.23 of Abramowitz and Stegun, accurate to 4.5e-4.
+     */
+    static double z(double confidence) {
+        double tail = (1 - confidence) / 2;
+        double t = Math.sqrt(-2 * Math.log(tail));
+        return t - (2.515517 + 0.802853 * t + 0.010328 * t * t) / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+    }
+
+    String getTableName() {
+        return tableName;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    int getInconsistent() {
+        return inconsistent;
+    }
+
+    double getRate() {
+        return rows == 0 ? 0 : (double) inconsistent / rows;
+    }
+
+    double getLower() {
+        return lower;
+    }
+
+    double getUpper() {
+        return upper;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d of %d sampled rows inconsistent, estimated rate %.2f%% (%.0f%% confidence interval %.2f%% - %.2f%%)",
+            tableName, inconsistent, rows, 100 * getRate(), 100 * confidence, 100 * lower, 100 * upper);
+    }
+}
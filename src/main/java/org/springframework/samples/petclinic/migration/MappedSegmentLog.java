@@ -0,0 +1,231 @@
+package org.springframework.samples.petclinic.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/*
+Append-only log of byte records in memory-mapped segment files of segmentSize bytes (directory/00000000000000000000.seg,
+...). A record is its length, the CRC32 of its payload and the payload; it never spans two segments. Appending is a
+copy into the mapped segment, so a record is in the page cache, and survives the process dying, as soon as append()
+returns; force() writes the segments to disk so it also survives the machine going down.
+
+A position is segment number * segmentSize + offset. Opening the log scans the last segment and cuts it after the
+last record with a valid checksum, so a record torn by a crash is never read. Segments are only deleted by
+deleteBefore(), once everything in them has been consumed; readers keep how far they got with writeCheckpoint().
+ */
+public class MappedSegmentLog implements AutoCloseable {
+
+    public static final int HEADER = 8;
+
+    /*
+    A record and the position right after it, where the next one starts.
+     */
+    public static class Record {
+        public final byte[] payload;
+        public final long next;
+
+        Record(byte[] payload, long next) {
+            this.payload = payload;
+            this.next = next;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Map<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+    private volatile long head; // position of the next record, written by append only
+    private volatile boolean closed = false;
+
+    public MappedSegmentLog(File directory, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] listed = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        for (File file : listed == null ? new File[0] : listed) {
+            files.put(Long.parseLong(file.getName().substring(0, file.getName().length() - 4)), file);
+        }
+        for (Long number : files.keySet()) {
+            segments.put(number, map(number));
+        }
+        this.head = files.isEmpty() ? 0 : recover(files.lastKey());
+    }
+
+    private MappedByteBuffer map(long number) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, String.format("%020d.seg", number)), "rw");
+             FileChannel channel = file.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize); // stays valid after the channel closes
+        }
+    }
+
+    /*
+    Finds the end of the valid records of the last segment and zeroes whatever a crash left behind it.
+     */
+    private long recover(long number) {
+        MappedByteBuffer segment = segments.get(number);
+        int offset = 0;
+        while (offset + HEADER <= segmentSize) {
+            int length = segment.getInt(offset);
+            if (length <= 0 || offset + HEADER + length > segmentSize) break;
+            if (crc(segment, offset + HEADER, length) != segment.getInt(offset + 4)) break;
+            offset += HEADER + length;
+        }
+        for (int i = offset; i < segmentSize && i < offset + HEADER; i++) {
+            segment.put(i, (byte) 0);
+        }
+        return number * segmentSize + offset;
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    /*
+    Appends a record and returns the position after it, or -1 when all maxSegments segments are still in use.
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        if (closed) return -1;
+        if (payload.length == 0 || payload.length > segmentSize - HEADER) {
+            throw new IllegalArgumentException("A record must hold 1 to " + (segmentSize - HEADER) + " bytes");
+        }
+        long position = head;
+        long number = position / segmentSize;
+        int offset = (int) (position % segmentSize);
+        if (offset + HEADER + payload.length > segmentSize) {
+            number++;
+            offset = 0;
+        }
+        MappedByteBuffer segment = segments.get(number);
+        if (segment == null) {
+            if (segments.size() >= maxSegments) return -1;
+            segment = map(number);
+            segments.put(number, segment);
+        }
+        ByteBuffer target = segment.duplicate();
+        target.position(offset + HEADER);
+        target.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        segment.putInt(offset + 4, (int) crc.getValue());
+        segment.putInt(offset, payload.length); // last, so a non-zero length means the record is complete
+        head = number * segmentSize + offset + HEADER + payload.length;
+        return head;
+    }
+
+    /*
+    Up to max records starting at position from, which must be the start of a record (or a position returned by append).
+     */
+    public List<Record> read(long from, int max) {
+        List<Record> records = new ArrayList<>();
+        long position = from;
+        long end = head;
+        while (records.size() < max && position < end) {
+            long number = position / segmentSize;
+            int offset = (int) (position % segmentSize);
+            MappedByteBuffer segment = segments.get(number);
+            int length = segment == null || offset + HEADER > segmentSize ? 0 : segment.getInt(offset);
+            if (length <= 0) {
+                position = (number + 1) * segmentSize; // the rest of this segment is unused
+                continue;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer source = segment.duplicate();
+            source.position(offset + HEADER);
+            source.get(payload);
+            position += HEADER + length;
+            records.add(new Record(payload, position));
+        }
+        return records;
+    }
+
+    public long getHead() {
+        return head;
+    }
+
+    /*
+    Position of the oldest record still kept, the head when there is none.
+     */
+    public long getTail() {
+        Iterator<Long> numbers = segments.keySet().iterator();
+        return numbers.hasNext() ? Math.min(numbers.next() * segmentSize, head) : head;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /*
+    Deletes the segments that end at or before position. The segment holding the head is always kept.
+     */
+    public synchronized void deleteBefore(long position) {
+        long current = head / segmentSize;
+        for (Long number : new ArrayList<>(segments.keySet())) {
+            if (number >= current || (number + 1) * segmentSize > position) continue;
+            segments.remove(number);
+            new File(directory, String.format("%020d.seg", number)).delete();
+        }
+    }
+
+    public void force() {
+        for (MappedByteBuffer segment : segments.values()) {
+            segment.force();
+        }
+    }
+
+    /*
+    A position saved with writeCheckpoint, 0 when the file is missing or torn.
+     */
+    public static long readCheckpoint(File file) {
+        if (!file.exists()) return 0;
+        try (RandomAccessFile checkpoint = new RandomAccessFile(file, "r")) {
+            long position = checkpoint.readLong();
+            return checkpoint.readInt() == crc(position) ? position : 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /*
+    Saves the position with its checksum and syncs the file.
+     */
+    public static void writeCheckpoint(File file, long position) throws IOException {
+        try (RandomAccessFile checkpoint = new RandomAccessFile(file, "rw")) {
+            checkpoint.writeLong(position);
+            checkpoint.writeInt(crc(position));
+            checkpoint.getFD().sync();
+        }
+    }
+
+    private static int crc(long position) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(0, position).array());
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        force();
+    }
+}
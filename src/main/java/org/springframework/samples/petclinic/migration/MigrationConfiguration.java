@@ -0,0 +1,148 @@
+package org.springframework.samples.petclinic.migration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.samples.petclinic.owner.OwnerRepository;
+import org.springframework.samples.petclinic.owner.PetRepository;
+import org.springframework.samples.petclinic.vet.VetRepository;
+import org.springframework.samples.petclinic.visit.VisitRepository;
+
+import javax.persistence.EntityManager;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Settings of the SQLite datastore we are migrating to.
+ */
+@Configuration
+class MigrationConfiguration {
+
+    /**
+     * Connections used by the controllers for shadow reads and writes. Its metrics are published under migration.sqlite.pool.
+     */
+    @Bean
+    SqlDBPool shadowDbPool(@Value("${migration.sqlite.shadow-profile:ONLINE}") SQLitePragmaProfile shadowProfile,
+                           @Value("${migration.sqlite.pool.max-size:8}") int maxSize,
+                           @Value("${migration.sqlite.pool.borrow-timeout-ms:2000}") long borrowTimeoutMillis,
+                           @Value("${migration.sqlite.pool.leak-threshold-ms:30000}") long leakThresholdMillis) {
+        return new SqlDBPool(SQLiteDB.MIGRATION_DB, shadowProfile, maxSize, borrowTimeoutMillis, leakThresholdMillis);
+    }
+
+    /**
+     * Memory-mapped journal of the shadow writes, replayed into SQLite in batches; batches that keep failing are parked.
+     * Its metrics are published under migration.outbox.
+     */
+    @Bean
+    OutboxJournal outboxJournal(SqlDBPool shadowDbPool,
+                                @Value("${migration.outbox.directory:migration-outbox}") File directory,
+                                @Value("${migration.outbox.segment-size:16777216}") int segmentSize,
+                                @Value("${migration.outbox.max-segments:64}") int maxSegments,
+                                @Value("${migration.outbox.batch-size:500}") int batchSize,
+                                @Value("${migration.outbox.sync-interval-ms:100}") long syncIntervalMillis,
+                                @Value("${migration.outbox.max-attempts:8}") int maxAttempts,
+                                @Value("${migration.outbox.retry-delay-ms:1000}") long retryDelayMillis) throws IOException {
+        OutboxJournal journal = new OutboxJournal(directory, segmentSize, maxSegments, shadowDbPool, batchSize, syncIntervalMillis);
+        journal.setRetries(maxAttempts, retryDelayMillis);
+        return journal;
+    }
+
+    /**
+     * Shadow writes of the controllers, journaled in the outbox or, with DO_JOURNAL_SHADOW_WRITES off, written to SQLite
+     * by a background thread. Its metrics are published under migration.shadow-writes.
+     */
+    @Bean
+    ShadowWriteQueue shadowWriteQueue(SqlDBPool shadowDbPool, OutboxJournal outboxJournal,
+                                      @Value("${migration.shadow-writes.capacity:10000}") int capacity,
+                                      @Value("${migration.shadow-writes.batch-size:500}") int batchSize,
+                                      @Value("${migration.shadow-writes.overflow-policy:CALLER_RUNS}") ShadowWriteQueue.OverflowPolicy overflowPolicy,
+                                      @Value("${migration.shadow-writes.block-timeout-ms:100}") long blockTimeoutMillis) {
+        ShadowWriteQueue shadowWrites = new ShadowWriteQueue(shadowDbPool, capacity, batchSize, overflowPolicy, blockTimeoutMillis);
+        shadowWrites.setOutbox(outboxJournal);
+        return shadowWrites;
+    }
+
+    /**
+     * Sampled shadow reads of the controllers, compared with SQLite on a background executor. Differing rows are left
+     * to the consistency checker. Its metrics are published under migration.shadow-reads.
+     */
+    @Bean
+    ShadowReader shadowReader(SqlDBPool shadowDbPool, RangeSummaries rangeSummaries, ShadowWriteQueue shadowWriteQueue,
+                              @Value("${migration.shadow-reads.sample-rate:0.1}") double sampleRate,
+                              @Value("${migration.shadow-reads.threads:1}") int threads,
+                              @Value("${migration.shadow-reads.queue-capacity:1000}") int queueCapacity) {
+        ShadowReader shadowReader = new ShadowReader(shadowDbPool, sampleRate, threads, queueCapacity);
+        shadowReader.setRangeSummaries(rangeSummaries);
+        shadowReader.setShadowWrites(shadowWriteQueue);
+        return shadowReader;
+    }
+
+    /**
+     * Routes a share of the owner, pet and vet lookups to SQLite, set on /readCutover, except for rows with a pending
+     * shadow write. Its metrics are published under migration.reads.
+     */
+    @Bean
+    ReadRouter readRouter(SqlDBPool shadowDbPool, ShadowReader shadowReader, ShadowWriteQueue shadowWriteQueue,
+                          @Value("${migration.reads.sqlite-percent:0}") int percent,
+                          @Value("${migration.reads.timeout-ms:200}") long timeoutMillis,
+                          @Value("${migration.reads.threads:4}") int threads) {
+        ReadRouter readRouter = new ReadRouter(shadowDbPool, shadowReader, percent, timeoutMillis, threads);
+        readRouter.setShadowWrites(shadowWriteQueue);
+        return readRouter;
+    }
+
+    /**
+     * The shadow-read counters and the latencies of both stores, at /manage/shadowreads.
+     */
+    @Bean
+    ShadowReadEndpoint shadowReadEndpoint(ShadowReader shadowReader) {
+        return new ShadowReadEndpoint(shadowReader);
+    }
+
+    /**
+     * Range hash trees kept between consistency checks, updated by RangeSummaryListener when an entity is written.
+     */
+    @Bean
+    RangeSummaries rangeSummaries(@Value("${migration.checker.leaf-size:1024}") int leafSize) {
+        RangeSummaries summaries = new RangeSummaries(leafSize);
+        RangeSummaryListener.register(summaries);
+        return summaries;
+    }
+
+    /**
+     * Runs the forklift and the consistency checks for MigrationController and the background checker.
+     */
+    @Bean
+    Driver migrationDriver(VetRepository vets, OwnerRepository owners, PetRepository pets, VisitRepository visits,
+                           EntityManager entityManager, SqlDBPool shadowDb, RangeSummaries rangeSummaries,
+                           @Value("${migration.sqlite.forklift-profile:BULK_LOAD}") SQLitePragmaProfile forkliftProfile,
+                           @Value("${migration.sqlite.shadow-profile:ONLINE}") SQLitePragmaProfile shadowProfile,
+                           @Value("${migration.forklift.commit-interval:1000}") int commitInterval,
+                           @Value("${migration.forklift.chunk-size:1000}") int chunkSize,
+                           @Value("${migration.forklift.reader-threads:4}") int readerThreads,
+                           @Value("${migration.checker.parallelism:0}") int checkerParallelism,
+                           @Value("${migration.checker.sample-size:400}") int sampleSize,
+                           @Value("${migration.checker.sample-strata:20}") int sampleStrata,
+                           @Value("${migration.checker.sample-confidence:0.95}") double sampleConfidence,
+                           @Value("${migration.checker.escalation-threshold:0.01}") double escalationThreshold) {
+        Driver driver = new Driver(vets, owners, pets, visits, forkliftProfile, shadowProfile);
+        driver.setCommitInterval(commitInterval);
+        driver.setStreaming(entityManager, chunkSize);
+        driver.setReaderThreads(readerThreads);
+        driver.setShadowDb(shadowDb);
+        driver.setRangeSummaries(rangeSummaries);
+        driver.setCheckerParallelism(checkerParallelism);
+        driver.setSampling(sampleSize, sampleStrata, sampleConfidence, escalationThreshold);
+        return driver;
+    }
+
+    /**
+     * Incremental consistency checks off the request threads, every interval-ms while DO_RUN_BACKGROUND_CONSISTENCY_CHECKER is on.
+     */
+    @Bean
+    BackgroundConsistencyChecker backgroundConsistencyChecker(Driver driver, RangeSummaries rangeSummaries,
+                                                              @Value("${migration.checker.background.interval-ms:60000}") long intervalMillis) {
+        return new BackgroundConsistencyChecker(driver, rangeSummaries, intervalMillis);
+    }
+
+}
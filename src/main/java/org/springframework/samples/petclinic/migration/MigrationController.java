@@ -1,24 +1,29 @@
 package org.springframework.samples.petclinic.migration;
 
 
-import org.springframework.samples.petclinic.owner.OwnerRepository;
-import org.springframework.samples.petclinic.owner.PetRepository;
 import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
-import org.springframework.samples.petclinic.vet.VetRepository;
-import org.springframework.samples.petclinic.visit.VisitRepository;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.ModelAndView;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 @Controller
 class MigrationController {
 
     private Driver driver;
-    public MigrationController(VetRepository vets, OwnerRepository owners, PetRepository pets, VisitRepository visits) {
-        this.driver = new Driver(vets,owners,pets,visits);
+    private BackgroundConsistencyChecker backgroundChecker;
+    private ReadRouter readRouter;
+
+    public MigrationController(Driver driver, BackgroundConsistencyChecker backgroundChecker, ReadRouter readRouter) {
+        this.driver = driver;
+        this.backgroundChecker = backgroundChecker;
+        this.readRouter = readRouter;
     }
 
     @GetMapping("/migrations")
@@ -37,12 +42,7 @@ class MigrationController {
 
         String response = "\n";
 
-        Collection toggles = null;
-        try {
-            toggles = FeatureToggleManager.getToggles();
-        } catch (IllegalAccessException e) {
-            //e.printStackTrace();
-        }
+        Collection toggles = FeatureToggleManager.getToggles();
 
 
         ModelAndView mav = new ModelAndView("migrations/toggles");
@@ -53,20 +53,13 @@ class MigrationController {
 
     @GetMapping("/toggles/{toggleName}")
     public String toggle(@PathVariable("toggleName") String toggleName){
-        Boolean didWork = false;
-        try {
-            didWork = FeatureToggleManager.toggleByName(toggleName);
-        } catch (NoSuchFieldException e) {
-            //e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            //e.printStackTrace();
-        }
+        Boolean didWork = FeatureToggleManager.toggleByName(toggleName);
         return "redirect:/toggles;";
     }
 
     @GetMapping("/forklift")
-    public ModelAndView forklift(){
-        String response = driver.forklift();
+    public ModelAndView forklift(@RequestParam(value = "resume", defaultValue = "false") boolean resume){
+        String response = driver.forklift(resume);
 
         response += "\n";
         response += driver.listDB();
@@ -86,13 +79,52 @@ class MigrationController {
     }
 
     @GetMapping("/consistencyChecker")
-    public ModelAndView consistencyChecker(){
-        String response = driver.consistencyChecker();
+    public ModelAndView consistencyChecker(@RequestParam(value = "full", defaultValue = "false") boolean full){
+        String response = driver.consistencyChecker(full);
+
+        ModelAndView mav = new ModelAndView("migrations/migrations");
+        mav.addObject("code", "\n" + response);
+        return mav;
+    }
+
+    @GetMapping("/consistencyChecker/sampled")
+    public ModelAndView sampledConsistencyChecker(){
+        String response = driver.sampledConsistencyChecker();
+
+        ModelAndView mav = new ModelAndView("migrations/migrations");
+        mav.addObject("code", "\n" + response);
+        return mav;
+    }
+
+    /*
+    Starts a check on the background checker's thread and returns at once; follow it on /consistencyChecker/status.
+     */
+    @GetMapping("/consistencyChecker/background")
+    public ModelAndView backgroundConsistencyChecker(){
+        String response = backgroundChecker.runNow() ? "Background consistency check queued." : "A background consistency check is already queued.";
 
         ModelAndView mav = new ModelAndView("migrations/migrations");
         mav.addObject("code", "\n" + response);
         return mav;
     }
 
+    @GetMapping("/consistencyChecker/status")
+    @ResponseBody
+    public Map<String, Object> consistencyCheckerStatus(){
+        return backgroundChecker.getStatus();
+    }
+
+    /*
+    Shows, or with percent sets, the share of the owner, pet and vet lookups read from SQLite.
+     */
+    @GetMapping("/readCutover")
+    @ResponseBody
+    public Map<String, Object> readCutover(@RequestParam(value = "percent", required = false) Integer percent){
+        if (percent != null) {
+            readRouter.setPercent(percent);
+        }
+        return Collections.singletonMap("percent", readRouter.getPercent());
+    }
+
     
 }
@@ -0,0 +1,432 @@
+package org.springframework.samples.petclinic.migration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.samples.petclinic.model.BaseEntity;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetType;
+import org.springframework.samples.petclinic.visit.Visit;
+
+import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+Durable outbox for the shadow writes. append() serializes the owner, pet or visit row into a MappedSegmentLog before
+anything is written to SQLite, which costs the request thread a copy into mapped memory; the record survives the
+process dying from then on, and a machine crash once the sync thread has forced it, every syncIntervalMillis.
+
+A replayer thread reads the records after the checkpoint, up to batchSize at a time, writes the latest state of each
+row as UPSERTs in one transaction and then moves the checkpoint past them. Replay is at least once: after a crash the
+records after the last checkpoint are written again, which UPSERTs make harmless. A transaction that is rolled back
+leaves the checkpoint where it is and is retried, waiting twice as long after each failure. A batch that still fails
+after maxAttempts (SQLite lost its tables to /emptyDB, or was never forklifted) is parked: its records are appended to
+the parked file next to the segments and the checkpoint moves past them, so the journal does not fill up and block the
+shadow writes behind it. The legacy writes of parked rows have marked their ranges dirty, so the consistency checker
+repairs them. Consumed segments are deleted.
+ */
+public class OutboxJournal implements MeterBinder, AutoCloseable {
+
+    private static final byte OWNER = 1;
+    private static final byte PET = 2;
+    private static final byte VISIT = 3;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxJournal.class);
+
+    private final MappedSegmentLog log;
+    private final SqlDBPool pool;
+    private final int batchSize;
+    private final File checkpointFile;
+    private final File parkedFile;
+    private volatile int maxAttempts = 8;
+    private volatile long retryDelayMillis = 1000;
+    private final Object appended = new Object();
+    private volatile long checkpoint;
+    private volatile boolean closed = false;
+    private final Thread replayer;
+    private final ScheduledExecutorService sync;
+    private volatile Consumer<BaseEntity> onReplayed = entity -> { };
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong parked = new AtomicLong();
+
+    public OutboxJournal(File directory, int segmentSize, int maxSegments, SqlDBPool pool, int batchSize,
+                         long syncIntervalMillis) throws IOException {
+        this.log = new MappedSegmentLog(directory, segmentSize, maxSegments);
+        this.pool = pool;
+        this.batchSize = Math.max(1, batchSize);
+        this.checkpointFile = new File(directory, "checkpoint");
+        this.parkedFile = new File(directory, "parked");
+        this.checkpoint = Math.max(log.getTail(), Math.min(MappedSegmentLog.readCheckpoint(checkpointFile), log.getHead()));
+        this.replayer = new Thread(this::replayLoop, "outbox-replayer");
+        this.replayer.setDaemon(true);
+        this.replayer.start();
+        this.sync = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbox-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (syncIntervalMillis > 0) {
+            sync.scheduleWithFixedDelay(log::force, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+    Called on the replayer thread with every journaled row whose transaction has committed.
+     */
+    public void setOnReplayed(Consumer<BaseEntity> onReplayed) {
+        this.onReplayed = onReplayed;
+    }
+
+    /*
+    How many times a batch is tried before it is parked, and how long the replayer waits after its first failure.
+     */
+    public void setRetries(int maxAttempts, long retryDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMillis = Math.max(0, retryDelayMillis);
+    }
+
+    /*
+    Journals the row. Returns false when it was not journaled (the journal is full or closed, or the row has no id
+    yet), in which case the caller has to write it some other way.
+     */
+    public boolean append(BaseEntity entity) {
+        return append(entity, 0);
+    }
+
+    /*
+    Like append(entity), but while the journal is full it keeps trying for up to timeoutMillis, as the replayer
+    deletes the segments it has consumed.
+     */
+    public boolean append(BaseEntity entity, long timeoutMillis) {
+        if (closed || entity.getId() == null) return false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            byte[] record = encode(entity);
+            while (log.append(record) < 0) {
+                if (closed || System.currentTimeMillis() >= deadline) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            return false;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            rejected.incrementAndGet();
+            return false;
+        }
+        records.incrementAndGet();
+        synchronized (appended) {
+            appended.notify();
+        }
+        return true;
+    }
+
+    private void replayLoop() {
+        int attempts = 0; // failures of the batch at the checkpoint
+        while (true) {
+            List<MappedSegmentLog.Record> batch = log.read(checkpoint, batchSize);
+            if (batch.isEmpty()) {
+                if (closed) return;
+                synchronized (appended) {
+                    try {
+                        appended.wait(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            try {
+                if (attempts >= maxAttempts) {
+                    park(batch);
+                    attempts = 0;
+                    continue;
+                }
+                replay(batch);
+                moveCheckpoint(batch.get(batch.size() - 1).next);
+                replayed.addAndGet(batch.size());
+                attempts = 0;
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                failures.incrementAndGet();
+                attempts++;
+                if (closed) return;
+                try {
+                    // the batch was rolled back or SQLite is unavailable, keep the records and try again
+                    Thread.sleep(Math.min(retryDelayMillis << Math.min(attempts - 1, 20), MAX_RETRY_DELAY_MILLIS));
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+    Moves a batch that keeps failing out of the way: its records are appended to the parked file and synced, the rows
+    no longer count as pending, and the checkpoint moves past them.
+     */
+    private void park(List<MappedSegmentLog.Record> batch) throws IOException {
+        FileOutputStream file = new FileOutputStream(parkedFile, true);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            for (MappedSegmentLog.Record record : batch) {
+                out.writeInt(record.payload.length);
+                out.write(record.payload);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        for (MappedSegmentLog.Record record : batch) {
+            try {
+                onReplayed.accept(decode(record.payload));
+            } catch (IOException | RuntimeException e) {
+                // not decodable, so it was never counted as pending
+            }
+        }
+        moveCheckpoint(batch.get(batch.size() - 1).next);
+        parked.addAndGet(batch.size());
+        logger.error("Parked {} shadow writes in {} after {} failed attempts, the consistency checker repairs their rows",
+            batch.size(), parkedFile, maxAttempts);
+    }
+
+    /*
+    The rows parked in the journal's directory, oldest first, so they can be inspected or written again.
+     */
+    public static List<BaseEntity> readParked(File directory) throws IOException {
+        List<BaseEntity> rows = new ArrayList<>();
+        File file = new File(directory, "parked");
+        if (!file.exists()) return rows;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return rows;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                rows.add(decode(payload));
+            }
+        }
+    }
+
+    private void replay(List<MappedSegmentLog.Record> batch) {
+        List<BaseEntity> entities = new ArrayList<>(batch.size());
+        LinkedHashMap<String, BaseEntity> rows = new LinkedHashMap<>();
+        for (MappedSegmentLog.Record record : batch) {
+            try {
+                BaseEntity entity = decode(record.payload);
+                entities.add(entity);
+                rows.put(entity.getClass().getSimpleName() + ":" + entity.getId(), entity); // the latest state wins
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace(); // retrying cannot fix the record, the consistency checker repairs its row
+                failures.incrementAndGet();
+            }
+        }
+        try (TableDataGateway tdg = pool.openGateway()) {
+            tdg.beginBatch(batchSize);
+            tdg.setUpsert(true);
+            for (BaseEntity entity : rows.values()) {
+                if (entity instanceof Owner) tdg.batchInsertOwner((Owner) entity);
+                else if (entity instanceof Pet) tdg.batchInsertPet((Pet) entity);
+                else tdg.batchInsertVisit((Visit) entity);
+            }
+            tdg.setUpsert(false);
+            tdg.endBatch();
+        }
+        for (BaseEntity entity : entities) {
+            onReplayed.accept(entity);
+        }
+    }
+
+    private void moveCheckpoint(long position) throws IOException {
+        MappedSegmentLog.writeCheckpoint(checkpointFile, position);
+        checkpoint = position;
+        log.deleteBefore(position);
+    }
+
+    static byte[] encode(BaseEntity entity) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (entity instanceof Owner) {
+            Owner owner = (Owner) entity;
+            out.writeByte(OWNER);
+            out.writeInt(owner.getId());
+            writeString(out, owner.getFirstName());
+            writeString(out, owner.getLastName());
+            writeString(out, owner.getAddress());
+            writeString(out, owner.getCity());
+            writeString(out, owner.getTelephone());
+        } else if (entity instanceof Pet) {
+            Pet pet = (Pet) entity;
+            out.writeByte(PET);
+            out.writeInt(pet.getId());
+            writeString(out, pet.getName());
+            writeString(out, pet.getBirthDate().toString());
+            out.writeInt(pet.getType().getId());
+            out.writeInt(pet.getOwner().getId());
+        } else if (entity instanceof Visit) {
+            Visit visit = (Visit) entity;
+            out.writeByte(VISIT);
+            out.writeInt(visit.getId());
+            out.writeInt(visit.getPetId());
+            writeString(out, visit.getDate().toString());
+            writeString(out, visit.getDescription());
+        } else {
+            throw new IllegalArgumentException("Cannot journal " + entity.getClass().getSimpleName());
+        }
+        return bytes.toByteArray();
+    }
+
+    static BaseEntity decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        int id = in.readInt();
+        switch (type) {
+            case OWNER:
+                Owner owner = new Owner();
+                owner.setId(id);
+                owner.setFirstName(readString(in));
+                owner.setLastName(readString(in));
+                owner.setAddress(readString(in));
+                owner.setCity(readString(in));
+                owner.setTelephone(readString(in));
+                return owner;
+            case PET:
+                Pet pet = new Pet();
+                pet.setId(id);
+                pet.setName(readString(in));
+                pet.setBirthDate(LocalDate.parse(readString(in)));
+                PetType petType = new PetType();
+                petType.setId(in.readInt());
+                pet.setType(petType);
+                Owner petOwner = new Owner();
+                petOwner.setId(in.readInt());
+                petOwner.addPet(pet);
+                return pet;
+            case VISIT:
+                Visit visit = new Visit();
+                visit.setId(id);
+                visit.setPetId(in.readInt());
+                visit.setDate(LocalDate.parse(readString(in)));
+                visit.setDescription(readString(in));
+                return visit;
+            default:
+                throw new IOException("Unknown outbox record type " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /*
+    Waits until every journaled record is written to SQLite, or the timeout passes. Returns whether the journal drained.
+     */
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (getPendingBytes() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return getPendingBytes() == 0;
+    }
+
+    /*
+    Stops journaling and gives the replayer a few seconds to write what is journaled. Whatever is left is replayed
+    the next time the journal is opened.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flush(5000);
+        replayer.interrupt();
+        sync.shutdownNow();
+        log.close();
+    }
+
+    /*
+    Bytes journaled and not yet written to SQLite.
+     */
+    public long getPendingBytes() {
+        return log.getHead() - checkpoint;
+    }
+
+    public int getSegmentCount() {
+        return log.getSegmentCount();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getParked() {
+        return parked.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("migration.outbox.pending", this, OutboxJournal::getPendingBytes)
+            .description("Journaled bytes not yet written to SQLite").baseUnit("bytes").register(registry);
+        Gauge.builder("migration.outbox.segments", this, OutboxJournal::getSegmentCount)
+            .description("Segment files of the outbox journal").register(registry);
+        FunctionCounter.builder("migration.outbox.appended", records, AtomicLong::get)
+            .description("Shadow writes journaled").register(registry);
+        FunctionCounter.builder("migration.outbox.rejected", rejected, AtomicLong::get)
+            .description("Shadow writes not journaled because the journal was full or failed").register(registry);
+        FunctionCounter.builder("migration.outbox.replayed", replayed, AtomicLong::get)
+            .description("Journaled shadow writes written to SQLite").register(registry);
+        FunctionCounter.builder("migration.outbox.replay-failures", failures, AtomicLong::get)
+            .description("Replay batches that failed and will be retried").register(registry);
+        FunctionCounter.builder("migration.outbox.parked", parked, AtomicLong::get)
+            .description("Journaled shadow writes parked after their batch kept failing").register(registry);
+    }
+}
@@ -0,0 +1,63 @@
+package org.springframework.samples.petclinic.migration;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+A connection borrowed from a SqlDBPool. close() gives it back to the pool, after which the handle can no longer be used.
+ */
+class PooledSqlDB implements SqlDB {
+
+    private final SqlDBPool pool;
+    private volatile SQLiteDB db;
+
+    PooledSqlDB(SqlDBPool pool, SQLiteDB db) {
+        this.pool = pool;
+        this.db = db;
+    }
+
+    private SQLiteDB db() {
+        SQLiteDB current = db;
+        if (current == null) {
+            throw new IllegalStateException("This connection was already returned to the pool");
+        }
+        return current;
+    }
+
+    public void execute(String sql) {
+        db().execute(sql);
+    }
+
+    public ResultSet select(String sql) {
+        return db().select(sql);
+    }
+
+    public boolean insert() {
+        return db().insert();
+    }
+
+    public PreparedStatement prepare(String sql) {
+        return db().prepare(sql);
+    }
+
+    public void setAutoCommit(boolean autoCommit) {
+        db().setAutoCommit(autoCommit);
+    }
+
+    public void commit() throws SQLException {
+        db().commit();
+    }
+
+    public void rollback() {
+        db().rollback();
+    }
+
+    public void close() {
+        SQLiteDB current = db;
+        if (current != null) {
+            db = null;
+            pool.release(this, current);
+        }
+    }
+}
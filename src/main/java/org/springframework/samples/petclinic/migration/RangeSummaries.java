@@ -0,0 +1,97 @@
+package org.springframework.samples.petclinic.migration;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+The range hash trees of the migrated tables, one for the old datastore and one for migration.db, kept between
+consistency checks. The first check of a table builds both trees from full scans. After that, only the leaves marked
+dirty since the last check (by RangeSummaryListener when the application writes an entity) are recomputed, and
+the checker only reads the ranges whose hashes differ.
+
+Rows appended past a table's high-water mark (the highest id at the last check) are rehashed too. Other changes made
+behind the application's back (by hand in either datastore) are only found by a full check, which rebuilds the
+trees: see invalidate().
+ */
+public class RangeSummaries {
+
+    private final int leafWidth;
+    private final Map<String, Summary> tables = new ConcurrentHashMap<>();
+
+    public RangeSummaries(int leafWidth) {
+        this.leafWidth = Math.max(1, leafWidth);
+    }
+
+    public int getLeafWidth() {
+        return leafWidth;
+    }
+
+    Summary of(String tableName) {
+        return tables.computeIfAbsent(tableName, name -> new Summary(leafWidth));
+    }
+
+    /*
+    Called when a row of the table was written, so its range is recomputed by the next check.
+     */
+    public void markDirty(String tableName, Integer id) {
+        if (id != null) {
+            of(tableName).dirtyLeaves.add(id / leafWidth);
+        }
+    }
+
+    /*
+    Forgets every tree, so the next check of each table is a full one. Used after the forklift rewrote migration.db.
+     */
+    public void invalidate() {
+        for (Summary summary : tables.values()) {
+            summary.built = false;
+        }
+    }
+
+    /*
+    Per table: whether the trees are built, the high-water mark, when it was last checked and the ranges waiting to be rehashed.
+     */
+    public Map<String, Map<String, Object>> getStatus() {
+        Map<String, Map<String, Object>> status = new TreeMap<>();
+        tables.forEach((tableName, summary) -> {
+            Map<String, Object> table = new LinkedHashMap<>();
+            table.put("built", summary.built);
+            table.put("highWaterMark", summary.highWaterMark);
+            table.put("lastChecked", summary.lastChecked > 0 ? Instant.ofEpochMilli(summary.lastChecked).toString() : null);
+            table.put("dirtyRanges", summary.dirtyLeaves.size());
+            status.put(tableName, table);
+        });
+        return status;
+    }
+
+    static class Summary {
+        final RangeTree legacy;
+        final RangeTree migrated;
+        final Set<Integer> dirtyLeaves = ConcurrentHashMap.newKeySet();
+        volatile boolean built = false;
+        volatile int highWaterMark = 0; // highest id in either datastore at the last check
+        volatile long lastChecked = 0;
+
+        Summary(int leafWidth) {
+            this.legacy = new RangeTree(leafWidth);
+            this.migrated = new RangeTree(leafWidth);
+        }
+
+        /*
+        Takes the leaves marked dirty so far; marks arriving while they are recomputed stay for the next check.
+         */
+        List<Integer> drainDirtyLeaves() {
+            List<Integer> leaves = new ArrayList<>();
+            for (Integer leaf : dirtyLeaves) {
+                if (dirtyLeaves.remove(leaf)) leaves.add(leaf);
+            }
+            return leaves;
+        }
+    }
+}
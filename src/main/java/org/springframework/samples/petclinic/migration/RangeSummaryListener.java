@@ -0,0 +1,35 @@
+package org.springframework.samples.petclinic.migration;
+
+import org.springframework.samples.petclinic.model.BaseEntity;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.visit.Visit;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/*
+JPA entity listener marking the id range of every owner, pet and visit written to the old datastore as dirty in the
+RangeSummaries, so the next consistency check looks at that range again. Hibernate creates the listener itself, the
+summaries are handed over by MigrationConfiguration.
+ */
+public class RangeSummaryListener {
+
+    private static volatile RangeSummaries summaries;
+
+    static void register(RangeSummaries rangeSummaries) {
+        summaries = rangeSummaries;
+    }
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    public void written(BaseEntity entity) {
+        RangeSummaries current = summaries;
+        if (current == null) return;
+        if (entity instanceof Owner) current.markDirty("owners", entity.getId());
+        else if (entity instanceof Pet) current.markDirty("pets", entity.getId());
+        else if (entity instanceof Visit) current.markDirty("visits", entity.getId());
+    }
+}
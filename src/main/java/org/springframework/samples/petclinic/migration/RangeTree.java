@@ -0,0 +1,96 @@
+package org.springframework.samples.petclinic.migration;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/*
+Hash tree over the id ranges of a table. Leaf i covers ids [i * leafWidth, (i + 1) * leafWidth) and holds the sum of
+the fingerprints of the rows in that range; every inner node holds the sum of its two children. Sums make a node
+independent of the order its rows were read in, and changing one leaf only rewrites the nodes above it.
+Nodes are stored heap style: the root is nodes[1] and the children of node n are 2n and 2n + 1.
+ */
+class RangeTree {
+
+    private final int leafWidth;
+    private int capacity = 1; // number of leaves, a power of two
+    private long[] nodes = new long[2];
+
+    RangeTree(int leafWidth) {
+        this.leafWidth = Math.max(1, leafWidth);
+    }
+
+    int getLeafWidth() {
+        return leafWidth;
+    }
+
+    int leafOf(int id) {
+        return id / leafWidth;
+    }
+
+    int firstId(int leaf) {
+        return leaf * leafWidth;
+    }
+
+    int lastId(int leaf) {
+        return (leaf + 1) * leafWidth - 1;
+    }
+
+    long getRoot() {
+        return nodes[1];
+    }
+
+    long getLeaf(int leaf) {
+        return leaf < capacity ? nodes[capacity + leaf] : 0;
+    }
+
+    void setLeaf(int leaf, long hash) {
+        grow(leaf + 1);
+        int node = capacity + leaf;
+        nodes[node] = hash;
+        for (node /= 2; node >= 1; node /= 2) {
+            nodes[node] = nodes[2 * node] + nodes[2 * node + 1];
+        }
+    }
+
+    void clear() {
+        capacity = 1;
+        nodes = new long[2];
+    }
+
+    private void grow(int leaves) {
+        if (leaves <= capacity) return;
+        int newCapacity = capacity;
+        while (newCapacity < leaves) newCapacity *= 2;
+        long[] newNodes = new long[2 * newCapacity];
+        System.arraycopy(nodes, capacity, newNodes, newCapacity, capacity);
+        for (int node = newCapacity - 1; node >= 1; node--) {
+            newNodes[node] = newNodes[2 * node] + newNodes[2 * node + 1];
+        }
+        capacity = newCapacity;
+        nodes = newNodes;
+    }
+
+    /*
+    The leaves whose hashes differ between the two trees, found by descending only into the nodes that differ.
+     */
+    static List<Integer> diff(RangeTree left, RangeTree right) {
+        left.grow(right.capacity);
+        right.grow(left.capacity);
+        List<Integer> leaves = new ArrayList<>();
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(1);
+        while (!pending.isEmpty()) {
+            int node = pending.pop();
+            if (left.nodes[node] == right.nodes[node]) continue;
+            if (node >= left.capacity) {
+                leaves.add(node - left.capacity);
+            } else {
+                pending.push(2 * node + 1);
+                pending.push(2 * node);
+            }
+        }
+        return leaves;
+    }
+}
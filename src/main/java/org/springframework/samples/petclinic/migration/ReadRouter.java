@@ -0,0 +1,326 @@
+package org.springframework.samples.petclinic.migration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.samples.petclinic.model.BaseEntity;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetType;
+import org.springframework.samples.petclinic.vet.Specialty;
+import org.springframework.samples.petclinic.vet.Vet;
+import org.springframework.samples.petclinic.visit.Visit;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+Sends percent of the owner, pet and vet lookups to SQLite and the rest to the legacy repositories. The store is picked
+by hashing the entity id into one of 100 buckets, so an entity is always read from the same store, and raising the
+percentage only moves more entities over. The vet list has no id to hash: each request for it is sent to SQLite with
+a probability of percent.
+
+A SQLite read runs on a small executor and is given timeoutMillis. When it fails, times out, is rejected because the
+executor is busy, or does not find the row, the lookup falls back to the legacy store, so a ramp can be watched on
+the migration.reads metrics and turned back without errors. Legacy reads are handed to the ShadowReader as before.
+
+The shadow writes reach SQLite asynchronously, so while a write of an owner, one of its pets or their visits is
+still pending in the ShadowWriteQueue the lookup is served by the legacy store, which a request that just made the
+change must see.
+ */
+public class ReadRouter implements MeterBinder, AutoCloseable {
+
+    private final SqlDBPool pool;
+    private final ShadowReader shadowReader;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor executor;
+    private volatile int percent;
+
+    private final LongAdder legacyReads = new LongAdder();
+    private final LongAdder sqliteReads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder pendingWrites = new LongAdder();
+    private volatile Timer sqliteLatency;
+    private volatile ShadowWriteQueue shadowWrites;
+
+    public ReadRouter(SqlDBPool pool, ShadowReader shadowReader, int percent, long timeoutMillis, int threads) {
+        this.pool = pool;
+        this.shadowReader = shadowReader;
+        this.timeoutMillis = timeoutMillis;
+        setPercent(percent);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, threads) * 4), runnable -> {
+                Thread thread = new Thread(runnable, "read-router-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    public void setShadowWrites(ShadowWriteQueue shadowWrites) {
+        this.shadowWrites = shadowWrites;
+    }
+
+    public void setPercent(int percent) {
+        this.percent = Math.max(0, Math.min(100, percent));
+    }
+
+    public int getPercent() {
+        return percent;
+    }
+
+    /*
+    The bucket of an id, 0 to 99: the murmur3 finalizer spreads consecutive ids over the buckets.
+     */
+    static int bucket(int id) {
+        int hash = id;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, 100);
+    }
+
+    boolean toSqlite(int id) {
+        int share = percent;
+        return share > 0 && bucket(id) < share;
+    }
+
+    /*
+    Whether to send a read without an id to SQLite, drawn for each request.
+     */
+    boolean sampleToSqlite() {
+        int share = percent;
+        return share > 0 && ThreadLocalRandom.current().nextInt(100) < share;
+    }
+
+    public Owner owner(int ownerId, Supplier<Owner> legacy) {
+        if (toSqlite(ownerId) && !writePending(Owner.class, ownerId)) {
+            Owner owner = fromSqlite(() -> readOwner(ownerId));
+            if (owner != null && owner.getPets().stream().noneMatch(pet -> writePending(Pet.class, pet.getId()))) return owner;
+        }
+        long start = System.nanoTime();
+        Owner owner = legacy.get();
+        legacyReads.increment();
+        shadowReader.owner(owner, System.nanoTime() - start);
+        return owner;
+    }
+
+    public Pet pet(int petId, Supplier<Pet> legacy) {
+        if (toSqlite(petId) && !writePending(Pet.class, petId)) {
+            Pet pet = fromSqlite(() -> readPet(petId));
+            if (pet != null && !writePending(Owner.class, pet.getOwner().getId())) return pet;
+        }
+        long start = System.nanoTime();
+        Pet pet = legacy.get();
+        legacyReads.increment();
+        shadowReader.pet(pet, System.nanoTime() - start);
+        return pet;
+    }
+
+    public Collection<Vet> vets(Supplier<Collection<Vet>> legacy) {
+        if (sampleToSqlite()) {
+            Collection<Vet> vets = fromSqlite(this::readVets);
+            if (vets != null) return vets;
+        }
+        long start = System.nanoTime();
+        Collection<Vet> vets = legacy.get();
+        legacyReads.increment();
+        shadowReader.vets(vets, System.nanoTime() - start);
+        return vets;
+    }
+
+    /*
+    Whether a shadow write of the row has not been committed yet, counting the fallback when it has not.
+     */
+    private boolean writePending(Class<? extends BaseEntity> type, Integer id) {
+        ShadowWriteQueue writes = shadowWrites;
+        if (writes == null || !writes.isPending(type, id)) return false;
+        pendingWrites.increment();
+        return true;
+    }
+
+    /*
+    Runs the read with the timeout. Returns null, after counting why, when the lookup has to fall back.
+     */
+    private <T> T fromSqlite(Callable<T> read) {
+        long start = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(read);
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            return null;
+        }
+        try {
+            T result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (result == null) {
+                notFound.increment();
+                return null;
+            }
+            sqliteReads.increment();
+            Timer timer = sqliteLatency;
+            if (timer != null) timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.increment();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            failures.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.increment();
+        }
+        return null;
+    }
+
+    Owner readOwner(int ownerId) throws SQLException {
+        try (TableDataGateway tdg = pool.openGateway()) {
+            ResultSet row = tdg.getById(ownerId, "owners");
+            if (row == null || !row.next()) return null;
+            Owner owner = new Owner();
+            owner.setId(ownerId);
+            owner.setFirstName(row.getString("first_name"));
+            owner.setLastName(row.getString("last_name"));
+            owner.setAddress(row.getString("address"));
+            owner.setCity(row.getString("city"));
+            owner.setTelephone(row.getString("telephone"));
+            ResultSet pets = tdg.getPetsWithTypeByOwnerId(ownerId);
+            while (pets != null && pets.next()) {
+                Pet pet = pet(pets);
+                Integer petId = pet.getId();
+                pet.setId(null); // addPet only takes new pets
+                owner.addPet(pet);
+                pet.setId(petId);
+                addVisits(tdg, pet);
+            }
+            return owner;
+        }
+    }
+
+    Pet readPet(int petId) throws SQLException {
+        try (TableDataGateway tdg = pool.openGateway()) {
+            ResultSet row = tdg.getPetWithType(petId);
+            if (row == null || !row.next()) return null;
+            Pet pet = pet(row);
+            int ownerId = row.getInt("owner_id");
+            ResultSet ownerRow = tdg.getById(ownerId, "owners");
+            Owner owner = new Owner();
+            owner.setId(ownerId);
+            if (ownerRow != null && ownerRow.next()) {
+                owner.setFirstName(ownerRow.getString("first_name"));
+                owner.setLastName(ownerRow.getString("last_name"));
+                owner.setAddress(ownerRow.getString("address"));
+                owner.setCity(ownerRow.getString("city"));
+                owner.setTelephone(ownerRow.getString("telephone"));
+            }
+            owner.addPet(pet); // sets the pet's owner, a pet with an id is not added to the owner's pets
+            addVisits(tdg, pet);
+            return pet;
+        }
+    }
+
+    Collection<Vet> readVets() throws SQLException {
+        try (TableDataGateway tdg = pool.openGateway()) {
+            List<Vet> vets = new ArrayList<>();
+            ResultSet rows = tdg.getVetsWithSpecialties();
+            Vet vet = null;
+            while (rows != null && rows.next()) {
+                int vetId = rows.getInt("id");
+                if (vet == null || vet.getId() != vetId) {
+                    vet = new Vet();
+                    vet.setId(vetId);
+                    vet.setFirstName(rows.getString("first_name"));
+                    vet.setLastName(rows.getString("last_name"));
+                    vets.add(vet);
+                }
+                int specialtyId = rows.getInt("specialty_id");
+                if (!rows.wasNull()) {
+                    Specialty specialty = new Specialty();
+                    specialty.setId(specialtyId);
+                    specialty.setName(rows.getString("specialty_name"));
+                    vet.addSpecialty(specialty);
+                }
+            }
+            return vets.isEmpty() ? null : vets;
+        }
+    }
+
+    private static Pet pet(ResultSet row) throws SQLException {
+        Pet pet = new Pet();
+        pet.setId(row.getInt("id"));
+        pet.setName(row.getString("name"));
+        String birthDate = row.getString("birth_date");
+        pet.setBirthDate(birthDate == null ? null : LocalDate.parse(birthDate));
+        PetType type = new PetType();
+        type.setId(row.getInt("type_id"));
+        type.setName(row.getString("type_name"));
+        pet.setType(type);
+        return pet;
+    }
+
+    private static void addVisits(TableDataGateway tdg, Pet pet) throws SQLException {
+        ResultSet visits = tdg.getVisitsByPetId(pet.getId());
+        while (visits != null && visits.next()) {
+            Visit visit = new Visit();
+            visit.setId(visits.getInt("id"));
+            String date = visits.getString("visit_date");
+            visit.setDate(date == null ? null : LocalDate.parse(date));
+            visit.setDescription(visits.getString("description"));
+            pet.addVisit(visit);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("migration.reads.routed", legacyReads, LongAdder::sum).tag("store", ShadowReader.LEGACY)
+            .description("Lookups served by each store").register(registry);
+        FunctionCounter.builder("migration.reads.routed", sqliteReads, LongAdder::sum).tag("store", ShadowReader.SQLITE)
+            .description("Lookups served by each store").register(registry);
+        FunctionCounter.builder("migration.reads.fallbacks", failures, LongAdder::sum).tag("reason", "error")
+            .description("Lookups routed to SQLite and served by the legacy store").register(registry);
+        FunctionCounter.builder("migration.reads.fallbacks", timeouts, LongAdder::sum).tag("reason", "timeout")
+            .description("Lookups routed to SQLite and served by the legacy store").register(registry);
+        FunctionCounter.builder("migration.reads.fallbacks", rejections, LongAdder::sum).tag("reason", "busy")
+            .description("Lookups routed to SQLite and served by the legacy store").register(registry);
+        FunctionCounter.builder("migration.reads.fallbacks", notFound, LongAdder::sum).tag("reason", "not-found")
+            .description("Lookups routed to SQLite and served by the legacy store").register(registry);
+        FunctionCounter.builder("migration.reads.fallbacks", pendingWrites, LongAdder::sum).tag("reason", "pending-write")
+            .description("Lookups routed to SQLite and served by the legacy store").register(registry);
+        Gauge.builder("migration.reads.percent", this, ReadRouter::getPercent)
+            .description("Percentage of the lookups routed to SQLite").register(registry);
+        sqliteLatency = Timer.builder("migration.reads.latency").tag("store", ShadowReader.SQLITE)
+            .description("Time to serve a lookup from SQLite, including the hand-off to the executor")
+            .publishPercentiles(0.5, 0.95, 0.99)
+            .publishPercentileHistogram()
+            .register(registry);
+    }
+}
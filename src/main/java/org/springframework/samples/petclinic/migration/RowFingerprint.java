@@ -0,0 +1,210 @@
+package org.springframework.samples.petclinic.migration;
+
+import org.springframework.samples.petclinic.model.BaseEntity;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetType;
+import org.springframework.samples.petclinic.vet.Vet;
+import org.springframework.samples.petclinic.visit.Visit;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/*
+A stable 64-bit hash of the columns of a row, computed the same way on the JPA entities and on the SQLite rows, so
+two rows can be compared with a single long comparison and the columns only read when the fingerprints differ.
+
+Columns are hashed with FNV-1a in table order, id first. Every column starts with a null/value tag and ends with its
+length, so ("ab", "c") and ("a", "bc") differ. Text is hashed char by char, numbers by value, and dates as their
+ISO-8601 text (which is how they are stored in SQLite), without building intermediate strings. A final avalanche
+step spreads the bits so fingerprints can also be added up (see the range summaries).
+ */
+public final class RowFingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private RowFingerprint() {
+    }
+
+    public static long of(Owner owner) {
+        long hash = number(FNV_OFFSET, owner.getId());
+        hash = text(hash, owner.getFirstName());
+        hash = text(hash, owner.getLastName());
+        hash = text(hash, owner.getAddress());
+        hash = text(hash, owner.getCity());
+        hash = text(hash, owner.getTelephone());
+        return finish(hash);
+    }
+
+    public static long of(Pet pet) {
+        long hash = number(FNV_OFFSET, pet.getId());
+        hash = text(hash, pet.getName());
+        hash = date(hash, pet.getBirthDate());
+        hash = number(hash, pet.getType() == null ? null : pet.getType().getId());
+        hash = number(hash, pet.getOwner() == null ? null : pet.getOwner().getId());
+        return finish(hash);
+    }
+
+    public static long of(Visit visit) {
+        long hash = number(FNV_OFFSET, visit.getId());
+        hash = number(hash, visit.getPetId());
+        hash = date(hash, visit.getDate());
+        hash = text(hash, visit.getDescription());
+        return finish(hash);
+    }
+
+    public static long of(Vet vet) {
+        long hash = number(FNV_OFFSET, vet.getId());
+        hash = text(hash, vet.getFirstName());
+        hash = text(hash, vet.getLastName());
+        return finish(hash);
+    }
+
+    public static long of(PetType type) {
+        long hash = number(FNV_OFFSET, type.getId());
+        hash = text(hash, type.getName());
+        return finish(hash);
+    }
+
+    /*
+    The fingerprint of any of the migrated entities.
+     */
+    public static long of(BaseEntity entity) {
+        if (entity instanceof Owner) return of((Owner) entity);
+        if (entity instanceof Pet) return of((Pet) entity);
+        if (entity instanceof Visit) return of((Visit) entity);
+        if (entity instanceof Vet) return of((Vet) entity);
+        if (entity instanceof PetType) return of((PetType) entity);
+        throw new IllegalArgumentException("No fingerprint for " + entity.getClass().getSimpleName());
+    }
+
+    /*
+    The methods below read the row the result set is positioned on, they need the table's columns by name.
+     */
+    public static long owner(ResultSet row) throws SQLException {
+        long hash = number(FNV_OFFSET, row, "id");
+        hash = text(hash, row.getString("first_name"));
+        hash = text(hash, row.getString("last_name"));
+        hash = text(hash, row.getString("address"));
+        hash = text(hash, row.getString("city"));
+        hash = text(hash, row.getString("telephone"));
+        return finish(hash);
+    }
+
+    public static long pet(ResultSet row) throws SQLException {
+        long hash = number(FNV_OFFSET, row, "id");
+        hash = text(hash, row.getString("name"));
+        hash = text(hash, row.getString("birth_date"));
+        hash = number(hash, row, "type_id");
+        hash = number(hash, row, "owner_id");
+        return finish(hash);
+    }
+
+    public static long visit(ResultSet row) throws SQLException {
+        long hash = number(FNV_OFFSET, row, "id");
+        hash = number(hash, row, "pet_id");
+        hash = text(hash, row.getString("visit_date"));
+        hash = text(hash, row.getString("description"));
+        return finish(hash);
+    }
+
+    public static long vet(ResultSet row) throws SQLException {
+        long hash = number(FNV_OFFSET, row, "id");
+        hash = text(hash, row.getString("first_name"));
+        hash = text(hash, row.getString("last_name"));
+        return finish(hash);
+    }
+
+    public static long type(ResultSet row) throws SQLException {
+        long hash = number(FNV_OFFSET, row, "id");
+        hash = text(hash, row.getString("name"));
+        return finish(hash);
+    }
+
+    /*
+    The fingerprint of a row of one of the migrated tables.
+     */
+    public static long row(String tableName, ResultSet row) throws SQLException {
+        switch (tableName) {
+            case "owners": return owner(row);
+            case "pets": return pet(row);
+            case "visits": return visit(row);
+            case "vets": return vet(row);
+            case "types": return type(row);
+            default: throw new IllegalArgumentException("No fingerprint for table " + tableName);
+        }
+    }
+
+    private static long octet(long hash, int octet) {
+        return (hash ^ (octet & 0xff)) * FNV_PRIME;
+    }
+
+    private static long length(long hash, int length) {
+        hash = octet(hash, length);
+        hash = octet(hash, length >>> 8);
+        hash = octet(hash, length >>> 16);
+        return octet(hash, length >>> 24);
+    }
+
+    private static long text(long hash, String value) {
+        if (value == null) return octet(hash, 0);
+        hash = octet(hash, 1);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = octet(octet(hash, c), c >>> 8);
+        }
+        return length(hash, value.length());
+    }
+
+    private static long number(long hash, Integer value) {
+        if (value == null) return octet(hash, 0);
+        return number(octet(hash, 1), value.longValue());
+    }
+
+    private static long number(long hash, ResultSet row, String column) throws SQLException {
+        long value = row.getLong(column);
+        if (row.wasNull()) return octet(hash, 0);
+        return number(octet(hash, 1), value);
+    }
+
+    private static long number(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = octet(hash, (int) (value >>> (8 * i)));
+        }
+        return length(hash, 8);
+    }
+
+    /*
+    Same hash as text(hash, date.toString()) for four digit years, without building the string.
+     */
+    private static long date(long hash, LocalDate date) {
+        if (date == null) return octet(hash, 0);
+        int year = date.getYear();
+        if (year < 1000 || year > 9999) return text(hash, date.toString());
+        hash = octet(hash, 1);
+        hash = digits(hash, year, 4);
+        hash = octet(octet(hash, '-'), 0);
+        hash = digits(hash, date.getMonthValue(), 2);
+        hash = octet(octet(hash, '-'), 0);
+        hash = digits(hash, date.getDayOfMonth(), 2);
+        return length(hash, 10);
+    }
+
+    private static long digits(long hash, int value, int count) {
+        for (int divisor = count == 4 ? 1000 : 10; divisor > 0; divisor /= 10) {
+            hash = octet(octet(hash, '0' + (value / divisor) % 10), 0);
+        }
+        return hash;
+    }
+
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -2,27 +2,38 @@ package org.springframework.samples.petclinic.migration;
 
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class SQLiteDB  implements SqlDB {
     Connection conn = null;
     Statement statement = null;
+    Map<String, PreparedStatement> preparedStatements = new HashMap<>();
+    List<Statement> openStatements = new ArrayList<>();
+
+    public static final String MIGRATION_DB = "migration.db";
 
     /*
     If migrations.db does not exist at the root then this file will create it for you.
+    Connections to migration.db use the ONLINE pragma profile.
      */
     public SQLiteDB(){
-        try{
-            Class.forName("org.sqlite.JDBC");
-            this.conn = DriverManager.getConnection("jdbc:sqlite:migration.db");
-        } catch (Exception e){
-            //e.printStackTrace();
-        }
+        this(MIGRATION_DB, SQLitePragmaProfile.ONLINE);
     }
 
     public SQLiteDB(String dbLocation){
+        this(dbLocation, SQLitePragmaProfile.DEFAULT);
+    }
+
+    /*
+    The pragmas of the profile (journal mode, synchronous, cache, mmap, ...) are applied by the driver as the connection opens.
+     */
+    public SQLiteDB(String dbLocation, SQLitePragmaProfile profile){
         try{
             Class.forName("org.sqlite.JDBC");
-            this.conn = DriverManager.getConnection("jdbc:sqlite:" + dbLocation);
+            this.conn = DriverManager.getConnection("jdbc:sqlite:" + dbLocation, profile.toConfig().toProperties());
         } catch (Exception e){
             //e.printStackTrace();
         }
@@ -33,7 +44,7 @@ public class SQLiteDB  implements SqlDB {
      */
     public boolean insert(){
         try {
-            this.statement = conn.createStatement();
+            createStatement();
             boolean inserted = statement.execute("INSERT INTO types (name) VALUES ('skander')");
             return inserted;
         } catch (SQLException e) {
@@ -47,7 +58,7 @@ public class SQLiteDB  implements SqlDB {
      */
     public void execute(String sql){
         try{
-            this.statement = conn.createStatement();
+            createStatement();
             //System.out.println(sql);
             statement.execute(sql);
         } catch (Exception e){
@@ -60,7 +71,7 @@ public class SQLiteDB  implements SqlDB {
      */
     public ResultSet select(String sql) {
         try{
-            this.statement = conn.createStatement();
+            createStatement();
             ResultSet resultSet = statement.executeQuery(sql);
             return resultSet;
         } catch (Exception e){
@@ -69,8 +80,101 @@ public class SQLiteDB  implements SqlDB {
         return null;
     }
 
+    /*
+    Statements stay open as long as the result sets callers are iterating, they are closed by reset() or close().
+     */
+    private Statement createStatement() throws SQLException {
+        this.statement = conn.createStatement();
+        openStatements.add(this.statement);
+        return this.statement;
+    }
+
+    /*
+    Prepared statements are parsed once and cached per connection, so repeated writes only bind parameters.
+     */
+    public PreparedStatement prepare(String sql) {
+        PreparedStatement preparedStatement = preparedStatements.get(sql);
+        if (preparedStatement == null){
+            try{
+                preparedStatement = conn.prepareStatement(sql);
+                preparedStatements.put(sql, preparedStatement);
+            } catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+        return preparedStatement;
+    }
+
+    public void setAutoCommit(boolean autoCommit) {
+        try{
+            conn.setAutoCommit(autoCommit);
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    /*
+    Unlike the other methods, a failed commit is thrown: the caller has to know its rows were not written.
+     */
+    public void commit() throws SQLException {
+        if (conn == null) throw new SQLException("No connection to the database");
+        if (!conn.getAutoCommit()) conn.commit();
+    }
+
+    public void rollback() {
+        try{
+            if (conn != null && !conn.getAutoCommit()) conn.rollback();
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    boolean isOpen() {
+        try {
+            return conn != null && !conn.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /*
+    Brings a pooled connection back to a clean state: open statements (and their result sets) are closed and an
+    unfinished transaction is rolled back. The prepared statement cache is kept.
+     */
+    void reset() {
+        closeStatements();
+        try {
+            if (conn != null && !conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void closeStatements() {
+        for (Statement openStatement : openStatements) {
+            try {
+                openStatement.close();
+            } catch (SQLException e) {
+                //e.printStackTrace();
+            }
+        }
+        openStatements.clear();
+        this.statement = null;
+    }
 
     public void close(){
+        closeStatements();
+        for (PreparedStatement preparedStatement : preparedStatements.values()){
+            try {
+                preparedStatement.close();
+            } catch (SQLException e) {
+                //e.printStackTrace();
+            }
+        }
+        preparedStatements.clear();
         if (this.conn != null){
             try {
                 this.conn.close();
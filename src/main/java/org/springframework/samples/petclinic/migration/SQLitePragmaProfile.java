@@ -0,0 +1,59 @@
+package org.springframework.samples.petclinic.migration;
+
+import org.sqlite.SQLiteConfig;
+
+/*
+Pragmas applied by SQLiteDB when a connection opens. The profiles used for the forklift and for the shadow
+reads/writes of the controllers are set in application.properties (migration.sqlite.forklift-profile / shadow-profile)
+and handed by MigrationConfiguration to the Driver and the SqlDBPool.
+ */
+public enum SQLitePragmaProfile {
+
+    /*
+    SQLite defaults: rollback journal, synchronous FULL, 2MB page cache, no mmap.
+     */
+    DEFAULT(null, null, null, null, null, null),
+
+    /*
+    Forklift: WAL without fsync on commit, a 256MB page cache, 1GB of mmap and big pages. An application crash cannot
+    corrupt the database; an OS crash can lose the last transactions, which a resumed forklift writes again.
+     */
+    BULK_LOAD(SQLiteConfig.JournalMode.WAL, SQLiteConfig.SynchronousMode.OFF, -262144, 1073741824L, SQLiteConfig.TempStore.MEMORY, 8192),
+
+    /*
+    Shadow traffic: WAL with synchronous NORMAL (fsync at checkpoints, not on every commit), so readers never block the
+    writer, with a 16MB page cache and 256MB of mmap.
+     */
+    ONLINE(SQLiteConfig.JournalMode.WAL, SQLiteConfig.SynchronousMode.NORMAL, -16384, 268435456L, SQLiteConfig.TempStore.MEMORY, 4096);
+
+    private final SQLiteConfig.JournalMode journalMode;
+    private final SQLiteConfig.SynchronousMode synchronous;
+    private final Integer cacheSize; // pages, or KiB when negative
+    private final Long mmapSize; // bytes
+    private final SQLiteConfig.TempStore tempStore;
+    private final Integer pageSize; // bytes, only takes effect on a new database
+
+    SQLitePragmaProfile(SQLiteConfig.JournalMode journalMode, SQLiteConfig.SynchronousMode synchronous, Integer cacheSize,
+                        Long mmapSize, SQLiteConfig.TempStore tempStore, Integer pageSize) {
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.cacheSize = cacheSize;
+        this.mmapSize = mmapSize;
+        this.tempStore = tempStore;
+        this.pageSize = pageSize;
+    }
+
+    /*
+    The driver configuration that sets these pragmas on every connection it opens.
+     */
+    public SQLiteConfig toConfig() {
+        SQLiteConfig config = new SQLiteConfig();
+        if (pageSize != null) config.setPageSize(pageSize);
+        if (journalMode != null) config.setJournalMode(journalMode);
+        if (synchronous != null) config.setSynchronous(synchronous);
+        if (cacheSize != null) config.setCacheSize(cacheSize);
+        if (mmapSize != null) config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(mmapSize));
+        if (tempStore != null) config.setTempStore(tempStore);
+        return config;
+    }
+}
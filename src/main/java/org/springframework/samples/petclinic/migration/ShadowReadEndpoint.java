@@ -0,0 +1,38 @@
+package org.springframework.samples.petclinic.migration;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+/manage/shadowreads: the ShadowReader's counters and latencies, and per table how the 95th percentile read latency of
+SQLite compares with the legacy store's (below 1 means SQLite is faster). The raw meters are under
+/manage/metrics/migration.shadow-reads.*.
+ */
+@Endpoint(id = "shadowreads")
+class ShadowReadEndpoint {
+
+    private final ShadowReader shadowReader;
+
+    ShadowReadEndpoint(ShadowReader shadowReader) {
+        this.shadowReader = shadowReader;
+    }
+
+    @ReadOperation
+    public Map<String, Object> shadowReads() {
+        Map<String, Object> report = new LinkedHashMap<>(shadowReader.getStatus());
+        Map<String, Object> ratios = new TreeMap<>();
+        shadowReader.getLatencies().forEach((table, stores) -> {
+            Map<String, Object> legacy = stores.get(ShadowReader.LEGACY);
+            Map<String, Object> sqlite = stores.get(ShadowReader.SQLITE);
+            if (legacy == null || sqlite == null || !(legacy.get("p95") instanceof Double) || !(sqlite.get("p95") instanceof Double)) return;
+            double legacyP95 = (Double) legacy.get("p95");
+            if (legacyP95 > 0) ratios.put(table, (Double) sqlite.get("p95") / legacyP95);
+        });
+        report.put("sqliteToLegacyP95", ratios);
+        return report;
+    }
+}
@@ -0,0 +1,347 @@
+package org.springframework.samples.petclinic.migration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.springframework.samples.petclinic.model.BaseEntity;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetType;
+import org.springframework.samples.petclinic.vet.Vet;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Shadow reads of the controllers. A sampleRate share of the reads copies the columns of the rows the legacy store
+returned and hands them to a small executor, which reads the same rows from SQLite and counts the columns that differ
+per table and column. Reads that are not sampled cost a random number; sampled reads cost the copy. When the
+executor's queue is full the read is skipped rather than waited for.
+
+The copy may be older than SQLite by the time it is compared, so it is never written back: a row that differs is
+marked dirty in the RangeSummaries, and the next consistency check repairs it from a fresh read of both stores. A row
+with a shadow write still pending in the ShadowWriteQueue is not compared, as SQLite is known to be behind.
+
+Once bound to a registry it publishes, under migration.shadow-reads, a latency timer per table and store (legacy, as
+timed by the controller, and sqlite) with percentiles and histogram buckets, so both stores are measured on the same
+sampled reads, and mismatch counters per table and column.
+ */
+public class ShadowReader implements MeterBinder, AutoCloseable {
+
+    static final String LEGACY = "legacy";
+    static final String SQLITE = "sqlite";
+
+    /*
+    The columns of a legacy row, as the text SQLite stores them.
+     */
+    static class Row {
+        final Integer id;
+        final long fingerprint;
+        final Map<String, String> columns = new LinkedHashMap<>();
+
+        Row(BaseEntity entity) {
+            this.id = entity.getId();
+            this.fingerprint = RowFingerprint.of(entity);
+        }
+
+        Row column(String name, Object value) {
+            columns.put(name, value == null ? null : value.toString());
+            return this;
+        }
+    }
+
+    private final SqlDBPool pool;
+    private final double sampleRate;
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentHashMap<String, LongAdder> mismatches = new ConcurrentHashMap<>(); // by table.column
+    private final ConcurrentHashMap<String, Timer> latencies = new ConcurrentHashMap<>(); // by table:store
+    private final LongAdder compared = new LongAdder();
+    private final LongAdder missing = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder pendingWrites = new LongAdder();
+    private volatile MeterRegistry registry;
+    private volatile RangeSummaries rangeSummaries;
+    private volatile ShadowWriteQueue shadowWrites;
+
+    public ShadowReader(SqlDBPool pool, double sampleRate, int threads, int queueCapacity) {
+        this.pool = pool;
+        this.sampleRate = sampleRate;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+                Thread thread = new Thread(runnable, "shadow-reader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, (runnable, rejectedBy) -> skipped.increment());
+    }
+
+    /*
+    Trees the ranges of differing rows are marked dirty in, for the consistency checker.
+     */
+    public void setRangeSummaries(RangeSummaries rangeSummaries) {
+        this.rangeSummaries = rangeSummaries;
+    }
+
+    /*
+    Queue whose pending writes the owner and pet comparisons wait out.
+     */
+    public void setShadowWrites(ShadowWriteQueue shadowWrites) {
+        this.shadowWrites = shadowWrites;
+    }
+
+    private boolean sampled() {
+        return sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    /*
+    The methods below take the rows the legacy store returned and the nanoseconds it took to read them.
+     */
+    public void owner(Owner owner, long legacyNanos) {
+        if (owner == null || !sampled()) return;
+        List<Row> rows = new ArrayList<>();
+        rows.add(row(owner));
+        executor.execute(() -> compareById("owners", Owner.class, rows, legacyNanos));
+    }
+
+    public void pet(Pet pet, long legacyNanos) {
+        if (pet == null || !sampled()) return;
+        List<Row> rows = new ArrayList<>();
+        rows.add(row(pet));
+        executor.execute(() -> compareById("pets", Pet.class, rows, legacyNanos));
+    }
+
+    public void vets(Collection<Vet> vets, long legacyNanos) {
+        if (!sampled()) return;
+        List<Row> rows = new ArrayList<>();
+        for (Vet vet : vets) {
+            rows.add(new Row(vet).column("first_name", vet.getFirstName()).column("last_name", vet.getLastName()));
+        }
+        executor.execute(() -> compareTable("vets", rows, legacyNanos));
+    }
+
+    public void petTypes(Collection<PetType> types, long legacyNanos) {
+        if (!sampled()) return;
+        List<Row> rows = new ArrayList<>();
+        for (PetType type : types) {
+            rows.add(new Row(type).column("name", type.getName()));
+        }
+        executor.execute(() -> compareTable("types", rows, legacyNanos));
+    }
+
+    static Row row(Owner owner) {
+        return new Row(owner)
+            .column("first_name", owner.getFirstName())
+            .column("last_name", owner.getLastName())
+            .column("address", owner.getAddress())
+            .column("city", owner.getCity())
+            .column("telephone", owner.getTelephone());
+    }
+
+    static Row row(Pet pet) {
+        return new Row(pet)
+            .column("name", pet.getName())
+            .column("birth_date", pet.getBirthDate())
+            .column("type_id", pet.getType() == null ? null : pet.getType().getId())
+            .column("owner_id", pet.getOwner() == null ? null : pet.getOwner().getId());
+    }
+
+    /*
+    Reads each row by id, for lookups of single rows.
+     */
+    void compareById(String tableName, Class<? extends BaseEntity> type, List<Row> rows, long legacyNanos) {
+        record(tableName, LEGACY, legacyNanos);
+        try (TableDataGateway tdg = pool.openGateway()) {
+            for (Row row : rows) {
+                ShadowWriteQueue writes = shadowWrites;
+                if (writes != null && writes.isPending(type, row.id)) {
+                    pendingWrites.increment();
+                    continue;
+                }
+                long start = System.nanoTime();
+                ResultSet resultSet = tdg.getById(row.id, tableName);
+                boolean found = resultSet != null && resultSet.next();
+                record(tableName, SQLITE, System.nanoTime() - start);
+                if (!found) {
+                    missing.increment();
+                    continue;
+                }
+                compare(tableName, row, resultSet);
+            }
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+            failed.increment();
+        }
+    }
+
+    /*
+    Reads the whole table once, for lists that hold every row of it.
+     */
+    void compareTable(String tableName, List<Row> rows, long legacyNanos) {
+        record(tableName, LEGACY, legacyNanos);
+        Map<Integer, Row> byId = new HashMap<>();
+        for (Row row : rows) {
+            byId.put(row.id, row);
+        }
+        try (TableDataGateway tdg = pool.openGateway()) {
+            long start = System.nanoTime();
+            long comparing = 0; // not part of the read
+            ResultSet resultSet = tdg.selectTable(tableName);
+            while (resultSet != null && resultSet.next()) {
+                Row row = byId.remove(resultSet.getInt("id"));
+                if (row == null) continue;
+                long compareStart = System.nanoTime();
+                compare(tableName, row, resultSet);
+                comparing += System.nanoTime() - compareStart;
+            }
+            record(tableName, SQLITE, System.nanoTime() - start - comparing);
+            missing.add(byId.size());
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+            failed.increment();
+        }
+    }
+
+    /*
+    Counts the columns of the row that differ in SQLite, and marks the row dirty for the consistency checker when any do.
+     */
+    private void compare(String tableName, Row row, ResultSet resultSet) throws SQLException {
+        compared.increment();
+        if (row.fingerprint == RowFingerprint.row(tableName, resultSet)) {
+            return; // same row, the columns don't need to be read
+        }
+        boolean differs = false;
+        for (Map.Entry<String, String> column : row.columns.entrySet()) {
+            if (Objects.equals(column.getValue(), resultSet.getString(column.getKey()))) continue;
+            mismatches(tableName, column.getKey()).increment();
+            differs = true;
+        }
+        RangeSummaries summaries = rangeSummaries;
+        if (differs && summaries != null) summaries.markDirty(tableName, row.id);
+    }
+
+    private LongAdder mismatches(String tableName, String column) {
+        return mismatches.computeIfAbsent(tableName + "." + column, key -> {
+            LongAdder count = new LongAdder();
+            MeterRegistry meters = registry;
+            if (meters != null) register(meters, key, count);
+            return count;
+        });
+    }
+
+    private void register(MeterRegistry meters, String key, LongAdder count) {
+        int dot = key.indexOf('.');
+        FunctionCounter.builder("migration.shadow-reads.mismatches", count, LongAdder::sum)
+            .description("Columns that differed between the stores")
+            .tags("table", key.substring(0, dot), "column", key.substring(dot + 1)).register(meters);
+    }
+
+    private void record(String tableName, String store, long nanos) {
+        MeterRegistry meters = registry;
+        if (meters == null) return;
+        latencies.computeIfAbsent(tableName + ":" + store, key -> Timer.builder("migration.shadow-reads.latency")
+            .description("Time to read the rows of a sampled shadow read from each store")
+            .tags("table", tableName, "store", store)
+            .publishPercentiles(0.5, 0.95, 0.99)
+            .publishPercentileHistogram()
+            .register(meters)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+    Waits until the reads handed to the executor so far are compared, or the timeout passes.
+     */
+    boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (executor.getCompletedTaskCount() < executor.getTaskCount()) {
+            if (System.currentTimeMillis() >= deadline) return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /*
+    Mismatched columns so far, keyed by table.column.
+     */
+    public Map<String, Long> getMismatches() {
+        return sums(mismatches);
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+        Map<String, Long> sums = new TreeMap<>();
+        counters.forEach((key, count) -> sums.put(key, count.sum()));
+        return sums;
+    }
+
+    /*
+    Read latencies in milliseconds by table and store: count, mean, max and the 50th, 95th and 99th percentiles.
+     */
+    public Map<String, Map<String, Map<String, Object>>> getLatencies() {
+        Map<String, Map<String, Map<String, Object>>> tables = new TreeMap<>();
+        latencies.forEach((key, timer) -> {
+            HistogramSnapshot snapshot = timer.takeSnapshot();
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put("count", snapshot.count());
+            latency.put("mean", snapshot.mean(TimeUnit.MILLISECONDS));
+            latency.put("max", snapshot.max(TimeUnit.MILLISECONDS));
+            for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+                latency.put("p" + Math.round(percentile.percentile() * 100), percentile.value(TimeUnit.MILLISECONDS));
+            }
+            String[] tableAndStore = key.split(":");
+            tables.computeIfAbsent(tableAndStore[0], table -> new TreeMap<>()).put(tableAndStore[1], latency);
+        });
+        return tables;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("sampleRate", sampleRate);
+        status.put("compared", compared.sum());
+        status.put("missing", missing.sum());
+        status.put("skipped", skipped.sum());
+        status.put("failed", failed.sum());
+        status.put("pendingWrites", pendingWrites.sum());
+        status.put("mismatches", getMismatches());
+        status.put("latencies", getLatencies());
+        return status;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.registry = registry;
+        mismatches.forEach((key, count) -> register(registry, key, count));
+        FunctionCounter.builder("migration.shadow-reads.compared", compared, LongAdder::sum)
+            .description("Rows compared between the stores").register(registry);
+        FunctionCounter.builder("migration.shadow-reads.missing", missing, LongAdder::sum)
+            .description("Rows the legacy store returned that SQLite does not have").register(registry);
+        FunctionCounter.builder("migration.shadow-reads.skipped", skipped, LongAdder::sum)
+            .description("Sampled reads not compared because the executor's queue was full").register(registry);
+        FunctionCounter.builder("migration.shadow-reads.failed", failed, LongAdder::sum)
+            .description("Shadow reads that failed").register(registry);
+        FunctionCounter.builder("migration.shadow-reads.pending-writes", pendingWrites, LongAdder::sum)
+            .description("Rows not compared because a shadow write to them was still pending").register(registry);
+    }
+}
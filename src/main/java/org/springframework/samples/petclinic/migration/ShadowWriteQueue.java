@@ -0,0 +1,406 @@
+package org.springframework.samples.petclinic.migration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.samples.petclinic.model.BaseEntity;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
+import org.springframework.samples.petclinic.visit.Visit;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Takes the shadow writes of the controllers off the request path. upsert() queues the row and returns; a single writer
+thread borrows a connection from the pool and writes what is queued, up to batchSize rows per transaction, as UPSERTs.
+Writes of a row that is still queued are coalesced: only its latest state is written, in the place of the first write.
+
+When the queue is full the overflow policy decides: BLOCK waits up to blockTimeoutMillis and then drops the write,
+DROP_NEWEST drops the write, DROP_OLDEST drops the write at the head of the queue, and CALLER_RUNS writes it on the
+request thread like before. A dropped row only diverges until the next consistency check, which rehashes its range.
+With DO_QUEUE_SHADOW_WRITES off every write runs on the caller.
+
+With an outbox set and DO_JOURNAL_SHADOW_WRITES on, writes go to the OutboxJournal instead, so they survive a crash.
+They never bypass it: written directly, a row could be overwritten by an older state of it replayed later, or
+overwrite a newer one. When the journal stays full for blockTimeoutMillis the write is dropped.
+
+Until a write is committed, dropped or has failed, isPending() is true for its row, and for the owner of a pet and
+the pet of a visit, so ReadRouter serves them from the legacy store rather than the state SQLite still has.
+ */
+public class ShadowWriteQueue implements MeterBinder, AutoCloseable {
+
+    public enum OverflowPolicy { BLOCK, DROP_NEWEST, DROP_OLDEST, CALLER_RUNS }
+
+    private final SqlDBPool pool;
+    private final int capacity;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final LinkedHashMap<Object, Write> queue = new LinkedHashMap<>(); // guarded by lock
+    private int writing = 0; // rows taken by the writer and not yet committed, guarded by lock
+    private volatile boolean closed = false;
+    private final Thread writer;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile Timer lag;
+    private volatile OutboxJournal outbox;
+    private final ConcurrentHashMap<String, Integer> pending = new ConcurrentHashMap<>(); // writes in flight per row
+
+    private static class Write {
+        final BaseEntity entity;
+        final long enqueuedAt = System.nanoTime();
+
+        Write(BaseEntity entity) {
+            this.entity = entity;
+        }
+    }
+
+    public ShadowWriteQueue(SqlDBPool pool, int capacity, int batchSize, OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        this.pool = pool;
+        this.capacity = Math.max(1, capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.writer = new Thread(this::writeLoop, "shadow-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public void setOutbox(OutboxJournal outbox) {
+        this.outbox = outbox;
+        if (outbox != null) outbox.setOnReplayed(this::done);
+    }
+
+    public void upsert(Owner owner) {
+        enqueue(owner);
+    }
+
+    public void upsert(Pet pet) {
+        enqueue(pet);
+    }
+
+    public void upsert(Visit visit) {
+        enqueue(visit);
+    }
+
+    private void enqueue(BaseEntity entity) {
+        markPending(entity);
+        OutboxJournal journal = outbox;
+        // after the toggle is switched off, writes keep going through the journal until the older ones are replayed
+        boolean journaling = journal != null && (FeatureToggleManager.DO_JOURNAL_SHADOW_WRITES.isEnabled() || journal.getPendingBytes() > 0);
+        if (journaling && entity.getId() != null) {
+            if (!journal.append(entity, blockTimeoutMillis)) {
+                dropped.incrementAndGet();
+                done(entity);
+            }
+            return;
+        }
+        if (closed || !FeatureToggleManager.DO_QUEUE_SHADOW_WRITES.isEnabled()) {
+            writeOnCaller(entity);
+            return;
+        }
+        Object key = entity.getId() == null ? new Object() : entity.getClass().getSimpleName() + ":" + entity.getId();
+        boolean queued;
+        lock.lock();
+        try {
+            if (queue.containsKey(key)) {
+                done(queue.put(key, new Write(entity)).entity); // keeps its place in the queue
+                coalesced.incrementAndGet();
+                return;
+            }
+            queued = queue.size() < capacity || makeRoom();
+            if (queued) {
+                queue.put(key, new Write(entity));
+                enqueued.incrementAndGet();
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!queued) {
+            if (overflowPolicy == OverflowPolicy.CALLER_RUNS) writeOnCaller(entity);
+            else done(entity);
+        }
+    }
+
+    /*
+    The rows whose state in SQLite a write of the entity changes, as seen by ReadRouter: a new pet changes the
+    page of its owner, a new visit the page of its pet (and so of the pet's owner).
+     */
+    private static List<String> rows(BaseEntity entity) {
+        List<String> rows = new ArrayList<>(2);
+        if (entity.getId() != null) rows.add(entity.getClass().getSimpleName() + ":" + entity.getId());
+        if (entity instanceof Pet && ((Pet) entity).getOwner() != null && ((Pet) entity).getOwner().getId() != null) {
+            rows.add("Owner:" + ((Pet) entity).getOwner().getId());
+        }
+        if (entity instanceof Visit && ((Visit) entity).getPetId() != null) {
+            rows.add("Pet:" + ((Visit) entity).getPetId());
+        }
+        return rows;
+    }
+
+    private void markPending(BaseEntity entity) {
+        for (String row : rows(entity)) {
+            pending.merge(row, 1, Integer::sum);
+        }
+    }
+
+    /*
+    Called once for every write passed to enqueue, when it is committed, has failed or is dropped. Records replayed
+    from a journal of an earlier run were never marked, so the counts stop at zero.
+     */
+    private void done(BaseEntity entity) {
+        for (String row : rows(entity)) {
+            pending.computeIfPresent(row, (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /*
+    Whether a write that changes the row is queued, journaled or being written.
+     */
+    public boolean isPending(Class<? extends BaseEntity> type, Integer id) {
+        return id != null && pending.containsKey(type.getSimpleName() + ":" + id);
+    }
+
+    /*
+    Applies the overflow policy to a full queue, with the lock held. Returns true when there is room for the write.
+     */
+    private boolean makeRoom() {
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+                    while (queue.size() >= capacity && nanos > 0) {
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (queue.size() < capacity) return true;
+                dropped.incrementAndGet();
+                return false;
+            case DROP_OLDEST:
+                Iterator<Write> oldest = queue.values().iterator();
+                done(oldest.next().entity);
+                oldest.remove();
+                dropped.incrementAndGet();
+                return true;
+            case CALLER_RUNS:
+                callerRuns.incrementAndGet();
+                return false;
+            default:
+                dropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    private void writeOnCaller(BaseEntity entity) {
+        List<Write> writes = new ArrayList<>();
+        writes.add(new Write(entity));
+        write(writes);
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<Write> writes = new ArrayList<>();
+            lock.lock();
+            try {
+                while (queue.isEmpty()) {
+                    if (closed) return;
+                    notEmpty.await(100, TimeUnit.MILLISECONDS);
+                }
+                Iterator<Write> head = queue.values().iterator();
+                while (head.hasNext() && writes.size() < batchSize) {
+                    writes.add(head.next());
+                    head.remove();
+                }
+                writing = writes.size();
+                notFull.signalAll();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            write(writes);
+
+            lock.lock();
+            try {
+                writing = 0;
+                if (queue.isEmpty()) drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+    Writes the rows in one transaction. They only count as written, and their lag is only recorded, once it is
+    committed; when it is rolled back they count as failed and are left to the consistency checker.
+     */
+    private void write(List<Write> writes) {
+        try (TableDataGateway tdg = pool.openGateway()) {
+            tdg.beginBatch(batchSize);
+            tdg.setUpsert(true);
+            for (Write write : writes) {
+                if (write.entity instanceof Owner) tdg.batchInsertOwner((Owner) write.entity);
+                else if (write.entity instanceof Pet) tdg.batchInsertPet((Pet) write.entity);
+                else if (write.entity instanceof Visit) tdg.batchInsertVisit((Visit) write.entity);
+            }
+            tdg.setUpsert(false);
+            tdg.endBatch();
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // a BatchWriteException, or no connection could be borrowed
+            failed.addAndGet(writes.size());
+            return;
+        } finally {
+            for (Write write : writes) {
+                done(write.entity);
+            }
+        }
+        written.addAndGet(writes.size());
+        batches.incrementAndGet();
+        Timer timer = lag;
+        if (timer != null) {
+            long now = System.nanoTime();
+            for (Write write : writes) {
+                timer.record(now - write.enqueuedAt, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /*
+    Waits until every write queued so far is committed, or the timeout passes. Returns whether the queue drained.
+     */
+    public boolean flush(long timeoutMillis) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while ((!queue.isEmpty() || writing > 0) && nanos > 0) {
+                nanos = drained.awaitNanos(nanos);
+            }
+            return queue.isEmpty() && writing == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Stops taking writes (later ones run on the caller) and gives the writer a few seconds to write what is queued.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flush(5000);
+        writer.interrupt();
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size() + writing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Writes waiting in the queue, not counting those the writer has taken.
+     */
+    int getQueued() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Milliseconds the oldest queued write has been waiting, 0 when the queue is empty.
+     */
+    public long getOldestAgeMillis() {
+        lock.lock();
+        try {
+            if (queue.isEmpty()) return 0;
+            long oldest = Long.MAX_VALUE;
+            for (Write write : queue.values()) {
+                oldest = Math.min(oldest, write.enqueuedAt); // coalesced writes are newer than their place in the queue
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("migration.shadow-writes.depth", this, ShadowWriteQueue::getDepth)
+            .description("Shadow writes queued or being written").register(registry);
+        Gauge.builder("migration.shadow-writes.capacity", this, ShadowWriteQueue::getCapacity)
+            .description("Maximum number of queued shadow writes").register(registry);
+        Gauge.builder("migration.shadow-writes.oldest-age", this, ShadowWriteQueue::getOldestAgeMillis)
+            .description("Milliseconds the oldest queued shadow write has waited").baseUnit("milliseconds").register(registry);
+        FunctionCounter.builder("migration.shadow-writes.enqueued", enqueued, AtomicLong::get)
+            .description("Shadow writes queued").register(registry);
+        FunctionCounter.builder("migration.shadow-writes.coalesced", coalesced, AtomicLong::get)
+            .description("Shadow writes merged into a queued write of the same row").register(registry);
+        FunctionCounter.builder("migration.shadow-writes.dropped", dropped, AtomicLong::get)
+            .description("Shadow writes dropped because the queue or the outbox journal was full").register(registry);
+        FunctionCounter.builder("migration.shadow-writes.caller-runs", callerRuns, AtomicLong::get)
+            .description("Shadow writes made on the request thread because the queue was full").register(registry);
+        FunctionCounter.builder("migration.shadow-writes.written", written, AtomicLong::get)
+            .description("Rows written to SQLite").register(registry);
+        FunctionCounter.builder("migration.shadow-writes.failed", failed, AtomicLong::get)
+            .description("Rows whose write failed").register(registry);
+        FunctionCounter.builder("migration.shadow-writes.batches", batches, AtomicLong::get)
+            .description("Transactions committed").register(registry);
+        lag = Timer.builder("migration.shadow-writes.lag")
+            .description("Time from queueing a shadow write to its commit").register(registry);
+    }
+}
@@ -0,0 +1,84 @@
+package org.springframework.samples.petclinic.migration;
+
+import org.springframework.samples.petclinic.model.BaseEntity;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/*
+Compares a table of the old datastore with its copy in SQLite in a single pass. Both sides are read in id order and
+walked side by side like the merge step of a sort-merge join: a legacy row with no SQLite row is missing, a SQLite row
+with no legacy row is extra, and rows on both sides whose fingerprints (RowFingerprint) differ are changed.
+ */
+class SortMergeChecker<T extends BaseEntity> {
+
+    /*
+    The fingerprint of the SQLite row the result set is positioned on, e.g. RowFingerprint::owner.
+     */
+    interface RowFingerprinter {
+        long fingerprint(ResultSet row) throws SQLException;
+    }
+
+    private List<T> missing = new ArrayList<>();
+    private List<T> changed = new ArrayList<>();
+    private List<Integer> extra = new ArrayList<>();
+
+    /*
+    legacy and rows must both be ordered by id. A null result set (table missing in SQLite) counts as an empty table.
+     */
+    SortMergeChecker<T> merge(Iterator<T> legacy, ToLongFunction<T> legacyFingerprint, ResultSet rows, RowFingerprinter rowFingerprint) {
+        try {
+            boolean hasRow = rows != null && rows.next();
+            T entity = legacy.hasNext() ? legacy.next() : null;
+            while (entity != null || hasRow) {
+                int rowId = hasRow ? rows.getInt("id") : 0;
+                if (entity != null && (!hasRow || entity.getId() < rowId)) {
+                    missing.add(entity);
+                    entity = legacy.hasNext() ? legacy.next() : null;
+                } else if (entity == null || rowId < entity.getId()) {
+                    extra.add(rowId);
+                    hasRow = rows.next();
+                } else {
+                    if (legacyFingerprint.applyAsLong(entity) != rowFingerprint.fingerprint(rows)) {
+                        changed.add(entity);
+                    }
+                    entity = legacy.hasNext() ? legacy.next() : null;
+                    hasRow = rows.next();
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return this;
+    }
+
+    /*
+    Appends the differences found by another checker, e.g. for the next id range.
+     */
+    SortMergeChecker<T> addAll(SortMergeChecker<T> other) {
+        missing.addAll(other.missing);
+        changed.addAll(other.changed);
+        extra.addAll(other.extra);
+        return this;
+    }
+
+    List<T> getMissing() {
+        return missing;
+    }
+
+    List<T> getChanged() {
+        return changed;
+    }
+
+    List<Integer> getExtra() {
+        return extra;
+    }
+
+    int getInconsistencies() {
+        return missing.size() + changed.size() + extra.size();
+    }
+}
@@ -1,11 +1,29 @@
 package org.springframework.samples.petclinic.migration;
 
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 
-public interface SqlDB {
+public interface SqlDB extends AutoCloseable {
     void execute(String sql);
     ResultSet select(String sql);
     boolean insert();
+
+    /*
+    Closes the connection, or gives it back to its pool when it was borrowed.
+     */
     void close();
+
+    /*
+    Returns a prepared statement for the given sql, cached for the lifetime of the connection.
+     */
+    PreparedStatement prepare(String sql);
+    void setAutoCommit(boolean autoCommit);
+    void commit() throws SQLException;
+
+    /*
+    Rolls back the transaction in progress, if any.
+     */
+    void rollback();
 }
@@ -0,0 +1,218 @@
+package org.springframework.samples.petclinic.migration;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Bounded pool of connections to the SQLite datastore, shared by the controllers for their shadow reads and writes.
+borrow() hands out a SqlDB whose close() returns the connection to the pool instead of closing it, so callers keep
+the usual open/close pattern. Connections are opened lazily, up to maxSize, and reused most recently returned first.
+ */
+public class SqlDBPool implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(SqlDBPool.class);
+
+    private final String dbLocation;
+    private final SQLitePragmaProfile profile;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long leakThresholdMillis;
+
+    private final Semaphore permits;
+    private final Deque<SQLiteDB> idle = new ConcurrentLinkedDeque<>();
+    private final Map<PooledSqlDB, Borrow> borrowed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService leakDetector;
+    private volatile boolean closed = false;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /*
+    A borrow waits at most borrowTimeoutMillis for a connection to be returned. A connection held longer than
+    leakThresholdMillis is counted on migration.sqlite.pool.leaks and logged once as a warning, with the stack of the
+    code that borrowed it (0 turns leak detection off).
+     */
+    public SqlDBPool(String dbLocation, SQLitePragmaProfile profile, int maxSize, long borrowTimeoutMillis, long leakThresholdMillis) {
+        this.dbLocation = dbLocation;
+        this.profile = profile;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.permits = new Semaphore(maxSize, true);
+        if (leakThresholdMillis > 0) {
+            long period = Math.max(10, leakThresholdMillis / 2);
+            this.leakDetector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "sqldb-pool-leak-detector");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.leakDetector = null;
+        }
+    }
+
+    /*
+    Takes a connection from the pool, opening a new one if none is idle. Throws IllegalStateException when all
+    connections stay borrowed for longer than the borrow timeout.
+     */
+    public SqlDB borrow() {
+        if (closed) {
+            throw new IllegalStateException("The connection pool of " + dbLocation + " is closed");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new IllegalStateException(String.format("Timed out after %d ms waiting for one of the %d connections to %s",
+                    borrowTimeoutMillis, maxSize, dbLocation));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a connection to " + dbLocation, e);
+        }
+        PooledSqlDB pooled = new PooledSqlDB(this, takeIdleOrOpen());
+        borrowed.put(pooled, new Borrow(leakDetector != null));
+        borrows.incrementAndGet();
+        return pooled;
+    }
+
+    /*
+    A gateway over a borrowed connection, closing the gateway returns the connection.
+     */
+    public TableDataGateway openGateway() {
+        return new TableDataGateway(borrow());
+    }
+
+    private SQLiteDB takeIdleOrOpen() {
+        SQLiteDB db;
+        while ((db = idle.pollFirst()) != null) {
+            if (db.isOpen()) {
+                return db;
+            }
+            db.close();
+        }
+        created.incrementAndGet();
+        return new SQLiteDB(dbLocation, profile);
+    }
+
+    /*
+    Called by PooledSqlDB.close(). Returning the same handle twice has no effect.
+     */
+    void release(PooledSqlDB pooled, SQLiteDB db) {
+        if (borrowed.remove(pooled) == null) {
+            return;
+        }
+        db.reset();
+        if (closed || !db.isOpen()) {
+            db.close();
+        } else {
+            idle.offerFirst(db);
+            if (closed) {
+                closeIdle();
+            }
+        }
+        permits.release();
+    }
+
+    private void detectLeaks() {
+        long now = System.nanoTime();
+        for (Borrow borrow : borrowed.values()) {
+            long heldMillis = TimeUnit.NANOSECONDS.toMillis(now - borrow.borrowedAt);
+            if (heldMillis >= leakThresholdMillis && !borrow.reported) {
+                borrow.reported = true;
+                leaks.incrementAndGet();
+                log.warn("SqlDB connection to {} held by {} for {} ms, it was probably never closed",
+                    dbLocation, borrow.thread, heldMillis, borrow.site);
+            }
+        }
+    }
+
+    private void closeIdle() {
+        SQLiteDB db;
+        while ((db = idle.pollFirst()) != null) {
+            db.close();
+        }
+    }
+
+    /*
+    Closes the idle connections; borrowed ones are closed as they are returned. Spring calls this on shutdown.
+     */
+    public void close() {
+        closed = true;
+        if (leakDetector != null) {
+            leakDetector.shutdownNow();
+        }
+        closeIdle();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("migration.sqlite.pool.active", borrowed, Map::size)
+            .description("Connections currently borrowed").register(registry);
+        Gauge.builder("migration.sqlite.pool.idle", idle, Deque::size)
+            .description("Open connections waiting in the pool").register(registry);
+        Gauge.builder("migration.sqlite.pool.pending", permits, Semaphore::getQueueLength)
+            .description("Threads waiting for a connection").register(registry);
+        Gauge.builder("migration.sqlite.pool.max", this, SqlDBPool::getMaxSize)
+            .description("Maximum number of connections").register(registry);
+        FunctionCounter.builder("migration.sqlite.pool.created", created, AtomicLong::get)
+            .description("Connections opened").register(registry);
+        FunctionCounter.builder("migration.sqlite.pool.borrows", borrows, AtomicLong::get)
+            .description("Connections handed out").register(registry);
+        FunctionCounter.builder("migration.sqlite.pool.timeouts", timeouts, AtomicLong::get)
+            .description("Borrows that gave up waiting").register(registry);
+        FunctionCounter.builder("migration.sqlite.pool.leaks", leaks, AtomicLong::get)
+            .description("Connections held past the leak threshold").register(registry);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActive() {
+        return borrowed.size();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    private static class Borrow {
+        private final long borrowedAt = System.nanoTime();
+        private final String thread = Thread.currentThread().getName();
+        private final Throwable site;
+        private volatile boolean reported = false;
+
+        Borrow(boolean recordSite) {
+            this.site = recordSite ? new Throwable("SqlDB borrowed here") : null;
+        }
+    }
+}
@@ -8,16 +8,53 @@ import org.springframework.samples.petclinic.owner.PetType;
 import org.springframework.samples.petclinic.vet.Vet;
 import org.springframework.samples.petclinic.visit.Visit;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-
-public class TableDataGateway {
+import java.util.Map;
+import java.util.Set;
+
+public class TableDataGateway implements AutoCloseable {
+
+    public static final int DEFAULT_COMMIT_INTERVAL = 1000;
+
+    private static final String INSERT_OWNER_SQL = "INSERT INTO owners (id, first_name, last_name, address, city, telephone) VALUES (?,?,?,?,?,?)";
+    private static final String INSERT_PET_SQL = "INSERT INTO pets (id, name, birth_date, type_id, owner_id) VALUES (?,?,?,?,?)";
+    private static final String INSERT_TYPE_SQL = "INSERT INTO types (id, name) VALUES (?,?)";
+    private static final String INSERT_VET_SQL = "INSERT INTO vets (id, first_name, last_name) VALUES (?,?,?)";
+    private static final String INSERT_VET_SPECIALTY_SQL = "INSERT INTO vet_specialties (vet_id, specialty_id) VALUES (?,?)";
+    private static final String INSERT_VISIT_SQL = "INSERT INTO visits (id, pet_id, visit_date, description) VALUES (?,?,?,?)";
+    private static final String DELETE_VET_SPECIALTIES_SQL = "DELETE FROM vet_specialties WHERE vet_id = ?";
+    private static final String DELETE_BY_ID_SQL = "DELETE FROM %s WHERE id = ?";
+    private static final String SAVE_CHECKPOINT_SQL = "INSERT OR REPLACE INTO forklift_progress (table_name, last_id, updated_at) VALUES (?,?,datetime('now'))";
+
+    // the inserts above as UPSERTs: a row whose id already exists is updated in place
+    private static final Map<String, String> UPSERTS = new HashMap<>();
+    static {
+        for (String sql : new String[]{INSERT_OWNER_SQL, INSERT_PET_SQL, INSERT_TYPE_SQL, INSERT_VET_SQL, INSERT_VISIT_SQL}) {
+            UPSERTS.put(sql, onConflictUpdate(sql));
+        }
+    }
 
     private SqlDB db;
 
+    // statements holding rows that have been added to a batch but not yet executed, in order of first use
+    private Set<PreparedStatement> pendingStatements = new LinkedHashSet<>();
+    private int pendingRows = 0;
+    private int commitInterval = DEFAULT_COMMIT_INTERVAL;
+
+    // when checkpointing, batches are only committed at checkpoints, together with the progress they record
+    private boolean checkpointing = false;
+    private Map<String, Integer> pendingCheckpoints = new LinkedHashMap<>();
+    private boolean ignoreDuplicates = false;
+    private boolean upsert = false;
+
     /*
      * This class is used to insert and retrive rows/tables from the datastore.
      */
@@ -25,6 +62,14 @@ public class TableDataGateway {
         this.db = db;
     }
 
+    /*
+    Closes the underlying connection. Controllers open one gateway per request (SqlDBPool.openGateway()) in a
+    try-with-resources, so its connection goes back to the pool when the request is done with it.
+     */
+    public void close() {
+        db.close();
+    }
+
     private HashMap<String, String> id(BaseEntity entity){
 
         HashMap<String, String> map = new HashMap<String,String>();
@@ -151,6 +196,28 @@ public class TableDataGateway {
         return rs2;
     }
 
+    /*
+    The lookups below read what the pages of the routed reads show: pets with the name of their type, and vets with
+    their specialties, one row per specialty.
+     */
+    public ResultSet getPetWithType(Integer petId){
+        return db.select(String.format("SELECT pets.*, types.name AS type_name FROM pets LEFT JOIN types ON types.id = pets.type_id WHERE pets.id = %d", petId));
+    }
+
+    public ResultSet getPetsWithTypeByOwnerId(Integer ownerId){
+        return db.select(String.format("SELECT pets.*, types.name AS type_name FROM pets LEFT JOIN types ON types.id = pets.type_id WHERE pets.owner_id = %d", ownerId));
+    }
+
+    public ResultSet getVisitsByPetId(Integer petId){
+        return db.select(String.format("SELECT * FROM visits WHERE pet_id = %d", petId));
+    }
+
+    public ResultSet getVetsWithSpecialties(){
+        return db.select("SELECT vets.*, specialties.id AS specialty_id, specialties.name AS specialty_name FROM vets "
+            + "LEFT JOIN vet_specialties ON vet_specialties.vet_id = vets.id "
+            + "LEFT JOIN specialties ON specialties.id = vet_specialties.specialty_id ORDER BY vets.id");
+    }
+
     public ResultSet getOwnersByFirstName(String firstName){
         return db.select(String.format("SELECT * FROM owners WHERE first_name = '%s'", firstName));
     }
@@ -166,4 +233,263 @@ public class TableDataGateway {
     public ResultSet selectTable(String tableName){
         return db.select(String.format("SELECT * FROM %s", tableName));
     }
+
+    /*
+    Starts a batch: the batchInsert methods below queue rows on cached prepared statements and
+    executeBatch/commit every commitInterval rows. Call endBatch() to write the remaining rows. A batch that fails is
+    rolled back and thrown as a BatchWriteException by the call that wrote it.
+     */
+    public void beginBatch(int commitInterval) {
+        this.commitInterval = Math.max(1, commitInterval);
+        db.setAutoCommit(false);
+    }
+
+    public void endBatch() {
+        try {
+            flushBatch();
+        } finally {
+            db.setAutoCommit(true);
+        }
+    }
+
+    /*
+    Executes every pending batch (in the order the tables were first written to) and commits them as one transaction.
+    When a statement or the commit fails, the transaction is rolled back with the checkpoints it would have recorded
+    and a BatchWriteException is thrown: nothing since the previous commit was written.
+     */
+    public void flushBatch() {
+        try {
+            for (PreparedStatement statement : pendingStatements){
+                statement.executeBatch();
+            }
+            saveCheckpoints();
+            db.commit();
+        } catch (SQLException e) {
+            // the statements after the failed one still hold their rows
+            for (PreparedStatement statement : pendingStatements){
+                clearBatch(statement);
+            }
+            if (checkpointing) clearBatch(db.prepare(SAVE_CHECKPOINT_SQL));
+            db.rollback();
+            throw new BatchWriteException(e);
+        } finally {
+            pendingStatements.clear();
+            pendingCheckpoints.clear();
+            pendingRows = 0;
+        }
+    }
+
+    private static void clearBatch(PreparedStatement statement) {
+        try {
+            statement.clearBatch();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+    Records the forklift progress in the forklift_progress table. With checkpointing on, a batch is only committed at a
+    checkpoint, in the same transaction as the checkpoint itself, so every row up to the recorded id is in the table.
+     */
+    public void setCheckpointing(boolean checkpointing) {
+        this.checkpointing = checkpointing;
+    }
+
+    /*
+    Marks every row of the table up to lastId (in id order) as written. Call it once all rows belonging to that id
+    (e.g. an owner and its pets) have been added to the batch.
+     */
+    public void checkpoint(String tableName, int lastId) {
+        pendingCheckpoints.put(tableName, lastId);
+        if (pendingRows >= commitInterval) {
+            flushBatch();
+        }
+    }
+
+    /*
+    Returns the last committed id of each table recorded in forklift_progress.
+     */
+    public Map<String, Integer> getCheckpoints() {
+        Map<String, Integer> checkpoints = new HashMap<>();
+        try {
+            ResultSet resultSet = db.select("SELECT table_name, last_id FROM forklift_progress");
+            while (resultSet != null && resultSet.next()) {
+                checkpoints.put(resultSet.getString("table_name"), resultSet.getInt("last_id"));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return checkpoints;
+    }
+
+    /*
+    When resuming a forklift, or lifting into tables that were not dropped, some rows may already exist; skip them instead
+    of failing the batch.
+    Rows without a unique key, the vet_specialties, cannot be skipped this way: delete them before inserting them again.
+     */
+    public void setIgnoreDuplicates(boolean ignoreDuplicates) {
+        this.ignoreDuplicates = ignoreDuplicates;
+    }
+
+    private void saveCheckpoints() throws SQLException {
+        if (!checkpointing || pendingCheckpoints.isEmpty()) return;
+        PreparedStatement statement = db.prepare(SAVE_CHECKPOINT_SQL);
+        for (Map.Entry<String, Integer> checkpoint : pendingCheckpoints.entrySet()) {
+            statement.setString(1, checkpoint.getKey());
+            statement.setInt(2, checkpoint.getValue());
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    /*
+    Makes the batchInsert methods overwrite rows that already exist instead of failing on them, so a row that differs
+    is repaired with one statement rather than a delete and an insert.
+     */
+    public void setUpsert(boolean upsert) {
+        this.upsert = upsert;
+    }
+
+    private PreparedStatement prepareInsert(String sql) {
+        if (upsert && UPSERTS.containsKey(sql)) {
+            return db.prepare(UPSERTS.get(sql));
+        }
+        return db.prepare(ignoreDuplicates ? "INSERT OR IGNORE" + sql.substring("INSERT".length()) : sql);
+    }
+
+    /*
+    INSERT INTO t (id, a, b) VALUES (?,?,?) ON CONFLICT(id) DO UPDATE SET a = excluded.a, b = excluded.b
+     */
+    private static String onConflictUpdate(String insertSql) {
+        String[] columns = insertSql.substring(insertSql.indexOf('(') + 1, insertSql.indexOf(')')).split(",");
+        StringBuilder sql = new StringBuilder(insertSql).append(" ON CONFLICT(id) DO UPDATE SET ");
+        String separator = "";
+        for (String column : columns) {
+            column = column.trim();
+            if (column.equals("id")) continue;
+            sql.append(separator).append(column).append(" = excluded.").append(column);
+            separator = ", ";
+        }
+        return sql.toString();
+    }
+
+    /*
+    Queues the deletion of a row, executed with the rest of the batch.
+     */
+    public void batchDeleteById(Integer id, String tableName) {
+        PreparedStatement statement = db.prepare(String.format(DELETE_BY_ID_SQL, tableName));
+        try {
+            statement.setInt(1, id);
+            addToBatch(statement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+    Queues the deletion of the vet_specialties of a vet, e.g. before inserting the vet again with its current specialties.
+     */
+    public void batchDeleteVetSpecialties(Integer vetId) {
+        PreparedStatement statement = db.prepare(DELETE_VET_SPECIALTIES_SQL);
+        try {
+            statement.setInt(1, vetId);
+            addToBatch(statement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void batchInsertOwner(Owner owner) {
+        PreparedStatement statement = prepareInsert(INSERT_OWNER_SQL);
+        try {
+            statement.setObject(1, owner.getId(), Types.INTEGER);
+            statement.setString(2, owner.getFirstName());
+            statement.setString(3, owner.getLastName());
+            statement.setString(4, owner.getAddress());
+            statement.setString(5, owner.getCity());
+            statement.setString(6, owner.getTelephone());
+            addToBatch(statement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void batchInsertPet(Pet pet) {
+        PreparedStatement statement = prepareInsert(INSERT_PET_SQL);
+        try {
+            statement.setObject(1, pet.getId(), Types.INTEGER);
+            statement.setString(2, pet.getName());
+            statement.setString(3, pet.getBirthDate().toString());
+            statement.setInt(4, pet.getType().getId());
+            statement.setInt(5, pet.getOwner().getId());
+            addToBatch(statement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void batchInsertType(PetType type) {
+        PreparedStatement statement = prepareInsert(INSERT_TYPE_SQL);
+        try {
+            statement.setObject(1, type.getId(), Types.INTEGER);
+            statement.setString(2, type.getName());
+            addToBatch(statement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void batchInsertVet(Vet vet) {
+        batchInsertVetRow(vet);
+        for (Specialty specialty : vet.getSpecialties()) {
+            batchInsertVetSpecialty(vet, specialty);
+        }
+    }
+
+    /*
+    Inserts the vets row only, without its vet_specialties.
+     */
+    public void batchInsertVetRow(Vet vet) {
+        PreparedStatement statement = prepareInsert(INSERT_VET_SQL);
+        try {
+            statement.setObject(1, vet.getId(), Types.INTEGER);
+            statement.setString(2, vet.getFirstName());
+            statement.setString(3, vet.getLastName());
+            addToBatch(statement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void batchInsertVetSpecialty(Vet vet, Specialty specialty) {
+        PreparedStatement statement = prepareInsert(INSERT_VET_SPECIALTY_SQL);
+        try {
+            statement.setInt(1, vet.getId());
+            statement.setInt(2, specialty.getId());
+            addToBatch(statement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void batchInsertVisit(Visit visit) {
+        PreparedStatement statement = prepareInsert(INSERT_VISIT_SQL);
+        try {
+            statement.setObject(1, visit.getId(), Types.INTEGER);
+            statement.setInt(2, visit.getPetId());
+            statement.setString(3, visit.getDate().toString());
+            statement.setString(4, visit.getDescription());
+            addToBatch(statement);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void addToBatch(PreparedStatement statement) throws SQLException {
+        statement.addBatch();
+        pendingStatements.add(statement);
+        if (++pendingRows >= commitInterval && !checkpointing) {
+            flushBatch();
+        }
+    }
 }
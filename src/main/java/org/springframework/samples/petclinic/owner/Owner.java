@@ -24,6 +24,7 @@ import java.util.Set;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
 import javax.validation.constraints.Digits;
@@ -32,6 +33,7 @@ import javax.validation.constraints.NotEmpty;
 import org.springframework.beans.support.MutableSortDefinition;
 import org.springframework.beans.support.PropertyComparator;
 import org.springframework.core.style.ToStringCreator;
+import org.springframework.samples.petclinic.migration.RangeSummaryListener;
 import org.springframework.samples.petclinic.model.Person;
 
 /**
@@ -43,6 +45,7 @@ import org.springframework.samples.petclinic.model.Person;
  * @author Michael Isvy
  */
 @Entity
+@EntityListeners(RangeSummaryListener.class)
 @Table(name = "owners")
 public class Owner extends Person {
     @Column(name = "address")
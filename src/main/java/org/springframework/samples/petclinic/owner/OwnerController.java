@@ -21,7 +21,6 @@ import org.springframework.beans.PropertyEditorRegistry;
 import org.springframework.samples.petclinic.migration.*;
 
 import org.springframework.samples.petclinic.migration.ConsistencyChecker;
-import org.springframework.samples.petclinic.migration.SqlDB;
 import org.springframework.samples.petclinic.migration.TableDataGateway;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -55,16 +54,20 @@ import java.util.Map;
 @Controller
 public class OwnerController {
 
-    private SqlDB db;
-    private TableDataGateway tdg;
+    private final SqlDBPool shadowDb;
+    private final ShadowWriteQueue shadowWrites;
+    private final ReadRouter readRouter;
 
     private static final String VIEWS_OWNER_CREATE_OR_UPDATE_FORM = "owners/createOrUpdateOwnerForm";
     private final OwnerRepository owners;
 
     public static boolean SYSTEM_UNDER_TEST = false;
 
-    public OwnerController(OwnerRepository owners) {
+    public OwnerController(OwnerRepository owners, SqlDBPool shadowDb, ShadowWriteQueue shadowWrites, ReadRouter readRouter) {
         this.owners = owners;
+        this.shadowDb = shadowDb;
+        this.shadowWrites = shadowWrites;
+        this.readRouter = readRouter;
     }
 
     @InitBinder
@@ -74,7 +77,7 @@ public class OwnerController {
 
     @GetMapping("/owners/new")
     public String initCreationForm(Map<String, Object> model) {
-        if (FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION) {
+        if (FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.isEnabled()) {
             ABTestingLogger.log("Owner being created", "", "b");
         }
         else {
@@ -95,19 +98,13 @@ public class OwnerController {
             this.owners.save(owner);
 
             // check if feature toggle is on
-            if(FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER)
+            if(FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER.isEnabled() || readRouter.getPercent() > 0)
             {
-
-                if(!FeatureToggleManager.DOING_MIGRATION_TEST){
-                db = new SQLiteDB();
-                tdg = new TableDataGateway(db);
-                }
-
-                // insert into new SQLite db
-                tdg.insertOwner(owner);
+                // queue the write to the new SQLite db, routed reads are served from it
+                shadowWrites.upsert(owner);
             }
 
-            if (FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION) {
+            if (FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.isEnabled()) {
                 ABTestingLogger.log("Owner created", "", "b");
                 return "redirect:/owners/" + owner.getId() + "/pets/new";
             }
@@ -118,19 +115,13 @@ public class OwnerController {
         }
     }
 
-    // To mock DB's
-    public void setDbForTest(SqlDB db, TableDataGateway tdg) {
-        this.db = db;
-        this.tdg = tdg;
-    }
-
 
     @GetMapping("/owners/find")
     public String initFindForm(Owner owner, BindingResult result,Map<String, Object> model) {
          if(SYSTEM_UNDER_TEST ){
-             FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH = false;
+             FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH.set(false);
          }
-    if(FeatureToggleManager.DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS){
+    if(FeatureToggleManager.DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS.isEnabled()){
 
         ABTestingLogger.log("Redirect to view Owners " ,"","b");
         ABTestingLogger.log("Owner search by pet name enabled" ,"","b");
@@ -142,56 +133,54 @@ public class OwnerController {
 
         // find owners by last name
         Collection<Owner> results = this.owners.findByLastName(owner.getLastName());
-        db = new SQLiteDB();
-        tdg = new TableDataGateway(db);
-        ResultSet resultSet = this.tdg.getOwnersByLastName(owner.getLastName());
-        Iterator<Owner> oldIterator = results.iterator();
+        try (TableDataGateway tdg = shadowDb.openGateway()) {
+            ResultSet resultSet = tdg.getOwnersByLastName(owner.getLastName());
+            Iterator<Owner> oldIterator = results.iterator();
 
-        if (results.isEmpty()) {
-            if(SYSTEM_UNDER_TEST){
-                return "owners/ownersList";
-            }else{
-            // no owners found
-            result.rejectValue("lastName", "notFound", "not found");
-            return "owners/findOwners";
-            }
-        } else if (results.size() == 1) {
-            // 1 owner found
-            owner = results.iterator().next();
-            Integer expectedId = owner.getId();
-            try {
-                Integer actualId = resultSet.getInt("id");
-                if (!expectedId.equals(actualId)) {
-                    this.tdg.updateInconsistencies(actualId, "owners", "id", expectedId);
+            if (results.isEmpty()) {
+                if(SYSTEM_UNDER_TEST){
+                    return "owners/ownersList";
+                }else{
+                // no owners found
+                result.rejectValue("lastName", "notFound", "not found");
+                return "owners/findOwners";
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            return "redirect:/owners/" + owner.getId();
-        } else {
-            // multiple owners found
-            model.put("selections", results);
-            try {
-                while (oldIterator.hasNext() && resultSet.next()) {
-                    if (!oldIterator.next().getId().equals(resultSet.getInt("id"))) {
-                        this.tdg.updateInconsistencies(resultSet.getInt("id"), "owners", "id", oldIterator.next().getId());
+            } else if (results.size() == 1) {
+                // 1 owner found
+                owner = results.iterator().next();
+                Integer expectedId = owner.getId();
+                try {
+                    Integer actualId = resultSet.getInt("id");
+                    if (!expectedId.equals(actualId)) {
+                        tdg.updateInconsistencies(actualId, "owners", "id", expectedId);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                return "redirect:/owners/" + owner.getId();
+            } else {
+                // multiple owners found
+                model.put("selections", results);
+                try {
+                    while (oldIterator.hasNext() && resultSet.next()) {
+                        if (!oldIterator.next().getId().equals(resultSet.getInt("id"))) {
+                            tdg.updateInconsistencies(resultSet.getInt("id"), "owners", "id", oldIterator.next().getId());
+                        }
                     }
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+                return "owners/ownersList";
             }
-            return "owners/ownersList";
         }
-
-
     }else{
 
         ABTestingLogger.log("Redirect to view Owners " ,"","a");
         ABTestingLogger.log("Owner search by pet name enabled" ,"","a");
         model.put("owner", new Owner());
-        model.put("DO_DISPLAY_LINK_TO_OWNER_LIST", FeatureToggleManager.DO_DISPLAY_LINK_TO_OWNER_LIST);
-        model.put("DO_ENABLE_FIRST_NAME_SEARCH", FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH);
-        model.put("DO_ENABLE_PET_NAME_SEARCH", FeatureToggleManager.DO_ENABLE_PET_NAME_SEARCH);
+        model.put("DO_DISPLAY_LINK_TO_OWNER_LIST", FeatureToggleManager.DO_DISPLAY_LINK_TO_OWNER_LIST.isEnabled());
+        model.put("DO_ENABLE_FIRST_NAME_SEARCH", FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH.isEnabled());
+        model.put("DO_ENABLE_PET_NAME_SEARCH", FeatureToggleManager.DO_ENABLE_PET_NAME_SEARCH.isEnabled());
         return "owners/findOwners";
     }
 
@@ -200,7 +189,7 @@ public class OwnerController {
     @GetMapping("/owners/finds")
     public String initFindForm(Map<String,Object>model){
         model.put("owner", new Owner());
-        model.put("DO_DISPLAY_LINK_TO_OWNER_LIST", FeatureToggleManager.DO_DISPLAY_LINK_TO_OWNER_LIST);
+        model.put("DO_DISPLAY_LINK_TO_OWNER_LIST", FeatureToggleManager.DO_DISPLAY_LINK_TO_OWNER_LIST.isEnabled());
         return "owners/findOwners";
     }
 
@@ -215,64 +204,13 @@ public class OwnerController {
 
         // find owners by last name
         Collection<Owner> results = this.owners.findByLastName(owner.getLastName());
-        db = new SQLiteDB();
-        tdg = new TableDataGateway(db);
-        ResultSet resultSet = this.tdg.getOwnersByLastName(owner.getLastName());
-        Iterator<Owner> oldIterator = results.iterator();
-
-        if (results.isEmpty()) {
-            // no owners found
-            result.rejectValue("lastName", "notFound", "not found");
-            return "owners/findOwners";
-        } else if (results.size() == 1) {
-            // 1 owner found
-            owner = results.iterator().next();
-            Integer expectedId = owner.getId();
-            try {
-                Integer actualId = resultSet.getInt("id");
-                if (!expectedId.equals(actualId)) {
-                    this.tdg.updateInconsistencies(actualId, "owners", "id", expectedId);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            return "redirect:/owners/" + owner.getId();
-        } else {
-            // multiple owners found
-            model.put("selections", results);
-            try {
-                while (oldIterator.hasNext() && resultSet.next()) {
-                    if (!oldIterator.next().getId().equals(resultSet.getInt("id"))) {
-                        this.tdg.updateInconsistencies(resultSet.getInt("id"), "owners", "id", oldIterator.next().getId());
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            return "owners/ownersList";
-        }
-
-    }
-
-    @GetMapping("/owners2")
-    public String processFindFormFN(Owner owner, BindingResult result, Map<String, Object> model) {
-
-        if(FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH){
-            ABTestingLogger.log("Search by first name enable" ,"","b");
-            //if no first name is specified, will return all owners
-            if (owner.getFirstName() == null) {
-                owner.setFirstName("");
-            }
-            //retrieve owners from both database with the specified first name
-            Collection<Owner> results = this.owners.findByFirstName(owner.getFirstName());
-            db = new SQLiteDB();
-            tdg = new TableDataGateway(db);
-            ResultSet resultSet = this.tdg.getOwnersByFirstName(owner.getFirstName());
+        try (TableDataGateway tdg = shadowDb.openGateway()) {
+            ResultSet resultSet = tdg.getOwnersByLastName(owner.getLastName());
             Iterator<Owner> oldIterator = results.iterator();
 
             if (results.isEmpty()) {
                 // no owners found
-                result.rejectValue("firstName", "notFound", "not found");
+                result.rejectValue("lastName", "notFound", "not found");
                 return "owners/findOwners";
             } else if (results.size() == 1) {
                 // 1 owner found
@@ -281,7 +219,7 @@ public class OwnerController {
                 try {
                     Integer actualId = resultSet.getInt("id");
                     if (!expectedId.equals(actualId)) {
-                        this.tdg.updateInconsistencies(actualId, "owners", "id", expectedId);
+                        tdg.updateInconsistencies(actualId, "owners", "id", expectedId);
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -293,7 +231,7 @@ public class OwnerController {
                 try {
                     while (oldIterator.hasNext() && resultSet.next()) {
                         if (!oldIterator.next().getId().equals(resultSet.getInt("id"))) {
-                            this.tdg.updateInconsistencies(resultSet.getInt("id"), "owners", "id", oldIterator.next().getId());
+                            tdg.updateInconsistencies(resultSet.getInt("id"), "owners", "id", oldIterator.next().getId());
                         }
                     }
                 } catch (Exception e) {
@@ -301,6 +239,56 @@ public class OwnerController {
                 }
                 return "owners/ownersList";
             }
+        }
+    }
+
+    @GetMapping("/owners2")
+    public String processFindFormFN(Owner owner, BindingResult result, Map<String, Object> model) {
+
+        if(FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH.isEnabled()){
+            ABTestingLogger.log("Search by first name enable" ,"","b");
+            //if no first name is specified, will return all owners
+            if (owner.getFirstName() == null) {
+                owner.setFirstName("");
+            }
+            //retrieve owners from both database with the specified first name
+            Collection<Owner> results = this.owners.findByFirstName(owner.getFirstName());
+            try (TableDataGateway tdg = shadowDb.openGateway()) {
+                ResultSet resultSet = tdg.getOwnersByFirstName(owner.getFirstName());
+                Iterator<Owner> oldIterator = results.iterator();
+
+                if (results.isEmpty()) {
+                    // no owners found
+                    result.rejectValue("firstName", "notFound", "not found");
+                    return "owners/findOwners";
+                } else if (results.size() == 1) {
+                    // 1 owner found
+                    owner = results.iterator().next();
+                    Integer expectedId = owner.getId();
+                    try {
+                        Integer actualId = resultSet.getInt("id");
+                        if (!expectedId.equals(actualId)) {
+                            tdg.updateInconsistencies(actualId, "owners", "id", expectedId);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    return "redirect:/owners/" + owner.getId();
+                } else {
+                    // multiple owners found
+                    model.put("selections", results);
+                    try {
+                        while (oldIterator.hasNext() && resultSet.next()) {
+                            if (!oldIterator.next().getId().equals(resultSet.getInt("id"))) {
+                                tdg.updateInconsistencies(resultSet.getInt("id"), "owners", "id", oldIterator.next().getId());
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    return "owners/ownersList";
+                }
+            }
         }else{
             ABTestingLogger.log("Search by first name enable" ,"","a");
             return "/error";
@@ -313,7 +301,7 @@ public class OwnerController {
         System.out.println("owner");
         String queryPetName = owner.getFirstName();
 
-        if(FeatureToggleManager.DO_ENABLE_PET_NAME_SEARCH){
+        if(FeatureToggleManager.DO_ENABLE_PET_NAME_SEARCH.isEnabled()){
             ABTestingLogger.log("Owner search by pet name enabled", "", "b");
 
             //if no first name is specified, will return all owners
@@ -322,11 +310,10 @@ public class OwnerController {
             }
             //retrieve owners from both database with the specified first name
             // Collection<Pet> results = this.pets.findByName(queryPetName);
-            db = new SQLiteDB();
-            tdg = new TableDataGateway(db);
-            ResultSet resultSet = this.tdg.getOwnersByPetName(queryPetName);
-            return "redirect:/owners/" + resultSet.getInt("id");
-
+            try (TableDataGateway tdg = shadowDb.openGateway()) {
+                ResultSet resultSet = tdg.getOwnersByPetName(queryPetName);
+                return "redirect:/owners/" + resultSet.getInt("id");
+            }
         }
 
         ABTestingLogger.log("Owner created", "", "a");
@@ -335,23 +322,8 @@ public class OwnerController {
 
     @GetMapping("/owners/{ownerId}/edit")
     public String initUpdateOwnerForm(@PathVariable("ownerId") int ownerId, Model model) {
-        Owner owner = this.owners.findById(ownerId); // find owner to update
+        Owner owner = readRouter.owner(ownerId, () -> this.owners.findById(ownerId)); // find owner to update
         model.addAttribute(owner);
-        db = new SQLiteDB();
-        tdg = new TableDataGateway(db);
-        ResultSet resultSet = this.tdg.getById(ownerId, "owners");
-        try {
-            String firstName = resultSet.getString("first_name");
-            String lastName = resultSet.getString("last_name");
-            String address = resultSet.getString("address");
-            String city = resultSet.getString("city");
-            String telephone = resultSet.getString("telephone");
-
-            checkAndUpdate(ownerId, owner, firstName, lastName, address, city, telephone);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
         return VIEWS_OWNER_CREATE_OR_UPDATE_FORM;
     }
 
@@ -362,6 +334,11 @@ public class OwnerController {
         } else {
             owner.setId(ownerId);
             this.owners.save(owner); // update owner
+
+            // routed reads come from the legacy store until the write is committed
+            if (FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER.isEnabled() || readRouter.getPercent() > 0) {
+                shadowWrites.upsert(owner);
+            }
             return "redirect:/owners/{ownerId}";
         }
     }
@@ -376,42 +353,9 @@ public class OwnerController {
     public ModelAndView showOwner(@PathVariable("ownerId") int ownerId) {
         ModelAndView mav = new ModelAndView("owners/ownerDetails");
 
-        mav.addObject(this.owners.findById(ownerId)); // find owner to display
-
-        db = new SQLiteDB();
-        tdg = new TableDataGateway(db);
-        ResultSet resultSet = this.tdg.getById(ownerId, "owners");
-        try {
-            String firstName = resultSet.getString("first_name");
-            String lastName = resultSet.getString("last_name");
-            String address = resultSet.getString("address");
-            String city = resultSet.getString("city");
-            String telephone = resultSet.getString("telephone");
-
-            checkAndUpdate(ownerId, this.owners.findById(ownerId), firstName, lastName, address, city, telephone);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        Owner owner = readRouter.owner(ownerId, () -> this.owners.findById(ownerId)); // find owner to display
+        mav.addObject(owner);
         return mav;
     }
 
-    private void checkAndUpdate(Integer ownerId, Owner owner, String firstName, String lastName, String address, String city, String telephone) {
-        if (!owner.getFirstName().equals(firstName)) {
-            this.tdg.updateInconsistencies(ownerId, "owners", "first_name", owner.getFirstName());
-        }
-        if (!owner.getLastName().equals(lastName)) {
-            this.tdg.updateInconsistencies(ownerId, "owners", "last_name", owner.getLastName());
-        }
-        if (!owner.getAddress().equals(address)) {
-            this.tdg.updateInconsistencies(ownerId, "owners", "address", owner.getAddress());
-        }
-        if (!owner.getCity().equals(city)) {
-            this.tdg.updateInconsistencies(ownerId, "owners", "city", owner.getCity());
-        }
-        if (!owner.getTelephone().equals(telephone)) {
-            this.tdg.updateInconsistencies(ownerId, "owners", "telephone", owner.getTelephone());
-        }
-    }
-
 }
@@ -16,9 +16,12 @@
 package org.springframework.samples.petclinic.owner;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.Repository;
 import org.springframework.data.repository.query.Param;
@@ -72,6 +75,45 @@ public interface OwnerRepository extends Repository<Owner, Integer> {
     @Transactional(readOnly = true)
     Collection<Owner> findAll();
 
+    /**
+     * Retrieve the ids of the next page of {@link Owner}s whose id is greater than the given id, in id order.
+     * @param lastId the last id of the previous page (0 for the first page)
+     * @param page the page size
+     * @return the ids of the next page of owners
+     */
+    @Query("SELECT owner.id FROM Owner owner WHERE owner.id > :lastId ORDER BY owner.id")
+    @Transactional(readOnly = true)
+    List<Integer> findIdsAfter(@Param("lastId") Integer lastId, Pageable page);
+
+    /**
+     * Retrieve the {@link Owner}s with the given ids, with their pets, in id order.
+     * @param ids the ids to search for
+     * @return the matching owners
+     */
+    @Query("SELECT DISTINCT owner FROM Owner owner left join fetch owner.pets WHERE owner.id IN :ids ORDER BY owner.id")
+    @Transactional(readOnly = true)
+    List<Owner> findByIds(@Param("ids") Collection<Integer> ids);
+
+    /**
+     * Retrieve the next page of {@link Owner}s (with their pets) after the given id. The ids are paged first so
+     * the fetch join never has to be paginated in memory.
+     * @param lastId the last id of the previous page (0 for the first page)
+     * @param page the page size
+     * @return the next page of owners, empty once the table is exhausted
+     */
+    default List<Owner> findChunkAfter(Integer lastId, Pageable page) {
+        List<Integer> ids = findIdsAfter(lastId, page);
+        return ids.isEmpty() ? Collections.emptyList() : findByIds(ids);
+    }
+
+    /**
+     * Retrieve the highest {@link Owner} id, used to split the table into id ranges.
+     * @return the highest id, or null when the table is empty
+     */
+    @Query("SELECT MAX(owner.id) FROM Owner owner")
+    @Transactional(readOnly = true)
+    Integer findMaxId();
+
     /**
      * Save an {@link Owner} to the data store, either inserting or updating it.
      * @param owner the {@link Owner} to save
@@ -27,9 +27,7 @@ import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.validation.Valid;
-import java.sql.ResultSet;
 import java.util.Collection;
-import java.util.Iterator;
 
 /**
  * @author Juergen Hoeller
@@ -43,30 +41,28 @@ public class PetController {
     private static final String VIEWS_PETS_CREATE_OR_UPDATE_FORM = "pets/createOrUpdatePetForm";
     private final PetRepository pets;
     private final OwnerRepository owners;
-    private SqlDB db;
-    private TableDataGateway tdg;
+    private final ShadowWriteQueue shadowWrites;
+    private final ShadowReader shadowReader;
+    private final ReadRouter readRouter;
 
-    public PetController(PetRepository pets, OwnerRepository owners) {
+    public PetController(PetRepository pets, OwnerRepository owners, ShadowWriteQueue shadowWrites, ShadowReader shadowReader,
+                         ReadRouter readRouter) {
         this.pets = pets;
         this.owners = owners;
-    }
-
-    public void setDbForTest(SqlDB db, TableDataGateway tdg) {
-        this.db = db;
-        this.tdg = tdg;
+        this.shadowWrites = shadowWrites;
+        this.shadowReader = shadowReader;
+        this.readRouter = readRouter;
     }
 
 
     @ModelAttribute("types")
     public Collection<PetType> populatePetTypes() {
-
-
-        db = new SQLiteDB();
-        tdg = new TableDataGateway(db);
-        ResultSet resultSet = this.tdg.selectTable("types");
-        shadowReadPetTypes(resultSet);
-        db.close();
-        return this.pets.findPetTypes();
+        long start = System.nanoTime();
+        Collection<PetType> types = this.pets.findPetTypes();
+        if (FeatureToggleManager.DO_SHADOW_READ.isEnabled()) {
+            shadowReader.petTypes(types, System.nanoTime() - start);
+        }
+        return types;
     }
 
     @ModelAttribute("owner")
@@ -86,10 +82,10 @@ public class PetController {
 
     @GetMapping("/pets/new")
     public String initCreationForm(Owner owner, ModelMap model) {
-        if (FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION) {
+        if (FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.isEnabled()) {
             ABTestingLogger.log("Pet being created", "", "b");
         } 
-        else if (FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION) {
+        else if (FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION.isEnabled()) {
             ABTestingLogger.log("Pet being created", "", "b");
         } 
         else {
@@ -116,22 +112,18 @@ public class PetController {
             this.pets.save(pet);
 
             // check if feature toggle is on
-            if(FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER)
+            if(FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER.isEnabled() || readRouter.getPercent() > 0)
             {
-            	if(!FeatureToggleManager.DOING_MIGRATION_TEST){
-                    db = new SQLiteDB();
-                    tdg = new TableDataGateway(db);
-                }
-            	// insert into new SQLite db
-                tdg.insertPet(pet);
+                // queue the write to the new SQLite db, routed reads are served from it
+                shadowWrites.upsert(pet);
             }
 
-            if (FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION) {
+            if (FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.isEnabled()) {
                 ABTestingLogger.log("Pet created", pet, "b");
                
             }
            
-            else if (FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION) {
+            else if (FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION.isEnabled()) {
                 ABTestingLogger.log("Pet being created", "", "b");
                 return "redirect:/owners/{ownerId}/pets/"+pet.getId()+"/visits/new";
             } 
@@ -147,21 +139,8 @@ public class PetController {
 
     @GetMapping("/pets/{petId}/edit")
     public String initUpdateForm(@PathVariable("petId") int petId, ModelMap model) {
-        Pet pet = this.pets.findById(petId);
-        db = new SQLiteDB();
-        tdg = new TableDataGateway(db);
-        ResultSet resultSet = this.tdg.getById(petId, "pets");
+        Pet pet = readRouter.pet(petId, () -> this.pets.findById(petId));
         model.put("pet", pet);
-        try {
-            String name = resultSet.getString("name");
-            String birthDate = resultSet.getString("birth_date");
-            String typeId = tdg.getPetType(resultSet.getInt("type_id"));
-            Integer ownerId = resultSet.getInt("owner_id");
-
-            checkAndUpdate(pet, petId, name, birthDate, typeId, ownerId);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
         return VIEWS_PETS_CREATE_OR_UPDATE_FORM;
     }
 
@@ -174,45 +153,13 @@ public class PetController {
         } else {
             owner.addPet(pet);
             this.pets.save(pet);
-            return "redirect:/owners/{ownerId}";
-        }
-    }
 
-    private void shadowReadPetTypes(ResultSet resultSet){
-        if (FeatureToggleManager.DO_SHADOW_READ){
-            Collection<PetType> result = this.pets.findPetTypes();
-            Iterator<PetType> oldIterator = result.iterator();
-            try {
-                while(resultSet.next() && oldIterator.hasNext()){
-                    String name = resultSet.getString("name");
-                    Integer id = resultSet.getInt("id");
-                    PetType nextPetType = oldIterator.next();
-                    if (!nextPetType.getName().equals(name)) {
-                        this.tdg.updateInconsistencies(id, "types", "name", nextPetType.getName());
-                    }
-                    if (!nextPetType.getId().equals(id)) {
-                        this.tdg.updateInconsistencies(id, "types", "id", nextPetType.getId());
-                    }
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
+            // routed reads come from the legacy store until the write is committed
+            if (FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER.isEnabled() || readRouter.getPercent() > 0) {
+                shadowWrites.upsert(pet);
             }
+            return "redirect:/owners/{ownerId}";
         }
     }
 
-    public void checkAndUpdate(Pet pet, Integer petId, String name, String birthDate, String typeId, Integer ownerId) {
-        if (!pet.getName().equals(name)) {
-            this.tdg.updateInconsistencies(petId, "pets", "name", pet.getName());
-        }
-        if (!pet.getBirthDate().toString().equals(birthDate)) {
-            this.tdg.updateInconsistencies(petId, "pets", "birth_date", pet.getBirthDate().toString());
-        }
-        if (!(pet.getType().toString().equals(typeId))) {
-            this.tdg.updateInconsistencies(petId, "pets", "type_id", pet.getType().toString());
-        }
-        if (!pet.getOwner().getId().equals(ownerId)) {
-            this.tdg.updateInconsistencies(petId, "pets", "owner_id", pet.getOwner().getId());
-        }
-    }
 }
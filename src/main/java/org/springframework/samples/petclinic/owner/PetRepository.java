@@ -16,6 +16,7 @@
 package org.springframework.samples.petclinic.owner;
 
 import java.util.List;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.query.Param;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.Repository;
@@ -55,6 +56,25 @@ public interface PetRepository extends Repository<Pet, Integer> {
      */
     void save(Pet pet);
 
+    /**
+     * Retrieve the next page of {@link Pet}s whose id is greater than the given id, in id order, with their type
+     * and owner.
+     * @param lastId the last id of the previous page (0 for the first page)
+     * @param page the page size
+     * @return the next page of pets, empty once the table is exhausted
+     */
+    @Query("SELECT pet FROM Pet pet join fetch pet.type join fetch pet.owner WHERE pet.id > :lastId ORDER BY pet.id")
+    @Transactional(readOnly = true)
+    List<Pet> findChunkAfter(@Param("lastId") Integer lastId, Pageable page);
+
+    /**
+     * Retrieve the highest {@link Pet} id, used to split the table into id ranges.
+     * @return the highest id, or null when the table is empty
+     */
+    @Query("SELECT MAX(pet.id) FROM Pet pet")
+    @Transactional(readOnly = true)
+    Integer findMaxId();
+
     /**
      * Retrieve an {@link Pet} from the data store by id.
      * @param name the name of the pet to search for
@@ -19,9 +19,8 @@ import org.springframework.samples.petclinic.toggles.ABTestingLogger;
 import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
 
 import org.springframework.samples.petclinic.migration.ConsistencyChecker;
-import org.springframework.samples.petclinic.migration.SQLiteDB;
-import org.springframework.samples.petclinic.migration.SqlDB;
-import org.springframework.samples.petclinic.migration.TableDataGateway;
+import org.springframework.samples.petclinic.migration.ReadRouter;
+import org.springframework.samples.petclinic.migration.ShadowWriteQueue;
 import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
 import org.springframework.samples.petclinic.visit.Visit;
 import org.springframework.samples.petclinic.visit.VisitRepository;
@@ -31,7 +30,6 @@ import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.validation.Valid;
-import java.sql.ResultSet;
 import java.util.Map;
 
 /**
@@ -47,13 +45,15 @@ public class VisitController {
     private final VisitRepository visits;
     private final PetRepository pets;
 
-    private SqlDB db;
-    private TableDataGateway tdg;
+    private final ShadowWriteQueue shadowWrites;
+    private final ReadRouter readRouter;
     private ConsistencyChecker cc;
 
-    public VisitController(VisitRepository visits, PetRepository pets) {
+    public VisitController(VisitRepository visits, PetRepository pets, ShadowWriteQueue shadowWrites, ReadRouter readRouter) {
         this.visits = visits;
         this.pets = pets;
+        this.shadowWrites = shadowWrites;
+        this.readRouter = readRouter;
     }
 
     @InitBinder
@@ -61,11 +61,6 @@ public class VisitController {
         dataBinder.setDisallowedFields("id");
     }
 
-    public void setDbForTest(SqlDB db, TableDataGateway tdg) {
-        this.db = db;
-        this.tdg = tdg;
-    }
-
     /**
      * Called before each and every @RequestMapping annotated method.
      * 2 goals:
@@ -78,21 +73,7 @@ public class VisitController {
      */
     @ModelAttribute("visit")
     public Visit loadPetWithVisit(@PathVariable("petId") int petId, Map<String, Object> model) {
-        Pet pet = this.pets.findById(petId);
-        db = new SQLiteDB();
-        tdg = new TableDataGateway(db);
-        ResultSet resultSet = this.tdg.getById(petId, "pets");
-        try {
-            String name = resultSet.getString("name");
-            String birthDate = resultSet.getString("birth_date");
-            String typeId = tdg.getPetType(resultSet.getInt("type_id"));
-            Integer ownerId = resultSet.getInt("owner_id");
-
-            checkAndUpdate(pet, petId, name, birthDate, typeId, ownerId);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
+        Pet pet = readRouter.pet(petId, () -> this.pets.findById(petId));
         model.put("pet", pet);
         Visit visit = new Visit();
         pet.addVisit(visit);
@@ -103,7 +84,7 @@ public class VisitController {
     @GetMapping("/owners/*/pets/{petId}/visits/new")
     public String initNewVisitForm(@PathVariable("petId") int petId, Map<String, Object> model) {
 
-        if (FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION) {
+        if (FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION.isEnabled()) {
             ABTestingLogger.log("Visit being created", "", "b");
         }
         else {
@@ -122,15 +103,10 @@ public class VisitController {
             this.visits.save(visit);
 
             // Check if feature toggle is on
-            if(FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER)
+            if(FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER.isEnabled() || readRouter.getPercent() > 0)
             {
-                if(!FeatureToggleManager.DOING_MIGRATION_TEST){      
-                db = new SQLiteDB();
-                tdg = new TableDataGateway(db);
-                }
-
-                // insert into new SQLite db
-                tdg.insertVisit(visit);
+                // queue the write to the new SQLite db, routed reads are served from it
+                shadowWrites.upsert(visit);
                 }
 
             return "redirect:/owners/{ownerId}";
@@ -139,19 +115,4 @@ public class VisitController {
 
     
 
-    public void checkAndUpdate(Pet pet, Integer petId, String name, String birthDate, String typeId, Integer ownerId) {
-        if (!pet.getName().equals(name)) {
-            this.tdg.updateInconsistencies(petId, "pets", "name", pet.getName());
-        }
-        if (!pet.getBirthDate().toString().equals(birthDate)) {
-            this.tdg.updateInconsistencies(petId, "pets", "birth_date", pet.getBirthDate().toString());
-        }
-        if (!(pet.getType().toString().equals(typeId))) {
-            this.tdg.updateInconsistencies(petId, "pets", "type_id", pet.getType().toString());
-        }
-        if (!pet.getOwner().getId().equals(ownerId)) {
-            this.tdg.updateInconsistencies(petId, "pets", "owner_id", pet.getOwner().getId());
-        }
-    }
-
 }
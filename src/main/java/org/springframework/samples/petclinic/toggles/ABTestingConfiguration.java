@@ -0,0 +1,65 @@
+package org.springframework.samples.petclinic.toggles;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Settings of the A/B testing logs.
+ */
+@Configuration
+class ABTestingConfiguration {
+
+    /**
+     * Stores the logs of ABTestingLogger: in batches on a background thread (SQLITE, metrics under ab-testing.log) or
+     * in memory-mapped segment files (SEGMENTS, metrics under ab-testing.segments).
+     */
+    @Bean
+    ABTestingLogSink abTestingLogSink(@Value("${ab-testing.log.sink:SQLITE}") ABTestingLogSink.Type type,
+                                      @Value("${ab-testing.log.capacity:8192}") int capacity,
+                                      @Value("${ab-testing.log.batch-size:256}") int batchSize,
+                                      @Value("${ab-testing.log.flush-interval-ms:200}") long flushIntervalMillis,
+                                      @Value("${ab-testing.segments.directory:ab-testing-log}") File directory,
+                                      @Value("${ab-testing.segments.segment-size:16777216}") int segmentSize,
+                                      @Value("${ab-testing.segments.max-segments:64}") int maxSegments,
+                                      @Value("${ab-testing.segments.sync-interval-ms:1000}") long syncIntervalMillis) throws IOException {
+        ABTestingLogSink sink = type == ABTestingLogSink.Type.SEGMENTS
+            ? new ABTestingSegmentLog(directory, segmentSize, maxSegments, syncIntervalMillis)
+            : new ABTestingLogWriter(ABTestingLogger.getDbName(), capacity, batchSize, flushIntervalMillis);
+        ABTestingLogger.install(sink);
+        return sink;
+    }
+
+    /**
+     * Counts of the logs by logName, variant and time bucket, flushed to the rollups table of a_b_testing.db. Its
+     * metrics are published under ab-testing.rollups.
+     */
+    @Bean
+    ABTestingRollups abTestingRollups(@Value("${ab-testing.rollups.bucket-ms:60000}") long bucketMillis,
+                                      @Value("${ab-testing.rollups.flush-interval-ms:10000}") long flushIntervalMillis) {
+        ABTestingRollups rollups = new ABTestingRollups(ABTestingLogger.getDbName(), bucketMillis, flushIntervalMillis);
+        ABTestingLogger.install(rollups);
+        return rollups;
+    }
+
+    /**
+     * Conversion funnels of the variants from the rollups, at /manage/abfunnel.
+     */
+    @Bean
+    ABTestingFunnelEndpoint abTestingFunnelEndpoint(ABTestingRollups abTestingRollups) {
+        return new ABTestingFunnelEndpoint(abTestingRollups);
+    }
+
+    /**
+     * The logs kept in segment files by logName and variant, and their replay into a_b_testing.db, at /manage/abtesting.
+     */
+    @Bean
+    ABTestingEndpoint abTestingEndpoint(ABTestingLogSink abTestingLogSink,
+                                        @Value("${ab-testing.log.batch-size:256}") int batchSize) {
+        return new ABTestingEndpoint(abTestingLogSink, ABTestingLogger.getDbName(), batchSize);
+    }
+
+}
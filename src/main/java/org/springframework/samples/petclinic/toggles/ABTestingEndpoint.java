@@ -0,0 +1,53 @@
+package org.springframework.samples.petclinic.toggles;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+/manage/abtesting: with the SEGMENTS sink, GET counts the logs not replayed yet by logName and variant, and POST
+replays them into the logs table of the SQLite database. With the SQLITE sink the logs are in that table already.
+ */
+@Endpoint(id = "abtesting")
+class ABTestingEndpoint {
+
+    private final ABTestingLogSink sink;
+    private final String dbName;
+    private final int batchSize;
+
+    ABTestingEndpoint(ABTestingLogSink sink, String dbName, int batchSize) {
+        this.sink = sink;
+        this.dbName = dbName;
+        this.batchSize = batchSize;
+    }
+
+    @ReadOperation
+    public Map<String, Object> report() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        if (!(sink instanceof ABTestingSegmentLog)) {
+            report.put("sink", ABTestingLogSink.Type.SQLITE);
+            return report;
+        }
+        ABTestingSegmentLog segments = (ABTestingSegmentLog) sink;
+        report.put("sink", ABTestingLogSink.Type.SEGMENTS);
+        report.putAll(segments.getStatus());
+        report.put("logs", segments.report());
+        return report;
+    }
+
+    @WriteOperation
+    public Map<String, Object> replay() throws IOException {
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (sink instanceof ABTestingSegmentLog) {
+            result.put("replayed", ((ABTestingSegmentLog) sink).replayInto(dbName, batchSize));
+        } else {
+            result.put("replayed", 0);
+        }
+        result.put("database", dbName);
+        return result;
+    }
+}
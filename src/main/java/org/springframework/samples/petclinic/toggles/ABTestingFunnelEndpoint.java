@@ -0,0 +1,43 @@
+package org.springframework.samples.petclinic.toggles;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+/manage/abfunnel: per variant, how often each step of the funnel was logged and its share of the first step, read
+from the rollups instead of the logs. steps is a comma separated list of log names, by default owner creation
+through to pet creation; sinceMinutes limits the counts to the last minutes (all of them by default).
+ */
+@Endpoint(id = "abfunnel")
+class ABTestingFunnelEndpoint {
+
+    static final List<String> DEFAULT_STEPS = Arrays.asList("Owner being created", "Owner created", "Pet created");
+
+    private final ABTestingRollups rollups;
+
+    ABTestingFunnelEndpoint(ABTestingRollups rollups) {
+        this.rollups = rollups;
+    }
+
+    @ReadOperation
+    public Map<String, Object> funnel(@Nullable String steps, @Nullable Long sinceMinutes) {
+        List<String> funnelSteps = new ArrayList<>();
+        for (String step : steps == null ? new String[0] : steps.split(",")) {
+            if (!step.trim().isEmpty()) funnelSteps.add(step.trim());
+        }
+        if (funnelSteps.isEmpty()) funnelSteps = DEFAULT_STEPS;
+        long since = sinceMinutes == null ? 0 : System.currentTimeMillis() - sinceMinutes * 60000;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("steps", funnelSteps);
+        report.put("variants", rollups.funnel(funnelSteps, since));
+        return report;
+    }
+}
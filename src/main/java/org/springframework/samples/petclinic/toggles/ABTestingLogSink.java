@@ -0,0 +1,32 @@
+package org.springframework.samples.petclinic.toggles;
+
+import io.micrometer.core.instrument.binder.MeterBinder;
+import net.minidev.json.JSONObject;
+
+/*
+Where ABTestingLogger puts its records: the logs table of a SQLite database (ABTestingLogWriter) or memory-mapped
+segment files (ABTestingSegmentLog), chosen with ab-testing.log.sink.
+ */
+public interface ABTestingLogSink extends MeterBinder, AutoCloseable {
+
+    enum Type { SQLITE, SEGMENTS }
+
+    /*
+    Takes the record, which references the toggles by their version, without waiting for it to be stored. The
+    snapshot is stored too unless it already was. Returns false when the record was dropped.
+     */
+    boolean offer(JSONObject record, ToggleSnapshot toggles);
+
+    /*
+    Waits until the records taken so far are stored, or the timeout passes. Returns whether they were.
+     */
+    boolean flush(long timeoutMillis);
+
+    /*
+    Discards every record stored so far.
+     */
+    void reset();
+
+    @Override
+    void close();
+}
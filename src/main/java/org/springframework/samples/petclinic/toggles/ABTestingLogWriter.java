@@ -0,0 +1,236 @@
+package org.springframework.samples.petclinic.toggles;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import net.minidev.json.JSONObject;
+import org.springframework.samples.petclinic.migration.SQLiteDB;
+import org.springframework.samples.petclinic.migration.SqlDB;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Writes the A/B testing logs off the request threads. offer() puts the record in a lock-free ring buffer and returns;
+a single writer thread keeps one connection to the log database open and inserts the records in transactions of up
+to batchSize rows, as soon as that many are waiting or flushIntervalMillis after the first of them arrived. A toggle
+snapshot is inserted into the toggle_snapshots table no later than the first batch that references it.
+
+When the buffer is full the record is dropped and counted, so a slow disk never holds up a request. Records are
+serialized on the writer thread, the caller must not change a record after offering it.
+ */
+public class ABTestingLogWriter implements ABTestingLogSink, MeterBinder {
+
+    static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS `logs` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `log` TEXT)";
+    private static final String INSERT = "INSERT INTO `logs` ( log ) VALUES ( ? )";
+    private static final String CREATE_SNAPSHOTS_TABLE = "CREATE TABLE IF NOT EXISTS `toggle_snapshots` ( `version` INTEGER PRIMARY KEY, `toggles` TEXT)";
+    private static final String INSERT_SNAPSHOT = "INSERT OR IGNORE INTO `toggle_snapshots` ( version, toggles ) VALUES ( ?, ? )";
+
+    private final String dbName;
+    private final LogRingBuffer<JSONObject> buffer;
+    private final SeenSnapshots seenSnapshots = new SeenSnapshots();
+    private final Queue<ToggleSnapshot> newSnapshots = new ConcurrentLinkedQueue<>();
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile boolean flushRequested = false;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public ABTestingLogWriter(String dbName, int capacity, int batchSize, long flushIntervalMillis) {
+        this.dbName = dbName;
+        this.buffer = new LogRingBuffer<>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMillis));
+        this.writer = new Thread(this::writeLoop, "ab-testing-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /*
+    Queues the record, whose JSON text is the row written. Returns false when it was dropped.
+     */
+    @Override
+    public boolean offer(JSONObject record, ToggleSnapshot toggles) {
+        seenSnapshots.storeOnce(toggles, newSnapshots::add); // queued before the record, so the writer finds it when it takes the record
+        accepted.increment(); // before the writer can see the record, so getPending() never goes negative
+        if (closed || !buffer.offer(record)) {
+            accepted.decrement();
+            dropped.increment();
+            return false;
+        }
+        if (buffer.size() == batchSize) {
+            LockSupport.unpark(writer); // a full batch is waiting, do not wait for the interval
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        List<JSONObject> batch = new ArrayList<>(batchSize);
+        long deadline = 0;
+        SqlDB db = null;
+        while (true) {
+            JSONObject record;
+            while (batch.size() < batchSize && (record = buffer.poll()) != null) {
+                if (batch.isEmpty()) deadline = System.nanoTime() + flushIntervalNanos;
+                batch.add(record);
+            }
+            if (!batch.isEmpty() && (batch.size() >= batchSize || System.nanoTime() - deadline >= 0 || flushRequested || closed)) {
+                db = write(db, batch);
+                batch.clear();
+                continue;
+            }
+            if (batch.isEmpty()) {
+                flushRequested = false;
+                if (closed && buffer.size() == 0) break;
+            }
+            LockSupport.parkNanos(this, batch.isEmpty() ? flushIntervalNanos : deadline - System.nanoTime());
+        }
+        if (db != null) db.close();
+    }
+
+    /*
+    Inserts the batch in one transaction. Returns the connection to use for the next one, null after a failure so the
+    next batch reconnects.
+     */
+    private SqlDB write(SqlDB db, List<JSONObject> batch) {
+        List<ToggleSnapshot> snapshots = new ArrayList<>();
+        for (ToggleSnapshot snapshot; (snapshot = newSnapshots.poll()) != null; ) {
+            snapshots.add(snapshot);
+        }
+        try {
+            if (db == null) db = new SQLiteDB(dbName);
+            insert(db, snapshots, batch);
+            written.addAndGet(batch.size());
+            batches.incrementAndGet();
+            return db;
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+            failed.addAndGet(batch.size());
+            newSnapshots.addAll(snapshots); // the records under them may still come
+            if (db != null) db.close(); // rolls the transaction back
+            return null;
+        }
+    }
+
+    /*
+    Inserts the snapshots and the records into the toggle_snapshots and logs tables of the database in one
+    transaction, creating the tables when they are missing.
+     */
+    static void insert(SqlDB db, Collection<ToggleSnapshot> snapshots, List<JSONObject> records) throws SQLException {
+        db.setAutoCommit(false);
+        db.execute(CREATE_TABLE); // the table may have been dropped by resetLogger
+        if (!snapshots.isEmpty()) {
+            db.execute(CREATE_SNAPSHOTS_TABLE);
+            PreparedStatement insertSnapshot = db.prepare(INSERT_SNAPSHOT);
+            for (ToggleSnapshot snapshot : snapshots) {
+                insertSnapshot.setLong(1, snapshot.getVersion());
+                insertSnapshot.setString(2, snapshot.toJSONString());
+                insertSnapshot.addBatch();
+            }
+            insertSnapshot.executeBatch();
+        }
+        PreparedStatement insert = db.prepare(INSERT);
+        for (JSONObject record : records) {
+            insert.setString(1, record.toString());
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        db.commit();
+        db.setAutoCommit(true);
+    }
+
+    /*
+    Writes what is buffered now and waits until it is committed, or the timeout passes. Returns whether it was.
+     */
+    @Override
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        flushRequested = true;
+        LockSupport.unpark(writer);
+        while (getPending() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return getPending() == 0;
+    }
+
+    /*
+    Drops the logs table, after writing what is buffered so it goes too. The next batch creates the table again.
+     */
+    @Override
+    public void reset() {
+        flush(5000);
+        SqlDB db = new SQLiteDB(dbName);
+        db.execute("DROP TABLE IF EXISTS logs");
+        db.close();
+    }
+
+    /*
+    Stops taking records and gives the writer a few seconds to write what is buffered.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+    Records taken and not yet written or failed.
+     */
+    public long getPending() {
+        return accepted.sum() - written.get() - failed.get();
+    }
+
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("ab-testing.log.pending", this, ABTestingLogWriter::getPending)
+            .description("A/B testing logs buffered or being written").register(registry);
+        Gauge.builder("ab-testing.log.capacity", this, ABTestingLogWriter::getCapacity)
+            .description("Maximum number of buffered A/B testing logs").register(registry);
+        FunctionCounter.builder("ab-testing.log.dropped", dropped, LongAdder::sum)
+            .description("A/B testing logs dropped because the buffer was full").register(registry);
+        FunctionCounter.builder("ab-testing.log.written", written, AtomicLong::get)
+            .description("A/B testing logs written").register(registry);
+        FunctionCounter.builder("ab-testing.log.failed", failed, AtomicLong::get)
+            .description("A/B testing logs whose write failed").register(registry);
+        FunctionCounter.builder("ab-testing.log.batches", batches, AtomicLong::get)
+            .description("Transactions committed").register(registry);
+    }
+}
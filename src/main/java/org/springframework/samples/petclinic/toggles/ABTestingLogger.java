@@ -1,33 +1,41 @@
 package org.springframework.samples.petclinic.toggles;
 
 import net.minidev.json.JSONObject;
-import org.springframework.samples.petclinic.migration.SQLiteDB;
-import org.springframework.samples.petclinic.migration.SqlDB;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.List;
 
+/*
+Logs go to an ABTestingLogSink: by default an ABTestingLogWriter, which writes them to the logs table of a_b_testing.db
+in batches on its own thread. Until ABTestingConfiguration installs the configured sink, such a writer with the
+default settings is used. Every log is also counted in the ABTestingRollups.
+ */
 public class ABTestingLogger {
 
     private static String dbName = "a_b_testing.db";
 
+    static final int DEFAULT_CAPACITY = 8192;
+    static final int DEFAULT_BATCH_SIZE = 256;
+    static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+    static final long DEFAULT_ROLLUP_BUCKET_MILLIS = 60000;
+    static final long DEFAULT_ROLLUP_FLUSH_INTERVAL_MILLIS = 10000;
+
+    private static volatile ABTestingLogSink sink;
+    private static volatile ABTestingRollups rollups;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
     /***
      *
      * @param logName Name of thing being logged
      * @param object Log any object needed
      * @param a_or_b Use the string "a" or the string "b" to denote the two classifications of experiment
-     * @return Example JSONObject return value
+     * @return Example JSONObject return value, toggles_version is the version of the FeatureToggleManager snapshot
+     * the log was taken under, whose toggles are stored in the toggle_snapshots table
      * {
      *     "a_or_b": "a",
      *     "logName": "logName",
-     *     "toggles": {
-     *         "DO_RUN_CONSISTENCY_CHECKER": false,
-     *         "DO_DROP_TABLES_UPON_FORKLIFT": true,
-     *         "DO_SHADOW_READ": false,
-     *         "DO_DISPLAY_LINK_TO_OWNER_LIST": true,
-     *         "DOING_MIGRATION_TEST": false
-     *     },
+     *     "toggles_version": 1554675541000,
      *     "time": "2019/04/07 22:19:01",
      *     "object": "value"
      * }
@@ -36,46 +44,89 @@ public class ABTestingLogger {
 
     public static JSONObject log(String logName, Object object, String a_or_b){
         // Get current time
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
         LocalDateTime now = LocalDateTime.now();
 
+        // Current state of the feature toggles, shared by the logs until a toggle changes
+        ToggleSnapshot toggles = FeatureToggleManager.snapshot();
+
         // Add keys to the JSON object
         JSONObject obj = new JSONObject();
         obj.put("logName", logName);
         obj.put("object", object.toString());
-        obj.put("time",dtf.format(now));
+        obj.put("time", TIME_FORMAT.format(now));
         obj.put("a_or_b", a_or_b);
-
-        // Add current state of feature toggles to JSON object
-        try {
-            List<Toggle> toggles = FeatureToggleManager.getToggles();
-            JSONObject toggleObj = new JSONObject();
-            for (Toggle toggle : toggles){
-                toggleObj.put(toggle.name, toggle.value);
-            }
-            obj.put("toggles", toggleObj);
-        } catch (IllegalAccessException e) {
-            System.out.print("ERROR: Toggle object failed.");
-            //e.printStackTrace();
-        }
+        obj.put("toggles_version", toggles.getVersion());
 
         // Print it
         // System.out.println(obj.toString());
 
-        // Save it
-        SqlDB db = new SQLiteDB(dbName);
-        db.execute("CREATE TABLE IF NOT EXISTS `logs` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `log` TEXT)");
-        db.execute(String.format("INSERT INTO `logs` ( log ) VALUES ('%s')", obj.toString()));
-        db.close();
+        // Save it, off the request thread, and count it
+        getSink().offer(obj, toggles);
+        getRollups().record(logName, a_or_b, System.currentTimeMillis());
 
         return obj;
     }
 
+    static ABTestingLogSink getSink() {
+        ABTestingLogSink current = sink;
+        if (current == null) {
+            synchronized (ABTestingLogger.class) {
+                current = sink;
+                if (current == null) {
+                    current = new ABTestingLogWriter(dbName, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+                    sink = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /*
+    Makes the logs go to the given sink. The previous one stores what it has buffered and stops.
+     */
+    static void install(ABTestingLogSink newSink) {
+        ABTestingLogSink previous;
+        synchronized (ABTestingLogger.class) {
+            previous = sink;
+            sink = newSink;
+        }
+        if (previous != null && previous != newSink) previous.close();
+    }
+
+    static ABTestingRollups getRollups() {
+        ABTestingRollups current = rollups;
+        if (current == null) {
+            synchronized (ABTestingLogger.class) {
+                current = rollups;
+                if (current == null) {
+                    current = new ABTestingRollups(dbName, DEFAULT_ROLLUP_BUCKET_MILLIS, DEFAULT_ROLLUP_FLUSH_INTERVAL_MILLIS);
+                    rollups = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /*
+    Makes the logs be counted in the given rollups. The previous ones flush their counts and stop.
+     */
+    static void install(ABTestingRollups newRollups) {
+        ABTestingRollups previous;
+        synchronized (ABTestingLogger.class) {
+            previous = rollups;
+            rollups = newRollups;
+        }
+        if (previous != null && previous != newRollups) previous.close();
+    }
+
+    static String getDbName() {
+        return dbName;
+    }
+
     public static void resetLogger(){
-        // Drop logs
-        SqlDB db = new SQLiteDB(dbName);
-        db.execute("DROP TABLE IF EXISTS logs");
-        db.close();
+        // Drop logs and their counts
+        getSink().reset();
+        getRollups().reset();
     }
 
 }
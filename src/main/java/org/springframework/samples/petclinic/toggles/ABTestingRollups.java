@@ -0,0 +1,231 @@
+package org.springframework.samples.petclinic.toggles;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.samples.petclinic.migration.SQLiteDB;
+import org.springframework.samples.petclinic.migration.SqlDB;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Counts the A/B testing logs by logName, variant and time bucket of bucketMillis as they are logged, so an experiment
+can be evaluated without reading the logs. record() only increments a LongAdder; every flushIntervalMillis a flush
+thread adds what was counted since the last flush to the rollups table of the log database, in one transaction, and
+forgets the buckets that are over.
+
+funnel() gives, per variant, how many times each step was logged and its share of the first step.
+ */
+public class ABTestingRollups implements MeterBinder, AutoCloseable {
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS `rollups` ( `log_name` TEXT, `variant` TEXT, "
+        + "`bucket_start` INTEGER, `count` INTEGER, PRIMARY KEY (`log_name`, `variant`, `bucket_start`) )";
+    private static final String UPSERT = "INSERT INTO `rollups` ( log_name, variant, bucket_start, count ) VALUES ( ?, ?, ?, ? ) "
+        + "ON CONFLICT(log_name, variant, bucket_start) DO UPDATE SET count = count + excluded.count";
+    private static final String TOTALS = "SELECT log_name, variant, SUM(count) AS total FROM `rollups` "
+        + "WHERE bucket_start >= ? GROUP BY log_name, variant";
+
+    private final String dbName;
+    private final long bucketMillis;
+    private final ConcurrentHashMap<Key, Counter> counters = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private SqlDB db; // guarded by this
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private static final class Key {
+        final String logName;
+        final String variant;
+        final long bucketStart;
+
+        Key(String logName, String variant, long bucketStart) {
+            this.logName = logName;
+            this.variant = variant;
+            this.bucketStart = bucketStart;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return bucketStart == key.bucketStart && logName.equals(key.logName) && variant.equals(key.variant);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(logName, variant, bucketStart);
+        }
+    }
+
+    private static final class Counter {
+        final LongAdder count = new LongAdder();
+        long flushed; // guarded by the rollups
+    }
+
+    public ABTestingRollups(String dbName, long bucketMillis, long flushIntervalMillis) {
+        this.dbName = dbName;
+        this.bucketMillis = Math.max(1, bucketMillis);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ab-testing-rollups");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (flushIntervalMillis > 0) {
+            flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void record(String logName, String variant, long timeMillis) {
+        Key key = new Key(String.valueOf(logName), String.valueOf(variant), bucketStart(timeMillis));
+        Counter counter = counters.get(key);
+        if (counter == null) counter = counters.computeIfAbsent(key, k -> new Counter());
+        counter.count.increment();
+    }
+
+    private long bucketStart(long timeMillis) {
+        return Math.floorDiv(timeMillis, bucketMillis) * bucketMillis;
+    }
+
+    /*
+    Adds the counts since the last flush to the rollups table. Returns whether they were written; when not, they are
+    written by the next flush.
+     */
+    public synchronized boolean flush() {
+        List<Counter> written = new ArrayList<>();
+        List<Long> totals = new ArrayList<>();
+        try {
+            if (db == null) db = new SQLiteDB(dbName);
+            db.setAutoCommit(false);
+            db.execute(CREATE_TABLE);
+            PreparedStatement upsert = db.prepare(UPSERT);
+            for (Map.Entry<Key, Counter> entry : counters.entrySet()) {
+                Counter counter = entry.getValue();
+                long total = counter.count.sum();
+                if (total == counter.flushed) continue;
+                upsert.setString(1, entry.getKey().logName);
+                upsert.setString(2, entry.getKey().variant);
+                upsert.setLong(3, entry.getKey().bucketStart);
+                upsert.setLong(4, total - counter.flushed);
+                upsert.addBatch();
+                written.add(counter);
+                totals.add(total);
+            }
+            if (!written.isEmpty()) upsert.executeBatch();
+            db.commit();
+            db.setAutoCommit(true);
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+            failures.incrementAndGet();
+            if (db != null) db.close(); // rolls the transaction back
+            db = null;
+            return false;
+        }
+        for (int i = 0; i < written.size(); i++) {
+            written.get(i).flushed = totals.get(i);
+        }
+        flushes.incrementAndGet();
+        forgetOldBuckets();
+        return true;
+    }
+
+    /*
+    Buckets that ended before the previous one no longer get logs, once they are flushed they can go.
+     */
+    private void forgetOldBuckets() {
+        long oldest = bucketStart(System.currentTimeMillis()) - bucketMillis;
+        counters.entrySet().removeIf(entry -> entry.getKey().bucketStart < oldest
+            && entry.getValue().count.sum() == entry.getValue().flushed);
+    }
+
+    /*
+    Per variant, the count of each step logged since sinceMillis and its share of the first step's count. Flushes
+    first, so the counts are up to date.
+     */
+    public synchronized Map<String, List<Map<String, Object>>> funnel(List<String> steps, long sinceMillis) {
+        flush();
+        Map<String, Map<String, Long>> totals = new TreeMap<>();
+        try {
+            if (db == null) db = new SQLiteDB(dbName);
+            db.execute(CREATE_TABLE);
+            PreparedStatement select = db.prepare(TOTALS);
+            select.setLong(1, bucketStart(sinceMillis));
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next()) {
+                    String logName = rows.getString("log_name");
+                    if (!steps.contains(logName)) continue;
+                    totals.computeIfAbsent(rows.getString("variant"), variant -> new HashMap<>())
+                        .put(logName, rows.getLong("total"));
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+            if (db != null) db.close();
+            db = null;
+        }
+        Map<String, List<Map<String, Object>>> funnel = new TreeMap<>();
+        totals.forEach((variant, counts) -> {
+            List<Map<String, Object>> stages = new ArrayList<>();
+            long first = counts.getOrDefault(steps.get(0), 0L);
+            for (String step : steps) {
+                long count = counts.getOrDefault(step, 0L);
+                Map<String, Object> stage = new LinkedHashMap<>();
+                stage.put("step", step);
+                stage.put("count", count);
+                stage.put("conversion", first == 0 ? null : (double) count / first);
+                stages.add(stage);
+            }
+            funnel.put(variant, stages);
+        });
+        return funnel;
+    }
+
+    /*
+    Forgets the counts and drops the rollups table.
+     */
+    public synchronized void reset() {
+        counters.clear();
+        if (db == null) db = new SQLiteDB(dbName);
+        db.execute("DROP TABLE IF EXISTS rollups");
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        synchronized (this) {
+            flush();
+            if (db != null) db.close();
+            db = null;
+        }
+    }
+
+    public int getBuckets() {
+        return counters.size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("ab-testing.rollups.buckets", this, ABTestingRollups::getBuckets)
+            .description("Counters of logName, variant and time bucket kept in memory").register(registry);
+        FunctionCounter.builder("ab-testing.rollups.flushes", flushes, AtomicLong::get)
+            .description("Flushes of the counters to the rollups table").register(registry);
+        FunctionCounter.builder("ab-testing.rollups.failures", failures, AtomicLong::get)
+            .description("Flushes that failed and are retried by the next one").register(registry);
+    }
+}
@@ -0,0 +1,343 @@
+package org.springframework.samples.petclinic.toggles;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.minidev.json.JSONObject;
+import org.springframework.samples.petclinic.migration.MappedSegmentLog;
+import org.springframework.samples.petclinic.migration.SQLiteDB;
+import org.springframework.samples.petclinic.migration.SqlDB;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*
+A/B testing logs as binary records in a MappedSegmentLog (directory/*.seg), for traffic where a SQLite row per log is
+too much. offer() encodes the record and copies it into the mapped segment on the calling thread, which costs no
+more than the encoding and a copy; a new segment is started when one is full, and when maxSegments are in use the
+log is dropped and counted. The segments are forced to disk every syncIntervalMillis, and a record torn by a crash
+is cut off when the log is opened again.
+
+A log record is a format byte, the time, variant, logName and object as length-prefixed UTF-8, and the version of
+the toggle snapshot it was logged under. A snapshot is appended as a record of its own (version, then the name and
+value pairs) before the first log that references it. Segments of the first format, with the toggles in every
+record, are still read. The logs after the checkpoint can be summarized with report(), or replayed with the
+snapshots into the logs and toggle_snapshots tables of a SQLite database with replayInto(), which moves the
+checkpoint past them and deletes the segments that were consumed.
+ */
+public class ABTestingSegmentLog implements ABTestingLogSink {
+
+    private static final byte LOG_WITH_TOGGLES = 1;
+    private static final byte LOG = 2;
+    private static final byte SNAPSHOT = 3;
+
+    private final MappedSegmentLog log;
+    private final File checkpointFile;
+    private final SeenSnapshots seenSnapshots = new SeenSnapshots();
+    private final ScheduledExecutorService sync;
+    private volatile long checkpoint;
+    private volatile boolean closed = false;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+
+    public ABTestingSegmentLog(File directory, int segmentSize, int maxSegments, long syncIntervalMillis) throws IOException {
+        this.log = new MappedSegmentLog(directory, segmentSize, maxSegments);
+        this.checkpointFile = new File(directory, "checkpoint");
+        this.checkpoint = Math.max(log.getTail(), Math.min(MappedSegmentLog.readCheckpoint(checkpointFile), log.getHead()));
+        this.sync = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ab-testing-segment-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (syncIntervalMillis > 0) {
+            sync.scheduleWithFixedDelay(log::force, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+    Appends the record, after its toggle snapshot when this is the first log under it. A record whose snapshot could
+    not be appended is dropped too, so the snapshot always comes first.
+     */
+    @Override
+    public boolean offer(JSONObject record, ToggleSnapshot toggles) {
+        try {
+            if (closed || !seenSnapshots.storeOnce(toggles, this::appendSnapshot) || log.append(encode(record)) < 0) {
+                dropped.increment();
+                return false;
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            dropped.increment();
+            return false;
+        }
+        appended.increment();
+        return true;
+    }
+
+    private boolean appendSnapshot(ToggleSnapshot toggles) {
+        try {
+            return log.append(encode(toggles)) >= 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    static byte[] encode(JSONObject record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(LOG);
+        writeString(out, record.getAsString("time"));
+        writeString(out, record.getAsString("a_or_b"));
+        writeString(out, record.getAsString("logName"));
+        writeString(out, record.getAsString("object"));
+        Number version = record.getAsNumber("toggles_version");
+        out.writeLong(version == null ? 0 : version.longValue());
+        return bytes.toByteArray();
+    }
+
+    static byte[] encode(ToggleSnapshot toggles) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(SNAPSHOT);
+        out.writeLong(toggles.getVersion());
+        out.writeShort(toggles.getValues().size());
+        for (Map.Entry<String, Boolean> toggle : toggles.getValues().entrySet()) {
+            writeString(out, toggle.getKey());
+            out.writeBoolean(toggle.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+    A log, or for a snapshot record an object with only toggles_version and toggles.
+     */
+    static JSONObject decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte format = in.readByte();
+        JSONObject record = new JSONObject();
+        if (format == SNAPSHOT) {
+            record.put("toggles_version", in.readLong());
+            record.put("toggles", readToggles(in, in.readShort()));
+            return record;
+        }
+        if (format != LOG && format != LOG_WITH_TOGGLES) throw new IOException("Unknown A/B testing record format " + format);
+        record.put("time", readString(in));
+        record.put("a_or_b", readString(in));
+        record.put("logName", readString(in));
+        record.put("object", readString(in));
+        if (format == LOG) {
+            record.put("toggles_version", in.readLong());
+        } else {
+            int toggleCount = in.readShort();
+            if (toggleCount >= 0) record.put("toggles", readToggles(in, toggleCount));
+        }
+        return record;
+    }
+
+    private static JSONObject readToggles(DataInputStream in, int count) throws IOException {
+        JSONObject toggles = new JSONObject();
+        for (int i = 0; i < count; i++) {
+            toggles.put(readString(in), in.readBoolean());
+        }
+        return toggles;
+    }
+
+    private static boolean isSnapshot(JSONObject record) {
+        return !record.containsKey("logName");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+    Hands the records after the checkpoint, logs and snapshots, to the consumer, batchSize at a time, moving the
+    checkpoint after each batch. A batch the consumer throws on stays after the checkpoint. Returns the number of
+    logs replayed.
+     */
+    public synchronized long replay(int batchSize, Consumer<List<JSONObject>> consumer) throws IOException {
+        long count = 0;
+        while (true) {
+            List<MappedSegmentLog.Record> batch = log.read(checkpoint, Math.max(1, batchSize));
+            if (batch.isEmpty()) return count;
+            List<JSONObject> records = decodeAll(batch);
+            consumer.accept(records);
+            moveCheckpoint(batch.get(batch.size() - 1).next);
+            int logs = 0;
+            for (JSONObject record : records) {
+                if (!isSnapshot(record)) logs++;
+            }
+            count += logs;
+            replayed.add(logs);
+        }
+    }
+
+    /*
+    Replays the records after the checkpoint into the logs and toggle_snapshots tables of the database, one
+    transaction per batch.
+     */
+    public long replayInto(String dbName, int batchSize) throws IOException {
+        SqlDB db = new SQLiteDB(dbName);
+        try {
+            return replay(batchSize, records -> {
+                List<ToggleSnapshot> snapshots = new ArrayList<>();
+                List<JSONObject> logs = new ArrayList<>(records.size());
+                for (JSONObject record : records) {
+                    if (isSnapshot(record)) snapshots.add(snapshot(record));
+                    else logs.add(record);
+                }
+                try {
+                    ABTestingLogWriter.insert(db, snapshots, logs);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Cannot replay the A/B testing logs into " + dbName, e);
+                }
+            });
+        } finally {
+            db.close();
+        }
+    }
+
+    private static ToggleSnapshot snapshot(JSONObject record) {
+        Map<String, Boolean> values = new LinkedHashMap<>();
+        ((Map<?, ?>) record.get("toggles")).forEach((name, value) -> values.put(String.valueOf(name), Boolean.TRUE.equals(value)));
+        return new ToggleSnapshot(record.getAsNumber("toggles_version").longValue(), values);
+    }
+
+    /*
+    Number of records after the checkpoint by logName and variant, without consuming them.
+     */
+    public synchronized Map<String, Map<String, Long>> report() {
+        Map<String, Map<String, Long>> report = new TreeMap<>();
+        long position = checkpoint;
+        while (true) {
+            List<MappedSegmentLog.Record> batch = log.read(position, 1000);
+            if (batch.isEmpty()) return report;
+            for (JSONObject record : decodeAll(batch)) {
+                if (isSnapshot(record)) continue;
+                report.computeIfAbsent(String.valueOf(record.get("logName")), logName -> new TreeMap<>())
+                    .merge(String.valueOf(record.get("a_or_b")), 1L, Long::sum);
+            }
+            position = batch.get(batch.size() - 1).next;
+        }
+    }
+
+    private static List<JSONObject> decodeAll(List<MappedSegmentLog.Record> batch) {
+        List<JSONObject> records = new ArrayList<>(batch.size());
+        for (MappedSegmentLog.Record record : batch) {
+            try {
+                records.add(decode(record.payload));
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace(); // the checksum matched, so the record was written by a newer format
+            }
+        }
+        return records;
+    }
+
+    private void moveCheckpoint(long position) throws IOException {
+        MappedSegmentLog.writeCheckpoint(checkpointFile, position);
+        checkpoint = position;
+        log.deleteBefore(position);
+    }
+
+    /*
+    Forces the segments to disk; records are durable once offer() returns, so there is nothing to wait for.
+     */
+    @Override
+    public boolean flush(long timeoutMillis) {
+        log.force();
+        return true;
+    }
+
+    /*
+    Moves the checkpoint to the end of the log, so the records so far are neither reported nor replayed. The snapshots
+    go too, so they are appended again when a log references them.
+     */
+    @Override
+    public synchronized void reset() {
+        seenSnapshots.clear();
+        try {
+            moveCheckpoint(log.getHead());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        sync.shutdownNow();
+        log.close();
+    }
+
+    /*
+    Bytes logged after the checkpoint.
+     */
+    public long getPendingBytes() {
+        return log.getHead() - checkpoint;
+    }
+
+    public int getSegmentCount() {
+        return log.getSegmentCount();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("appended", appended.sum());
+        status.put("dropped", dropped.sum());
+        status.put("replayed", replayed.sum());
+        status.put("pendingBytes", getPendingBytes());
+        status.put("segments", getSegmentCount());
+        return status;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("ab-testing.segments.pending", this, ABTestingSegmentLog::getPendingBytes)
+            .description("A/B testing log bytes not yet replayed").baseUnit("bytes").register(registry);
+        Gauge.builder("ab-testing.segments.count", this, ABTestingSegmentLog::getSegmentCount)
+            .description("Segment files of the A/B testing log").register(registry);
+        FunctionCounter.builder("ab-testing.segments.appended", appended, LongAdder::sum)
+            .description("A/B testing logs appended").register(registry);
+        FunctionCounter.builder("ab-testing.segments.dropped", dropped, LongAdder::sum)
+            .description("A/B testing logs dropped because every segment was in use").register(registry);
+        FunctionCounter.builder("ab-testing.segments.replayed", replayed, LongAdder::sum)
+            .description("A/B testing logs replayed into SQLite").register(registry);
+    }
+}
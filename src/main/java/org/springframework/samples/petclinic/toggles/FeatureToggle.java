@@ -0,0 +1,50 @@
+package org.springframework.samples.petclinic.toggles;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+A feature toggle of the FeatureToggleManager registry. Reading it is a volatile read, so a flip on one thread is seen
+by every request thread right away; a change also tells the registry to build a new ToggleSnapshot.
+ */
+public final class FeatureToggle {
+
+    private final String name;
+    private final AtomicBoolean value;
+    private final Runnable onChange;
+
+    FeatureToggle(String name, boolean value, Runnable onChange) {
+        this.name = name;
+        this.value = new AtomicBoolean(value);
+        this.onChange = onChange;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return value.get();
+    }
+
+    public void set(boolean enabled) {
+        if (value.getAndSet(enabled) != enabled) onChange.run();
+    }
+
+    /*
+    Flips the toggle atomically and returns its new value.
+     */
+    public boolean flip() {
+        while (true) {
+            boolean current = value.get();
+            if (value.compareAndSet(current, !current)) {
+                onChange.run();
+                return !current;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + value.get();
+    }
+}
@@ -2,49 +2,110 @@ package org.springframework.samples.petclinic.toggles;
 
 
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/*
+Registry of the feature toggles. Every toggle is a FeatureToggle constant, read with isEnabled() and changed with
+set() or flip(); the registry is filled while the class initializes and never changes after, so looking a toggle up
+by name needs no lock.
+ */
 public class FeatureToggleManager {
 
-    public static boolean DO_DROP_TABLES_UPON_FORKLIFT = true;
-    public static boolean DO_RUN_CONSISTENCY_CHECKER = false;
-	public static boolean DOING_MIGRATION_TEST = false;
-    public static boolean DO_SHADOW_READ = false;
-    public static boolean DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION = false;
-    public static boolean DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION = false;
-    public static boolean DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS = false;
-
-	// Owner Toggles
-    public static boolean DO_DISPLAY_LINK_TO_OWNER_LIST = true;
-    public static boolean DO_ENABLE_FIRST_NAME_SEARCH = false;
-    public static boolean DO_ENABLE_PET_NAME_SEARCH = false;
-
-    // should not appear in toggle list
-    public static boolean[] jacocoArrTest = {true, true, false};
-
-    // Gets all toggles using Java Reflection
-    public static List<Toggle> getToggles() throws IllegalAccessException {
-        List<Toggle> toggles = new ArrayList<Toggle>();
-        Field[] allFields = FeatureToggleManager.class.getDeclaredFields();
-        for (Field field : allFields) {
-            if (!field.getType().toString().equals("boolean")) continue;
-
-            // if field is static
-            if (java.lang.reflect.Modifier.isStatic(field.getModifiers()) ){
-                toggles.add(new Toggle(field.getName(), field.getBoolean(null)));
-            }
+    // Filled by the toggle constants below, in their order
+    private static final Map<String, FeatureToggle> registry = new LinkedHashMap<>();
+
+    // Bumped by every change of a toggle
+    private static final AtomicLong changes = new AtomicLong();
+
+    public static final FeatureToggle DO_DROP_TABLES_UPON_FORKLIFT = register("DO_DROP_TABLES_UPON_FORKLIFT", true);
+    public static final FeatureToggle DO_STREAM_FORKLIFT = register("DO_STREAM_FORKLIFT", true);
+    public static final FeatureToggle DO_PARALLEL_FORKLIFT = register("DO_PARALLEL_FORKLIFT", false);
+    public static final FeatureToggle DO_DEFER_INDEX_BUILD_ON_FORKLIFT = register("DO_DEFER_INDEX_BUILD_ON_FORKLIFT", true);
+    public static final FeatureToggle DO_RUN_CONSISTENCY_CHECKER = register("DO_RUN_CONSISTENCY_CHECKER", false);
+    public static final FeatureToggle DO_RUN_BACKGROUND_CONSISTENCY_CHECKER = register("DO_RUN_BACKGROUND_CONSISTENCY_CHECKER", false);
+    public static final FeatureToggle DO_QUEUE_SHADOW_WRITES = register("DO_QUEUE_SHADOW_WRITES", true);
+    public static final FeatureToggle DO_JOURNAL_SHADOW_WRITES = register("DO_JOURNAL_SHADOW_WRITES", true);
+    public static final FeatureToggle DOING_MIGRATION_TEST = register("DOING_MIGRATION_TEST", false);
+    public static final FeatureToggle DO_SHADOW_READ = register("DO_SHADOW_READ", false);
+    public static final FeatureToggle DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION = register("DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION", false);
+    public static final FeatureToggle DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION = register("DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION", false);
+    public static final FeatureToggle DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS = register("DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS", false);
+
+    // Owner Toggles
+    public static final FeatureToggle DO_DISPLAY_LINK_TO_OWNER_LIST = register("DO_DISPLAY_LINK_TO_OWNER_LIST", true);
+    public static final FeatureToggle DO_ENABLE_FIRST_NAME_SEARCH = register("DO_ENABLE_FIRST_NAME_SEARCH", false);
+    public static final FeatureToggle DO_ENABLE_PET_NAME_SEARCH = register("DO_ENABLE_PET_NAME_SEARCH", false);
+
+    private static final Map<String, FeatureToggle> toggles = Collections.unmodifiableMap(registry);
+
+    // Snapshot versions start at the startup time, so the versions of different runs do not collide
+    private static final AtomicLong snapshotVersions = new AtomicLong(System.currentTimeMillis());
+    private static volatile Snapshot current;
+
+    // A snapshot with the number of changes it has seen
+    private static final class Snapshot {
+        final ToggleSnapshot toggles;
+        final long changes;
+
+        Snapshot(ToggleSnapshot toggles, long changes) {
+            this.toggles = toggles;
+            this.changes = changes;
+        }
+    }
+
+    private static FeatureToggle register(String name, boolean value) {
+        FeatureToggle toggle = new FeatureToggle(name, value, changes::incrementAndGet);
+        registry.put(name, toggle);
+        return toggle;
+    }
+
+    /*
+    The toggle of that name, null when there is none.
+     */
+    public static FeatureToggle get(String toggleName) {
+        return toggles.get(toggleName);
+    }
+
+    /*
+    The current values of the toggles. The snapshot is only rebuilt, under a new version, when a toggle has changed
+    since the last one; otherwise the same snapshot is returned and nothing is allocated.
+     */
+    public static ToggleSnapshot snapshot() {
+        Snapshot last = current;
+        long seen = changes.get();
+        if (last != null && last.changes == seen) return last.toggles;
+        Map<String, Boolean> values = new LinkedHashMap<>();
+        for (FeatureToggle toggle : toggles.values()) {
+            values.put(toggle.getName(), toggle.isEnabled());
+        }
+        synchronized (FeatureToggleManager.class) {
+            last = current;
+            if (last != null && last.changes >= seen) return last.toggles;
+            ToggleSnapshot rebuilt = new ToggleSnapshot(snapshotVersions.incrementAndGet(), values);
+            current = new Snapshot(rebuilt, seen);
+            return rebuilt;
+        }
+    }
+
+    // Gets all toggles, in the order they are declared
+    public static List<Toggle> getToggles() {
+        List<Toggle> list = new ArrayList<Toggle>();
+        for (FeatureToggle toggle : toggles.values()) {
+            list.add(new Toggle(toggle.getName(), toggle.isEnabled()));
         }
-        return toggles;
+        return list;
     }
 
-    public static boolean toggleByName(String toggleName) throws NoSuchFieldException, IllegalAccessException {
-        Field field = FeatureToggleManager.class.getDeclaredField(toggleName);
-        Boolean toggleValue = (Boolean) field.get(null);
-        field.setBoolean(null, !toggleValue);
+    // Flips the toggle of that name, returns false when there is none
+    public static boolean toggleByName(String toggleName) {
+        FeatureToggle toggle = toggles.get(toggleName);
+        if (toggle == null) return false;
+        toggle.flip();
         return true;
     }
 }
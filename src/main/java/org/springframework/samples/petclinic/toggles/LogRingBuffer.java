@@ -0,0 +1,74 @@
+package org.springframework.samples.petclinic.toggles;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+Bounded ring buffer for any number of producers and a single consumer, without locks. Every slot has a sequence
+number: a producer claims the tail with a CAS when the slot's sequence says it is free, stores the element and then
+publishes it by moving the sequence on, which is what the consumer waits for. offer() never blocks, it returns false
+when the buffer is full. The capacity is rounded up to a power of two.
+ */
+class LogRingBuffer<T> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(); // next slot a producer claims
+    private volatile long head; // next slot the consumer reads, written by poll only
+
+    LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 30)) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    boolean offer(T element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false; // the consumer has not read the element a lap ago yet
+            } else {
+                position = tail.get(); // another producer claimed the slot
+            }
+        }
+    }
+
+    /*
+    The oldest element, null when there is none. Only the consumer thread calls this.
+     */
+    T poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) return null;
+        T element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.set(index, position + capacity);
+        head = position + 1;
+        return element;
+    }
+
+    int size() {
+        return (int) Math.max(0, Math.min(capacity, tail.get() - head));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,38 @@
+package org.springframework.samples.petclinic.toggles;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/*
+The toggle snapshots a sink has stored, so each one is stored once however many logs reference it. As the toggles
+rarely change, checking the snapshot of the previous log again is a single volatile read.
+ */
+class SeenSnapshots {
+
+    private volatile ToggleSnapshot last;
+    private final Set<Long> versions = ConcurrentHashMap.newKeySet();
+
+    /*
+    Stores the snapshot with store unless that was done before, and returns whether it is stored. A version only counts
+    as stored once store has returned true, and callers wait for a store of the same snapshot that is under way, so a
+    log that goes after this call always goes after its snapshot. When store returns false (or throws) the next log
+    under the snapshot tries again.
+     */
+    boolean storeOnce(ToggleSnapshot toggles, Predicate<ToggleSnapshot> store) {
+        if (toggles == last || versions.contains(toggles.getVersion())) return true;
+        synchronized (this) {
+            if (!versions.contains(toggles.getVersion())) {
+                if (!store.test(toggles)) return false;
+                versions.add(toggles.getVersion());
+            }
+            last = toggles;
+            return true;
+        }
+    }
+
+    synchronized void clear() {
+        versions.clear();
+        last = null;
+    }
+}
@@ -0,0 +1,45 @@
+package org.springframework.samples.petclinic.toggles;
+
+import net.minidev.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+The values of all feature toggles at one point, under a version that changes whenever one of them does. Snapshots
+are immutable and shared, so an A/B testing log only needs the version of the snapshot it was taken under; the
+snapshot itself is stored once, in the toggle_snapshots table.
+ */
+public final class ToggleSnapshot {
+
+    private final long version;
+    private final Map<String, Boolean> values;
+    private final String json;
+
+    ToggleSnapshot(long version, Map<String, Boolean> values) {
+        this.version = version;
+        this.values = Collections.unmodifiableMap(new LinkedHashMap<>(values));
+        this.json = new JSONObject(this.values).toJSONString();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Map<String, Boolean> getValues() {
+        return values;
+    }
+
+    /*
+    The values as a JSON object of toggle names to booleans.
+     */
+    public String toJSONString() {
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return version + " " + json;
+    }
+}
@@ -15,17 +15,11 @@
  */
 package org.springframework.samples.petclinic.vet;
 
-import org.springframework.samples.petclinic.migration.SQLiteDB;
-import org.springframework.samples.petclinic.migration.SqlDB;
-import org.springframework.samples.petclinic.migration.TableDataGateway;
-import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.migration.ReadRouter;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.ResponseBody;
 
-import java.sql.ResultSet;
-import java.util.Collection;
-import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -37,12 +31,12 @@ import java.util.Map;
 @Controller
 class VetController {
 
-    private SqlDB db = new SQLiteDB();
-    private TableDataGateway tdg = new TableDataGateway(db);
     private final VetRepository vets;
+    private final ReadRouter readRouter;
 
-    public VetController(VetRepository clinicService) {
+    public VetController(VetRepository clinicService, ReadRouter readRouter) {
         this.vets = clinicService;
+        this.readRouter = readRouter;
     }
 
     @GetMapping("/vets.html")
@@ -50,11 +44,7 @@ class VetController {
         // Here we are returning an object of type 'Vets' rather than a collection of Vet
         // objects so it is simpler for Object-Xml mapping
         Vets vets = new Vets();
-        vets.getVetList().addAll(this.vets.findAll());
-        db = new SQLiteDB();
-        tdg = new TableDataGateway(db);
-        ResultSet resultSet = this.tdg.selectTable("vets");
-        shadowReadVets(resultSet);
+        vets.getVetList().addAll(readRouter.vets(this.vets::findAll));
         model.put("vets", vets);
         return "vets/vetList";
     }
@@ -64,34 +54,8 @@ class VetController {
         // Here we are returning an object of type 'Vets' rather than a collection of Vet
         // objects so it is simpler for JSon/Object mapping
         Vets vets = new Vets();
-        vets.getVetList().addAll(this.vets.findAll());
-        db = new SQLiteDB();
-        tdg = new TableDataGateway(db);
-        ResultSet resultSet = this.tdg.selectTable("vets");
-        shadowReadVets(resultSet);
+        vets.getVetList().addAll(readRouter.vets(this.vets::findAll));
         return vets;
     }
 
-    private void shadowReadVets(ResultSet resultSet){
-        Collection<Vet> result = this.vets.findAll();
-        Iterator<Vet> oldIterator = result.iterator();
-        try {
-            while(resultSet.next() && oldIterator.hasNext()){
-                String firstName = resultSet.getString("first_name");
-                String lastName = resultSet.getString("last_name");
-                Integer id = resultSet.getInt("id");
-                Vet nextVert = oldIterator.next();
-                if (!nextVert.getFirstName().equals(firstName)) {
-                    this.tdg.updateInconsistencies(id, "vets", "first_name", nextVert.getFirstName());
-                }
-                if (!nextVert.getLastName().equals(lastName)) {
-                    this.tdg.updateInconsistencies(id, "vets", "last_name", nextVert.getLastName());
-                }
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
 }
@@ -19,11 +19,13 @@ import java.time.LocalDate;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.Table;
 import javax.validation.constraints.NotEmpty;
 
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.samples.petclinic.model.BaseEntity;
+import org.springframework.samples.petclinic.migration.RangeSummaryListener;
 
 /**
  * Simple JavaBean domain object representing a visit.
@@ -32,6 +34,7 @@ import org.springframework.samples.petclinic.model.BaseEntity;
  * @author Dave Syer
  */
 @Entity
+@EntityListeners(RangeSummaryListener.class)
 @Table(name = "visits")
 public class Visit extends BaseEntity {
 
@@ -20,7 +20,10 @@ import java.util.List;
 
 
 import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.samples.petclinic.model.BaseEntity;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -52,4 +55,22 @@ public interface VisitRepository extends Repository<Visit, Integer> {
     @Transactional(readOnly = true)
     Collection<Visit> findAll();
 
+    /**
+     * Retrieve the next page of <code>Visit</code>s whose id is greater than the given id, in id order.
+     * @param lastId the last id of the previous page (0 for the first page)
+     * @param page the page size
+     * @return the next page of visits, empty once the table is exhausted
+     */
+    @Query("SELECT visit FROM Visit visit WHERE visit.id > :lastId ORDER BY visit.id")
+    @Transactional(readOnly = true)
+    List<Visit> findChunkAfter(@Param("lastId") Integer lastId, Pageable page);
+
+    /**
+     * Retrieve the highest <code>Visit</code> id, used to split the table into id ranges.
+     * @return the highest id, or null when the table is empty
+     */
+    @Query("SELECT MAX(visit.id) FROM Visit visit")
+    @Transactional(readOnly = true)
+    Integer findMaxId();
+
 }
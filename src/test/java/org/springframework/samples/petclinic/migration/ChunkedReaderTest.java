@@ -0,0 +1,65 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.visit.Visit;
+
+public class ChunkedReaderTest {
+
+    private List<Visit> table;
+    private List<Integer> requestedAfter;
+
+    @Before
+    public void setup() {
+        table = new ArrayList<>();
+        requestedAfter = new ArrayList<>();
+        for (int id = 1; id <= 25; id += 2) { // ids with gaps: 1, 3, ..., 25
+            Visit visit = new Visit();
+            visit.setId(id);
+            table.add(visit);
+        }
+    }
+
+    private ChunkedReader.ChunkQuery<Visit> query() {
+        return (lastId, page) -> {
+            requestedAfter.add(lastId);
+            return table.stream()
+                .filter(visit -> visit.getId() > lastId)
+                .limit(page.getPageSize())
+                .collect(Collectors.toList());
+        };
+    }
+
+    @Test
+    public void readsEveryRowOnceInIdOrder() {
+        List<Integer> ids = new ArrayList<>();
+        int chunks = 0;
+        for (List<Visit> chunk : new ChunkedReader<>(query(), 5, null)) {
+            chunks++;
+            for (Visit visit : chunk) {
+                ids.add(visit.getId());
+            }
+        }
+        assertEquals(13, ids.size());
+        assertEquals(Integer.valueOf(1), ids.get(0));
+        assertEquals(Integer.valueOf(25), ids.get(12));
+        assertEquals(3, chunks);
+        // keyset: each chunk starts after the last id of the previous one, and a short chunk ends the walk
+        assertEquals("[0, 9, 19]", requestedAfter.toString());
+    }
+
+    @Test
+    public void startsAfterGivenId() {
+        int rows = 0;
+        for (List<Visit> chunk : new ChunkedReader<>(query(), 4, null, 20)) {
+            rows += chunk.size();
+        }
+        assertEquals(3, rows); // 21, 23, 25
+    }
+}
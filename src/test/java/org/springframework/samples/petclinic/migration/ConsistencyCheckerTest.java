@@ -0,0 +1,157 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.samples.petclinic.migration.MigrationTestUtils.visit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.samples.petclinic.visit.Visit;
+import org.springframework.samples.petclinic.visit.VisitRepository;
+
+public class ConsistencyCheckerTest {
+
+    private static final String DB_LOCATION = "checker_testing.db";
+
+    private final TreeMap<Integer, Visit> legacyVisits = new TreeMap<>();
+    private SqlDB db;
+    private ForkJoinPool pool;
+
+    private final VisitRepository visits = new VisitRepository() {
+        @Override
+        public void save(Visit visit) {
+            legacyVisits.put(visit.getId(), visit);
+        }
+
+        @Override
+        public List<Visit> findByPetId(Integer petId) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public Collection<Visit> findAll() {
+            return legacyVisits.values();
+        }
+
+        @Override
+        public List<Visit> findChunkAfter(Integer lastId, Pageable page) {
+            List<Visit> chunk = new ArrayList<>(legacyVisits.tailMap(lastId, false).values());
+            return new ArrayList<>(chunk.subList(0, Math.min(chunk.size(), page.getPageSize())));
+        }
+
+        @Override
+        public Integer findMaxId() {
+            return legacyVisits.isEmpty() ? null : legacyVisits.lastKey();
+        }
+    };
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+        db = new SQLiteDB(DB_LOCATION);
+        db.execute("CREATE TABLE IF NOT EXISTS `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT )");
+        TableDataGateway tdg = new TableDataGateway(db);
+        for (int id = 1; id <= 50; id++) {
+            visits.save(visit(id, "checkup " + id));
+            if (id != 7) tdg.insertVisit(visit(id, id == 23 ? "x-ray" : "checkup " + id));
+        }
+        tdg.insertVisit(visit(60, "dental"));
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void afterTest() {
+        pool.shutdown();
+        db.close();
+        new File(DB_LOCATION).delete();
+    }
+
+    private ConsistencyChecker checker(RangeSummaries summaries) {
+        ConsistencyChecker checker = new ConsistencyChecker(db);
+        checker.connectRepos(null, null, null, visits);
+        checker.setStreaming(null, 5);
+        checker.setParallelism(pool, () -> new SQLiteDB(DB_LOCATION));
+        checker.setRangeSummaries(summaries);
+        return checker;
+    }
+
+    @Test
+    public void parallelCheckRepairsEveryRange() {
+        ConsistencyChecker checker = checker(null);
+        checker.visitsChecker();
+        assertEquals(3, checker.getInconsistency());
+
+        checker = checker(null);
+        checker.visitsChecker();
+        assertEquals(0, checker.getInconsistency());
+    }
+
+    @Test
+    public void rangeCheckOnlyRereadsDirtyRanges() {
+        RangeSummaries summaries = new RangeSummaries(8);
+        ConsistencyChecker checker = checker(summaries);
+        checker.visitsChecker();
+        assertEquals(3, checker.getInconsistency());
+
+        visits.save(visit(31, "neutered"));
+        summaries.markDirty("visits", 31);
+        checker = checker(summaries);
+        checker.visitsChecker();
+        assertEquals(1, checker.getInconsistency());
+
+        checker = checker(summaries);
+        checker.visitsChecker();
+        assertEquals(0, checker.getInconsistency());
+    }
+
+    @Test
+    public void rowsAppendedPastTheHighWaterMarkAreCheckedWithoutBeingMarked() {
+        RangeSummaries summaries = new RangeSummaries(8);
+        checker(summaries).visitsChecker();
+
+        visits.save(visit(75, "rabies shot"));
+        visits.save(visit(90, "spayed"));
+        ConsistencyChecker checker = checker(summaries);
+        checker.visitsChecker();
+        assertEquals(2, checker.getInconsistency());
+        assertEquals(90, summaries.getStatus().get("visits").get("highWaterMark"));
+    }
+
+    @Test
+    public void sampleCoveringEveryIdCountsEveryInconsistencyWithoutRepairing() {
+        ConsistencyChecker checker = checker(null);
+        InconsistencyEstimate estimate = checker.sample("visits", 1000, 4, 0.95);
+
+        assertEquals(51, estimate.getRows());
+        assertEquals(3, estimate.getInconsistent());
+        assertEquals(0, checker.getInconsistency());
+    }
+
+    @Test
+    public void onlyCommittedRepairsAreReported() {
+        db.execute("CREATE TRIGGER fail_visit_7 BEFORE INSERT ON visits WHEN NEW.id = 7 BEGIN SELECT RAISE(ABORT, 'disk full'); END");
+        RangeSummaries summaries = new RangeSummaries(8);
+        ConsistencyChecker checker = checker(summaries);
+        checker.setCommitInterval(1);
+        String report = checker.visitsChecker();
+        assertTrue(report.contains("Number of deleted visits: 1"));
+        assertTrue(report.contains("Number of created visits: 0"));
+        assertTrue(report.contains("Repair of visits failed, 2 rows left for the next check"));
+
+        db.execute("DROP TRIGGER fail_visit_7");
+        checker = checker(summaries);
+        report = checker.visitsChecker();
+        assertEquals(2, checker.getInconsistency());
+        assertTrue(report.contains("Number of created visits: 1"));
+        assertTrue(report.contains("Number of updated visits: 1"));
+    }
+}
@@ -0,0 +1,91 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ForkliftPipelineTest {
+
+    private List<String> written = new ArrayList<>();
+    private List<Thread> writerThreads = new ArrayList<>();
+    private int flushes = 0;
+
+    private ForkliftPipeline.StageReader rows(String table, int count) {
+        return writes -> {
+            for (int i = 0; i < count; i++) {
+                writes.accept(() -> {
+                    written.add(table);
+                    writerThreads.add(Thread.currentThread());
+                });
+            }
+        };
+    }
+
+    @Test
+    public void writesDependentStagesAfterTheirDependencies() {
+        String report = new ForkliftPipeline(() -> flushes++, 3, 16)
+            .stage("owners", rows("owners", 100))
+            .stage("types", rows("types", 5))
+            .stage("pets", rows("pets", 200), "owners", "types")
+            .stage("visits", rows("visits", 300), "pets")
+            .run();
+
+        assertEquals(605, written.size());
+        int firstPet = written.indexOf("pets");
+        assertTrue(written.lastIndexOf("owners") < firstPet);
+        assertTrue(written.lastIndexOf("types") < firstPet);
+        assertTrue(written.lastIndexOf("pets") < written.indexOf("visits"));
+
+        // every write happened on the single writer, which is the calling thread
+        for (Thread thread : writerThreads) {
+            assertEquals(Thread.currentThread(), thread);
+        }
+        assertEquals(4, flushes);
+        assertTrue(report.contains("visits: 300 rows"));
+    }
+
+    @Test
+    public void failedStageSkipsItsDependents() {
+        String report = new ForkliftPipeline(() -> flushes++, 2, 4)
+            .stage("owners", writes -> {
+                throw new IllegalStateException("legacy store unavailable");
+            })
+            .stage("pets", rows("pets", 10), "owners")
+            .stage("vets", rows("vets", 10))
+            .run();
+
+        assertEquals(10, written.size());
+        assertTrue(report.contains("owners: FAILED"));
+        assertTrue(report.contains("pets: FAILED"));
+        assertTrue(report.contains("vets: 10 rows"));
+    }
+
+    @Test
+    public void failedBatchStopsTheRun() {
+        ForkliftPipeline pipeline = new ForkliftPipeline(() -> flushes++, 2, 4)
+            .stage("owners", writes -> {
+                for (int i = 0; i < 100; i++) {
+                    int row = i;
+                    writes.accept(() -> {
+                        if (row == 3) throw new BatchWriteException(new SQLException("disk I/O error"));
+                        written.add("owners");
+                    });
+                }
+            })
+            .stage("pets", rows("pets", 10), "owners");
+        try {
+            pipeline.run();
+            fail("the failed batch was not thrown");
+        } catch (BatchWriteException e) {
+            // nothing after the rolled back batch may be written, or its checkpoint would skip the lost rows
+            assertEquals(3, written.size());
+            assertEquals(0, flushes);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.springframework.samples.petclinic.migration.MigrationTestUtils.deleteDatabase;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
+import org.springframework.samples.petclinic.vet.Specialty;
+import org.springframework.samples.petclinic.vet.Vet;
+
+public class ForkliftTest {
+
+    private static final String DB_LOCATION = "forklift_testing.db";
+
+    private SqlDB db;
+    private boolean dropTables;
+
+    @Before
+    public void setup() {
+        deleteDatabase(DB_LOCATION);
+        db = new SQLiteDB(DB_LOCATION);
+        dropTables = FeatureToggleManager.DO_DROP_TABLES_UPON_FORKLIFT.isEnabled();
+    }
+
+    @After
+    public void afterTest() {
+        FeatureToggleManager.DO_DROP_TABLES_UPON_FORKLIFT.set(dropTables);
+        db.close();
+        deleteDatabase(DB_LOCATION);
+    }
+
+    private Vet vet(int id, String lastName) {
+        Vet vet = new Vet();
+        vet.setId(id);
+        vet.setFirstName("James");
+        vet.setLastName(lastName);
+        Specialty radiology = new Specialty();
+        radiology.setId(1);
+        radiology.setName("radiology");
+        vet.addSpecialty(radiology);
+        return vet;
+    }
+
+    @Test
+    public void rowsAlreadyInKeptTablesAreSkipped() throws Exception {
+        FeatureToggleManager.DO_DROP_TABLES_UPON_FORKLIFT.set(false);
+        Forklift forklift = new Forklift(db);
+        forklift.initSchema();
+        forklift.liftSpecialties();
+        forklift.liftVets(() -> Arrays.asList(vet(1, "Carter")));
+
+        forklift = new Forklift(db);
+        forklift.initSchema();
+        forklift.liftVets(() -> Arrays.asList(vet(1, "Carter"), vet(2, "Leary")));
+
+        assertEquals(2, db.select("SELECT COUNT(*) AS total FROM vets").getInt("total"));
+        assertEquals(2, db.select("SELECT COUNT(*) AS total FROM vet_specialties").getInt("total"));
+    }
+}
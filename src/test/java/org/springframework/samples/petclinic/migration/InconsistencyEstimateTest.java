@@ -0,0 +1,30 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class InconsistencyEstimateTest {
+
+    @Test
+    public void normalQuantileOfCommonConfidenceLevels() {
+        assertEquals(1.645, InconsistencyEstimate.z(0.90), 1e-3);
+        assertEquals(1.960, InconsistencyEstimate.z(0.95), 1e-3);
+        assertEquals(2.576, InconsistencyEstimate.z(0.99), 1e-3);
+    }
+
+    @Test
+    public void wilsonIntervalOfASample() {
+        InconsistencyEstimate estimate = new InconsistencyEstimate("visits", 100, 10, 0.95);
+        assertEquals(0.10, estimate.getRate(), 1e-9);
+        assertEquals(0.0552, estimate.getLower(), 1e-3);
+        assertEquals(0.1744, estimate.getUpper(), 1e-3);
+    }
+
+    @Test
+    public void cleanSampleStillBoundsTheRate() {
+        InconsistencyEstimate estimate = new InconsistencyEstimate("visits", 100, 0, 0.95);
+        assertEquals(0, estimate.getLower(), 1e-9);
+        assertEquals(0.0370, estimate.getUpper(), 1e-3);
+    }
+}
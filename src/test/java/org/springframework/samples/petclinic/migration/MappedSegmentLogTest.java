@@ -0,0 +1,85 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedSegmentLogTest {
+
+    private final File directory = new File("segment_log_testing");
+
+    @Before
+    public void setup() {
+        afterTest();
+    }
+
+    @After
+    public void afterTest() {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static byte[] record(int i) {
+        return ("record " + i).getBytes();
+    }
+
+    @Test
+    public void recordsRollOverIntoNewSegments() throws Exception {
+        MappedSegmentLog log = new MappedSegmentLog(directory, 64, 10);
+        for (int i = 0; i < 10; i++) {
+            log.append(record(i));
+        }
+        assertEquals(3, log.getSegmentCount()); // 4 records of 16 bytes per segment
+
+        List<MappedSegmentLog.Record> records = log.read(0, 100);
+        assertEquals(10, records.size());
+        assertEquals("record 9", new String(records.get(9).payload));
+        assertEquals("record 4", new String(log.read(records.get(3).next, 1).get(0).payload));
+
+        log.deleteBefore(records.get(6).next);
+        assertEquals(2, log.getSegmentCount());
+        assertEquals(64, log.getTail());
+        log.close();
+    }
+
+    @Test
+    public void appendFailsOnceEverySegmentIsInUse() throws Exception {
+        MappedSegmentLog log = new MappedSegmentLog(directory, 64, 2);
+        for (int i = 0; i < 8; i++) {
+            log.append(record(i));
+        }
+        assertEquals(-1, log.append(record(8)));
+        log.deleteBefore(log.read(0, 4).get(3).next);
+        assertEquals(144, log.append(record(8)));
+        log.close();
+    }
+
+    @Test
+    public void reopeningDropsATornRecord() throws Exception {
+        MappedSegmentLog log = new MappedSegmentLog(directory, 1024, 10);
+        log.append(record(1));
+        long end = log.append(record(2));
+        log.append(record(3));
+        log.close();
+        try (RandomAccessFile segment = new RandomAccessFile(new File(directory, String.format("%020d.seg", 0)), "rw")) {
+            segment.seek(end + MappedSegmentLog.HEADER);
+            segment.write('X'); // the process died while copying record 3
+        }
+
+        log = new MappedSegmentLog(directory, 1024, 10);
+        assertEquals(end, log.getHead());
+        assertEquals(2, log.read(0, 100).size());
+        log.append(record(4));
+        assertEquals("record 4", new String(log.read(end, 1).get(0).payload));
+        log.close();
+    }
+}
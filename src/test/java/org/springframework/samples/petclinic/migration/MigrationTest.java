@@ -37,6 +37,10 @@ public class MigrationTest {
     private ConsistencyChecker tempChecker;
     private SQLiteDB db;
     private TableDataGateway tdg;
+    private SqlDBPool shadowDb;
+    private ShadowWriteQueue shadowWrites;
+    private ShadowReader shadowReader;
+    private ReadRouter readRouter;
     
     @MockBean
     private OwnerRepository owners = mock(OwnerRepository.class);
@@ -45,10 +49,15 @@ public class MigrationTest {
 
     @Before
     public void setup() {
-        FeatureToggleManager.DOING_MIGRATION_TEST = true;
-        FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER = true;
+        FeatureToggleManager.DOING_MIGRATION_TEST.set(true);
+        FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER.set(true);
         db = mock(SQLiteDB.class);
         tdg = mock(TableDataGateway.class);
+        shadowDb = mock(SqlDBPool.class);
+        given(shadowDb.openGateway()).willReturn(tdg);
+        shadowWrites = mock(ShadowWriteQueue.class);
+        shadowReader = mock(ShadowReader.class);
+        readRouter = mock(ReadRouter.class);
         tempChecker = new ConsistencyChecker(db);
 
         Robert = new Owner();
@@ -78,8 +87,8 @@ public class MigrationTest {
 
     @After
     public void afterTest(){
-        FeatureToggleManager.DOING_MIGRATION_TEST = false;
-        FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER = false;
+        FeatureToggleManager.DOING_MIGRATION_TEST.set(false);
+        FeatureToggleManager.DO_RUN_CONSISTENCY_CHECKER.set(false);
         db.close();
     }
 
@@ -87,19 +96,17 @@ public class MigrationTest {
     @Test
     public void testOwnerMigration() {
         owners = mock(OwnerRepository.class);
-    	OwnerController controller = new OwnerController(owners);
+    	OwnerController controller = new OwnerController(owners, shadowDb, shadowWrites, readRouter);
         BindingResult resultMock = mock(BindingResult.class);
         when(resultMock.hasErrors()).thenReturn(false);
         
-        controller.setDbForTest(db,tdg);
-        
         controller.processCreationForm(Robert, resultMock);
 
         // verify that owner was saved to old database
         verify(owners).save(Robert);
 
-        // verify that owner was saved to new database
-        verify(tdg).insertOwner(Robert);
+        // verify that owner was queued for the new database
+        verify(shadowWrites).upsert(Robert);
     }
 
     @Ignore
@@ -107,20 +114,18 @@ public class MigrationTest {
     public void testPetMigration() {
         pets = mock(PetRepository.class);
         //owners = mock(OwnerRepository.class);
-        PetController controller = new PetController(pets, owners);
+        PetController controller = new PetController(pets, owners, shadowWrites, shadowReader, readRouter);
         BindingResult resultMock = mock(BindingResult.class);
         ModelMap map = mock(ModelMap.class);
         when(resultMock.hasErrors()).thenReturn(false);
 
-        controller.setDbForTest(db,tdg);
-
         controller.processCreationForm(Robert, Buddy, resultMock, map);
 
         // verify that owner was saved to old database
         verify(pets).save(Buddy);
 
-        // verify that owner was saved to new database
-        verify(tdg).insertPet(Buddy);
+        // verify that pet was queued for the new database
+        verify(shadowWrites).upsert(Buddy);
 
         // assert that the pet being tested was added to the owner's pets
         assertEquals(Buddy.getOwner(), Robert);
@@ -130,19 +135,17 @@ public class MigrationTest {
     public void testVisitMigration(){
         visit = mock(VisitRepository.class);
         pets = mock(PetRepository.class);
-    	VisitController controller = new VisitController(visit, pets);
+    	VisitController controller = new VisitController(visit, pets, shadowWrites, readRouter);
         BindingResult resultMock = mock(BindingResult.class);
         when(resultMock.hasErrors()).thenReturn(false);
         
-        controller.setDbForTest(db,tdg);
-        
         controller.processNewVisitForm(Visitation, resultMock);
 
         // verify that owner was saved to old database
         verify(visit).save(Visitation);
 
-        // verify that owner was saved to new database
-        verify(tdg).insertVisit(Visitation);
+        // verify that visit was queued for the new database, off the request thread
+        verify(shadowWrites).upsert(Visitation);
 
     }
 
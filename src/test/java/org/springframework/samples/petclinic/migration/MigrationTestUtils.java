@@ -0,0 +1,46 @@
+package org.springframework.samples.petclinic.migration;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+import org.springframework.samples.petclinic.visit.Visit;
+
+/*
+Fixtures shared by the tests of the SQLite datastore.
+ */
+public abstract class MigrationTestUtils {
+
+    /*
+    A visit of pet 1 on 2010-01-01.
+     */
+    public static Visit visit(int id, String description) {
+        Visit visit = new Visit();
+        visit.setId(id);
+        visit.setPetId(1);
+        visit.setDate(LocalDate.of(2010, 1, 1));
+        visit.setDescription(description);
+        return visit;
+    }
+
+    /*
+    Counts the rows of the table matching where, and closes db (or gives it back to its pool) so it can be opened
+    in the call.
+     */
+    public static int count(SqlDB db, String tableName, String where) throws SQLException {
+        try {
+            return db.select("SELECT COUNT(*) AS total FROM " + tableName + " WHERE " + where).getInt("total");
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+    Deletes the database file, with the WAL and shared memory files the ONLINE and BULK_LOAD profiles leave next to it.
+     */
+    public static void deleteDatabase(String location) {
+        new File(location).delete();
+        new File(location + "-wal").delete();
+        new File(location + "-shm").delete();
+    }
+}
@@ -0,0 +1,177 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.samples.petclinic.migration.MigrationTestUtils.deleteDatabase;
+import static org.springframework.samples.petclinic.migration.MigrationTestUtils.visit;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.model.BaseEntity;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.visit.Visit;
+
+public class OutboxJournalTest {
+
+    private static final String DB_LOCATION = "outbox_testing.db";
+
+    private final File directory = new File("outbox_testing");
+    private SqlDBPool pool;
+
+    @Before
+    public void setup() {
+        deleteJournal();
+        new File(DB_LOCATION).delete();
+        pool = new SqlDBPool(DB_LOCATION, SQLitePragmaProfile.ONLINE, 1, 5000, 0);
+        SqlDB db = pool.borrow();
+        db.execute("CREATE TABLE IF NOT EXISTS `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT )");
+        db.close();
+    }
+
+    @After
+    public void afterTest() {
+        pool.close();
+        deleteJournal();
+        deleteDatabase(DB_LOCATION);
+    }
+
+    private void deleteJournal() {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private int count(String where) throws Exception {
+        return MigrationTestUtils.count(pool.borrow(), "visits", where);
+    }
+
+    @Test
+    public void journaledWritesAreReplayedIntoSQLite() throws Exception {
+        OutboxJournal outbox = new OutboxJournal(directory, 4096, 4, pool, 10, 0);
+        assertTrue(outbox.append(visit(1, "rabies shot")));
+        assertTrue(outbox.append(visit(2, "x-ray")));
+        assertTrue(outbox.append(visit(1, "neutered")));
+
+        assertTrue(outbox.flush(5000));
+        assertEquals(2, count("1 = 1"));
+        assertEquals(1, count("id = 1 AND description = 'neutered'"));
+        outbox.close();
+    }
+
+    @Test
+    public void writesJournaledWhileSQLiteIsUnavailableAreReplayedAfterARestart() throws Exception {
+        SqlDB held = pool.borrow(); // the replayer cannot get a connection
+        OutboxJournal outbox = new OutboxJournal(directory, 4096, 4, pool, 10, 0);
+        outbox.append(visit(1, "rabies shot"));
+        outbox.append(visit(2, "x-ray"));
+        outbox.close(); // gives up after its timeout, like a process that dies
+        held.close();
+        assertEquals(0, count("1 = 1"));
+
+        outbox = new OutboxJournal(directory, 4096, 4, pool, 10, 0);
+        assertTrue(outbox.flush(5000));
+        assertEquals(2, count("1 = 1"));
+        outbox.close();
+    }
+
+    @Test
+    public void rolledBackBatchKeepsTheCheckpointAndIsRetried() throws Exception {
+        SqlDB db = pool.borrow();
+        db.execute("DROP TABLE visits");
+        db.execute("CREATE TABLE `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT NOT NULL )");
+        db.close();
+        OutboxJournal outbox = new OutboxJournal(directory, 4096, 4, pool, 10, 0);
+        outbox.append(visit(1, null)); // fails the NOT NULL constraint, and with it every batch it is in
+        outbox.append(visit(2, "rabies shot"));
+        long pending = outbox.getPendingBytes();
+        while (outbox.getFailures() == 0) {
+            Thread.sleep(5);
+        }
+
+        assertEquals(pending, outbox.getPendingBytes());
+        assertEquals(0, outbox.getReplayed());
+        assertEquals(1, outbox.getSegmentCount());
+        assertEquals(0, count("1 = 1"));
+
+        db = pool.borrow();
+        db.execute("DROP TABLE visits");
+        db.execute("CREATE TABLE `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT )");
+        db.close();
+        assertTrue(outbox.flush(5000));
+        assertEquals(2, count("1 = 1"));
+        outbox.close();
+    }
+
+    @Test
+    public void batchThatKeepsFailingIsParkedAndTheCheckpointMovesOn() throws Exception {
+        SqlDB db = pool.borrow();
+        db.execute("DROP TABLE visits"); // like /emptyDB, or a journal opened before the forklift
+        db.close();
+        OutboxJournal outbox = new OutboxJournal(directory, 4096, 4, pool, 10, 0);
+        outbox.setRetries(3, 10);
+        ShadowWriteQueue shadowWrites = new ShadowWriteQueue(pool, 100, 10, ShadowWriteQueue.OverflowPolicy.BLOCK, 100);
+        shadowWrites.setOutbox(outbox);
+        shadowWrites.upsert(visit(1, "rabies shot"));
+        shadowWrites.upsert(visit(2, "x-ray"));
+
+        assertTrue(outbox.flush(5000));
+        assertEquals(3, outbox.getFailures());
+        assertEquals(2, outbox.getParked());
+        assertEquals(0, outbox.getReplayed());
+        assertFalse(shadowWrites.isPending(Visit.class, 1));
+        List<BaseEntity> parked = OutboxJournal.readParked(directory);
+        assertEquals(2, parked.size());
+        assertEquals("x-ray", ((Visit) parked.get(1)).getDescription());
+
+        db = pool.borrow();
+        db.execute("CREATE TABLE `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT )");
+        db.close();
+        shadowWrites.upsert(visit(3, "neutered"));
+        assertTrue(outbox.flush(5000));
+        assertEquals(1, count("1 = 1"));
+        shadowWrites.close();
+        outbox.close();
+    }
+
+    @Test
+    public void appendWaitsForTheReplayerToMakeRoom() throws Exception {
+        SqlDB held = pool.borrow(); // the replayer cannot get a connection
+        OutboxJournal outbox = new OutboxJournal(directory, 64, 2, pool, 10, 0);
+        int appended = 0;
+        while (outbox.append(visit(appended + 1, "checkup"))) {
+            appended++;
+        }
+        assertEquals(1, outbox.getRejected());
+        held.close();
+
+        assertTrue(outbox.append(visit(appended + 1, "checkup"), 5000));
+        assertTrue(outbox.flush(5000));
+        assertEquals(appended + 1, count("1 = 1"));
+        outbox.close();
+    }
+
+    @Test
+    public void journaledRowsArePendingUntilTheirReplayCommits() throws Exception {
+        OutboxJournal outbox = new OutboxJournal(directory, 4096, 4, pool, 10, 0);
+        ShadowWriteQueue shadowWrites = new ShadowWriteQueue(pool, 100, 10, ShadowWriteQueue.OverflowPolicy.BLOCK, 100);
+        shadowWrites.setOutbox(outbox);
+        SqlDB held = pool.borrow(); // the replayer waits for this connection
+        shadowWrites.upsert(visit(1, "rabies shot"));
+        assertTrue(shadowWrites.isPending(Visit.class, 1));
+        assertTrue(shadowWrites.isPending(Pet.class, 1));
+
+        held.close();
+        assertTrue(outbox.flush(5000));
+        assertFalse(shadowWrites.isPending(Visit.class, 1));
+        assertFalse(shadowWrites.isPending(Pet.class, 1));
+        shadowWrites.close();
+        outbox.close();
+    }
+}
@@ -0,0 +1,49 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RangeTreeTest {
+
+    @Test
+    public void leavesCoverFixedIdRanges() {
+        RangeTree tree = new RangeTree(100);
+        assertEquals(0, tree.leafOf(99));
+        assertEquals(1, tree.leafOf(100));
+        assertEquals(200, tree.firstId(2));
+        assertEquals(299, tree.lastId(2));
+    }
+
+    @Test
+    public void rootIsTheSumOfTheLeavesWhileGrowing() {
+        RangeTree tree = new RangeTree(10);
+        tree.setLeaf(0, 5);
+        tree.setLeaf(6, 7);
+        tree.setLeaf(2, 11);
+        assertEquals(23, tree.getRoot());
+
+        tree.setLeaf(6, 0);
+        assertEquals(16, tree.getRoot());
+        assertEquals(0, tree.getLeaf(100));
+    }
+
+    @Test
+    public void diffOnlyReturnsTheLeavesThatDiffer() {
+        RangeTree legacy = new RangeTree(10);
+        RangeTree migrated = new RangeTree(10);
+        for (int leaf = 0; leaf < 16; leaf++) {
+            legacy.setLeaf(leaf, leaf * 31L);
+            migrated.setLeaf(leaf, leaf * 31L);
+        }
+        assertTrue(RangeTree.diff(legacy, migrated).isEmpty());
+
+        migrated.setLeaf(3, 1);
+        legacy.setLeaf(12, 2);
+        legacy.setLeaf(40, 3); // legacy grew past the migrated tree
+        assertEquals(Arrays.asList(3, 12, 40), RangeTree.diff(legacy, migrated));
+    }
+}
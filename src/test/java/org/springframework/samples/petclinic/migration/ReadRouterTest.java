@@ -0,0 +1,155 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.samples.petclinic.migration.MigrationTestUtils.deleteDatabase;
+
+import java.io.File;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.vet.Vet;
+
+public class ReadRouterTest {
+
+    private static final String DB_LOCATION = "read_router_testing.db";
+
+    private SqlDBPool pool;
+    private ShadowReader shadowReader;
+    private ReadRouter router;
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+        pool = new SqlDBPool(DB_LOCATION, SQLitePragmaProfile.ONLINE, 2, 5000, 0);
+        SqlDB db = pool.borrow();
+        db.execute("CREATE TABLE `owners` ( `id` INTEGER PRIMARY KEY, `first_name` TEXT, `last_name` TEXT, `address` TEXT, `city` TEXT, `telephone` TEXT )");
+        db.execute("CREATE TABLE `types` ( `id` INTEGER PRIMARY KEY, `name` TEXT )");
+        db.execute("CREATE TABLE `pets` ( `id` INTEGER PRIMARY KEY, `name` TEXT, `birth_date` TEXT, `type_id` INTEGER NOT NULL, `owner_id` INTEGER NOT NULL )");
+        db.execute("CREATE TABLE `visits` ( `id` INTEGER PRIMARY KEY, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT )");
+        db.execute("CREATE TABLE `vets` ( `id` INTEGER PRIMARY KEY, `first_name` TEXT, `last_name` TEXT )");
+        db.execute("CREATE TABLE `specialties` ( `id` INTEGER PRIMARY KEY, `name` TEXT )");
+        db.execute("CREATE TABLE `vet_specialties` ( `vet_id` INTEGER NOT NULL, `specialty_id` INTEGER NOT NULL )");
+        db.execute("INSERT INTO owners VALUES (1, 'George', 'Franklin', '110 W. Liberty St.', 'Madison', '6085551023')");
+        db.execute("INSERT INTO types VALUES (1, 'cat'), (2, 'dog')");
+        db.execute("INSERT INTO pets VALUES (1, 'Leo', '2010-09-07', 1, 1), (2, 'Basil', '2012-08-06', 2, 1)");
+        db.execute("INSERT INTO visits VALUES (1, 1, '2013-01-01', 'rabies shot'), (2, 1, '2013-01-04', 'spayed')");
+        db.execute("INSERT INTO vets VALUES (1, 'James', 'Carter'), (2, 'Helen', 'Leary')");
+        db.execute("INSERT INTO specialties VALUES (1, 'radiology'), (2, 'surgery')");
+        db.execute("INSERT INTO vet_specialties VALUES (2, 1), (2, 2)");
+        db.close();
+        shadowReader = new ShadowReader(pool, 0, 1, 10);
+        router = new ReadRouter(pool, shadowReader, 100, 5000, 2);
+    }
+
+    @After
+    public void afterTest() {
+        router.close();
+        shadowReader.close();
+        pool.close();
+        deleteDatabase(DB_LOCATION);
+    }
+
+    @Test
+    public void bucketsAreStableAndSpreadEvenly() {
+        int[] counts = new int[100];
+        for (int id = 1; id <= 100_000; id++) {
+            assertEquals(ReadRouter.bucket(id), ReadRouter.bucket(id));
+            counts[ReadRouter.bucket(id)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 800 && count < 1200);
+        }
+    }
+
+    @Test
+    public void raisingThePercentageOnlyMovesMoreIdsOver() {
+        router.setPercent(30);
+        for (int id = 1; id <= 1000; id++) {
+            boolean before = router.toSqlite(id);
+            router.setPercent(60);
+            assertTrue(!before || router.toSqlite(id));
+            router.setPercent(30);
+        }
+    }
+
+    @Test
+    public void theVetListIsSampledPerRequest() {
+        router.setPercent(10);
+        int toSqlite = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (router.sampleToSqlite()) toSqlite++;
+        }
+        assertTrue(toSqlite > 800 && toSqlite < 1200);
+
+        router.setPercent(0);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(router.sampleToSqlite());
+        }
+    }
+
+    @Test
+    public void ownersAreReadFromSQLiteWithTheirPetsAndVisits() {
+        Owner owner = router.owner(1, () -> {
+            throw new AssertionError("routed to the legacy store");
+        });
+        assertEquals("Franklin", owner.getLastName());
+        assertEquals(2, owner.getPets().size());
+        Pet leo = owner.getPet("Leo");
+        assertEquals("cat", leo.getType().getName());
+        assertSame(owner, leo.getOwner());
+        assertEquals(2, leo.getVisits().size());
+        assertEquals("spayed", leo.getVisits().get(0).getDescription());
+    }
+
+    @Test
+    public void petsAndVetsAreReadFromSQLite() {
+        Pet pet = router.pet(2, () -> null);
+        assertEquals("Basil", pet.getName());
+        assertEquals("George", pet.getOwner().getFirstName());
+
+        Collection<Vet> vets = router.vets(() -> null);
+        assertEquals(2, vets.size());
+        assertEquals(2, vets.stream().filter(vet -> vet.getId() == 2).findFirst().get().getNrOfSpecialties());
+    }
+
+    @Test
+    public void rowsWithAPendingShadowWriteAreReadFromTheLegacyStore() throws Exception {
+        SqlDBPool writerPool = new SqlDBPool(DB_LOCATION, SQLitePragmaProfile.ONLINE, 1, 5000, 0);
+        ShadowWriteQueue shadowWrites = new ShadowWriteQueue(writerPool, 100, 10, ShadowWriteQueue.OverflowPolicy.BLOCK, 100);
+        router.setShadowWrites(shadowWrites);
+        SqlDB held = writerPool.borrow(); // the writer waits for this connection
+        shadowWrites.upsert(MigrationTestUtils.visit(3, "x-ray")); // a new visit of Leo, pet 1 of owner 1
+
+        Owner legacyOwner = new Owner();
+        assertSame(legacyOwner, router.owner(1, () -> legacyOwner));
+        Pet legacyPet = new Pet();
+        assertSame(legacyPet, router.pet(1, () -> legacyPet));
+        assertEquals("Basil", router.pet(2, () -> null).getName());
+
+        held.close();
+        assertTrue(shadowWrites.flush(5000));
+        Owner owner = router.owner(1, () -> {
+            throw new AssertionError("routed to the legacy store");
+        });
+        assertEquals(3, owner.getPet("Leo").getVisits().size());
+        shadowWrites.close();
+        writerPool.close();
+    }
+
+    @Test
+    public void rowsMissingFromSQLiteFallBackToTheLegacyStore() {
+        Owner legacy = new Owner();
+        assertSame(legacy, router.owner(42, () -> legacy));
+
+        router.setPercent(0);
+        Owner george = new Owner();
+        assertSame(george, router.owner(1, () -> george));
+    }
+}
@@ -0,0 +1,76 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.time.LocalDate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.owner.Pet;
+import org.springframework.samples.petclinic.owner.PetType;
+
+public class RowFingerprintTest {
+
+    private static final String DB_LOCATION = "fingerprint_testing.db";
+
+    private SqlDB db;
+    private TableDataGateway tdg;
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+        db = new SQLiteDB(DB_LOCATION);
+        tdg = new TableDataGateway(db);
+        db.execute("CREATE TABLE IF NOT EXISTS `owners` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `first_name` TEXT, `last_name` TEXT, `address` TEXT, `city` TEXT, `telephone` TEXT )");
+        db.execute("CREATE TABLE IF NOT EXISTS `pets` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `name` TEXT, `birth_date` TEXT, `type_id` INTEGER NOT NULL, `owner_id` INTEGER NOT NULL )");
+    }
+
+    @After
+    public void afterTest() {
+        db.close();
+        new File(DB_LOCATION).delete();
+    }
+
+    private Owner owner(String firstName, String lastName) {
+        Owner owner = new Owner();
+        owner.setId(7);
+        owner.setFirstName(firstName);
+        owner.setLastName(lastName);
+        owner.setAddress("110 W. Liberty St.");
+        owner.setCity("Madison");
+        owner.setTelephone("6085551023");
+        return owner;
+    }
+
+    @Test
+    public void entityAndMigratedRowHaveTheSameFingerprint() throws Exception {
+        Owner owner = owner("George", "Franklin");
+        PetType cat = new PetType();
+        cat.setId(1);
+        cat.setName("cat");
+        Pet pet = new Pet();
+        pet.setId(3);
+        pet.setName("Leo");
+        pet.setBirthDate(LocalDate.of(2010, 9, 7));
+        pet.setType(cat);
+        owner.addPet(pet);
+        tdg.insertOwner(owner);
+        tdg.insertPet(pet);
+
+        assertEquals(RowFingerprint.of(owner), RowFingerprint.owner(tdg.getById(7, "owners")));
+        assertEquals(RowFingerprint.of(pet), RowFingerprint.pet(tdg.getById(3, "pets")));
+
+        pet.setBirthDate(LocalDate.of(2010, 9, 8));
+        assertFalse(RowFingerprint.of(pet) == RowFingerprint.pet(tdg.getById(3, "pets")));
+    }
+
+    @Test
+    public void columnBoundariesArePartOfTheFingerprint() {
+        assertFalse(RowFingerprint.of(owner("ab", "c")) == RowFingerprint.of(owner("a", "bc")));
+        assertFalse(RowFingerprint.of(owner(null, "c")) == RowFingerprint.of(owner("", "c")));
+    }
+}
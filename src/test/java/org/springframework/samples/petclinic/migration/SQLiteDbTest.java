@@ -5,8 +5,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
 
+import java.io.File;
 import java.sql.ResultSet;
 
+import static org.junit.Assert.assertEquals;
+
 public class SQLiteDbTest {
 
     private SqlDB db;
@@ -46,5 +49,21 @@ public class SQLiteDbTest {
 
     }
 
+    @Test
+    public void pragmaProfileAppliedOnOpen() throws Exception {
+        SqlDB bulk = new SQLiteDB("pragma_testing.db", SQLitePragmaProfile.BULK_LOAD);
+        try {
+            assertEquals("wal", bulk.select("PRAGMA journal_mode").getString(1));
+            assertEquals(0, bulk.select("PRAGMA synchronous").getInt(1));
+            assertEquals(-262144, bulk.select("PRAGMA cache_size").getInt(1));
+            assertEquals(2, bulk.select("PRAGMA temp_store").getInt(1));
+        } finally {
+            bulk.close();
+            new File("pragma_testing.db").delete();
+            new File("pragma_testing.db-wal").delete();
+            new File("pragma_testing.db-shm").delete();
+        }
+    }
+
 
 }
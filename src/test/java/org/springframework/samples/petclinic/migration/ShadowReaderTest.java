@@ -0,0 +1,151 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.samples.petclinic.migration.MigrationTestUtils.deleteDatabase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.vet.Vet;
+
+public class ShadowReaderTest {
+
+    private static final String DB_LOCATION = "shadow_reads_testing.db";
+
+    private SqlDBPool pool;
+    private RangeSummaries summaries;
+    private ShadowReader shadowReader;
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+        pool = new SqlDBPool(DB_LOCATION, SQLitePragmaProfile.ONLINE, 2, 5000, 0);
+        SqlDB db = pool.borrow();
+        db.execute("CREATE TABLE IF NOT EXISTS `owners` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `first_name` TEXT, `last_name` TEXT, `address` TEXT, `city` TEXT, `telephone` TEXT )");
+        db.execute("CREATE TABLE IF NOT EXISTS `vets` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `first_name` TEXT, `last_name` TEXT )");
+        db.execute("INSERT INTO owners VALUES (1, 'George', 'Franklin', '110 W. Liberty St.', 'Madison', '6085551023')");
+        db.execute("INSERT INTO vets VALUES (1, 'James', 'Carter'), (2, 'Helen', 'Lary')");
+        db.close();
+        summaries = new RangeSummaries(8);
+        shadowReader = new ShadowReader(pool, 1, 1, 10);
+        shadowReader.setRangeSummaries(summaries);
+    }
+
+    @After
+    public void afterTest() {
+        shadowReader.close();
+        pool.close();
+        deleteDatabase(DB_LOCATION);
+    }
+
+    private Owner owner(int id, String city) {
+        Owner owner = new Owner();
+        owner.setId(id);
+        owner.setFirstName("George");
+        owner.setLastName("Franklin");
+        owner.setAddress("110 W. Liberty St.");
+        owner.setCity(city);
+        owner.setTelephone("6085551023");
+        return owner;
+    }
+
+    private String city(int id) throws Exception {
+        SqlDB db = pool.borrow();
+        try {
+            return db.select("SELECT city FROM owners WHERE id = " + id).getString("city");
+        } finally {
+            db.close();
+        }
+    }
+
+    private Vet vet(int id, String firstName, String lastName) {
+        Vet vet = new Vet();
+        vet.setId(id);
+        vet.setFirstName(firstName);
+        vet.setLastName(lastName);
+        return vet;
+    }
+
+    @Test
+    public void mismatchedColumnsAreCountedAndLeftToTheChecker() throws Exception {
+        shadowReader.owner(owner(1, "Sun Prairie"), 1000);
+        shadowReader.owner(owner(2, "Madison"), 1000);
+        assertTrue(shadowReader.awaitIdle(5000));
+        assertEquals(1L, (long) shadowReader.getMismatches().get("owners.city"));
+        assertEquals(1L, shadowReader.getStatus().get("missing"));
+        assertEquals("Madison", city(1));
+        assertEquals(1, summaries.getStatus().get("owners").get("dirtyRanges"));
+
+        shadowReader.owner(owner(1, "Sun Prairie"), 1000);
+        assertTrue(shadowReader.awaitIdle(5000));
+        assertEquals(2L, (long) shadowReader.getMismatches().get("owners.city"));
+        assertEquals(2L, shadowReader.getStatus().get("compared"));
+    }
+
+    @Test
+    public void rowsWithAPendingShadowWriteAreNotCompared() throws Exception {
+        SqlDBPool writerPool = new SqlDBPool(DB_LOCATION, SQLitePragmaProfile.ONLINE, 1, 5000, 0);
+        ShadowWriteQueue shadowWrites = new ShadowWriteQueue(writerPool, 100, 10, ShadowWriteQueue.OverflowPolicy.BLOCK, 100);
+        shadowReader.setShadowWrites(shadowWrites);
+        SqlDB held = writerPool.borrow(); // the writer waits for this connection
+        shadowWrites.upsert(owner(1, "Sun Prairie"));
+
+        shadowReader.owner(owner(1, "Sun Prairie"), 1000);
+        assertTrue(shadowReader.awaitIdle(5000));
+        assertEquals(0L, shadowReader.getStatus().get("compared"));
+        assertEquals(1L, shadowReader.getStatus().get("pendingWrites"));
+        assertTrue(shadowReader.getMismatches().isEmpty());
+
+        held.close();
+        assertTrue(shadowWrites.flush(5000));
+        shadowReader.owner(owner(1, "Sun Prairie"), 1000);
+        assertTrue(shadowReader.awaitIdle(5000));
+        assertEquals(1L, shadowReader.getStatus().get("compared"));
+        assertTrue(shadowReader.getMismatches().isEmpty());
+        shadowWrites.close();
+        writerPool.close();
+    }
+
+    @Test
+    public void listsAreComparedAgainstOneReadOfTheTable() throws Exception {
+        List<Vet> vets = new ArrayList<>();
+        vets.add(vet(1, "James", "Carter"));
+        vets.add(vet(2, "Helen", "Leary"));
+        shadowReader.vets(vets, 1000);
+        assertTrue(shadowReader.awaitIdle(5000));
+        assertEquals(1, shadowReader.getMismatches().size());
+        assertEquals(1L, (long) shadowReader.getMismatches().get("vets.last_name"));
+        assertEquals(1, summaries.getStatus().get("vets").get("dirtyRanges"));
+    }
+
+    @Test
+    public void bothStoresAreTimedAndCountersPublished() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        shadowReader.bindTo(registry);
+        shadowReader.owner(owner(1, "Sun Prairie"), 2_000_000);
+        assertTrue(shadowReader.awaitIdle(5000));
+
+        assertEquals(1, registry.get("migration.shadow-reads.latency").tags("table", "owners", "store", "legacy").timer().count());
+        assertEquals(1, registry.get("migration.shadow-reads.latency").tags("table", "owners", "store", "sqlite").timer().count());
+        assertEquals(1.0, registry.get("migration.shadow-reads.mismatches").tags("table", "owners", "column", "city").functionCounter().count(), 0);
+        assertEquals(2.0, (Double) shadowReader.getLatencies().get("owners").get("legacy").get("max"), 0.001);
+        assertNotNull(new ShadowReadEndpoint(shadowReader).shadowReads().get("sqliteToLegacyP95"));
+    }
+
+    @Test
+    public void readsThatAreNotSampledAreNotCompared() throws Exception {
+        ShadowReader unsampled = new ShadowReader(pool, 0, 1, 10);
+        unsampled.owner(owner(1, "Sun Prairie"), 1000);
+        assertTrue(unsampled.awaitIdle(5000));
+        assertEquals(0L, unsampled.getStatus().get("compared"));
+        unsampled.close();
+    }
+}
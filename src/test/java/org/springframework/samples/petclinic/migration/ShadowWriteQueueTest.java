@@ -0,0 +1,88 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.samples.petclinic.migration.MigrationTestUtils.deleteDatabase;
+import static org.springframework.samples.petclinic.migration.MigrationTestUtils.visit;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShadowWriteQueueTest {
+
+    private static final String DB_LOCATION = "shadow_writes_testing.db";
+
+    private SqlDBPool pool;
+    private ShadowWriteQueue shadowWrites;
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+        pool = new SqlDBPool(DB_LOCATION, SQLitePragmaProfile.ONLINE, 1, 5000, 0);
+        SqlDB db = pool.borrow();
+        db.execute("CREATE TABLE IF NOT EXISTS `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT )");
+        db.close();
+    }
+
+    @After
+    public void afterTest() {
+        shadowWrites.close();
+        pool.close();
+        deleteDatabase(DB_LOCATION);
+    }
+
+    private int count(String where) throws Exception {
+        return MigrationTestUtils.count(pool.borrow(), "visits", where);
+    }
+
+    @Test
+    public void latestStateOfEveryRowIsWritten() throws Exception {
+        shadowWrites = new ShadowWriteQueue(pool, 100, 10, ShadowWriteQueue.OverflowPolicy.BLOCK, 100);
+        shadowWrites.upsert(visit(1, "rabies shot"));
+        shadowWrites.upsert(visit(2, "x-ray"));
+        shadowWrites.upsert(visit(1, "neutered"));
+
+        assertTrue(shadowWrites.flush(5000));
+        assertEquals(2, count("1 = 1"));
+        assertEquals(1, count("id = 1 AND description = 'neutered'"));
+    }
+
+    @Test
+    public void dropNewestWhenTheWriterFallsBehind() throws Exception {
+        shadowWrites = new ShadowWriteQueue(pool, 2, 10, ShadowWriteQueue.OverflowPolicy.DROP_NEWEST, 0);
+        SqlDB held = pool.borrow(); // the writer waits for this connection
+        shadowWrites.upsert(visit(1, "rabies shot"));
+        while (shadowWrites.getQueued() > 0 || shadowWrites.getDepth() != 1) {
+            Thread.sleep(5); // until the writer has taken visit 1
+        }
+        shadowWrites.upsert(visit(2, "x-ray"));
+        shadowWrites.upsert(visit(3, "dental"));
+        shadowWrites.upsert(visit(4, "spayed"));
+        shadowWrites.upsert(visit(3, "checkup")); // coalesced, needs no room
+        assertEquals(1, shadowWrites.getDropped());
+        assertEquals(1, shadowWrites.getCoalesced());
+
+        held.close();
+        assertTrue(shadowWrites.flush(5000));
+        assertEquals(3, count("1 = 1"));
+        assertEquals(1, count("id = 3 AND description = 'checkup'"));
+    }
+
+    @Test
+    public void rolledBackRowsCountAsFailedNotWritten() throws Exception {
+        SqlDB db = pool.borrow();
+        db.execute("CREATE TRIGGER disk_full BEFORE INSERT ON visits BEGIN SELECT RAISE(ABORT, 'disk full'); END");
+        db.close();
+        shadowWrites = new ShadowWriteQueue(pool, 100, 10, ShadowWriteQueue.OverflowPolicy.BLOCK, 100);
+        shadowWrites.upsert(visit(12, "rabies shot"));
+        shadowWrites.upsert(visit(13, "x-ray"));
+
+        assertTrue(shadowWrites.flush(5000));
+        assertEquals(0, shadowWrites.getWritten());
+        assertEquals(2, shadowWrites.getFailed());
+        assertEquals(0, count("1 = 1"));
+    }
+}
@@ -0,0 +1,60 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.springframework.samples.petclinic.migration.MigrationTestUtils.visit;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.visit.Visit;
+
+public class SortMergeCheckerTest {
+
+    private static final String DB_LOCATION = "sort_merge_testing.db";
+
+    private SqlDB db;
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+        db = new SQLiteDB(DB_LOCATION);
+        db.execute("CREATE TABLE IF NOT EXISTS `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT )");
+    }
+
+    @After
+    public void afterTest() {
+        db.close();
+        new File(DB_LOCATION).delete();
+    }
+
+    @Test
+    public void findsMissingExtraAndChangedRowsInOnePass() {
+        db.execute("INSERT INTO visits (id, pet_id, visit_date, description) VALUES (1, 1, '2010-01-01', 'rabies shot')");
+        db.execute("INSERT INTO visits (id, pet_id, visit_date, description) VALUES (3, 1, '2010-01-01', 'neutered')");
+        db.execute("INSERT INTO visits (id, pet_id, visit_date, description) VALUES (5, 1, '2010-01-01', 'spayed')");
+        db.execute("INSERT INTO visits (id, pet_id, visit_date, description) VALUES (6, 1, '2010-01-01', 'checkup')");
+
+        SortMergeChecker<Visit> check = new SortMergeChecker<Visit>().merge(
+            Arrays.asList(visit(1, "rabies shot"), visit(2, "x-ray"), visit(3, "castrated"), visit(4, "dental"), visit(6, "checkup")).iterator(), RowFingerprint::of,
+            db.select("SELECT * FROM visits ORDER BY id"), RowFingerprint::visit);
+
+        assertEquals(Arrays.asList(2, 4), Arrays.asList(check.getMissing().get(0).getId(), check.getMissing().get(1).getId()));
+        assertEquals(Integer.valueOf(3), check.getChanged().get(0).getId());
+        assertEquals(Collections.singletonList(5), check.getExtra());
+        assertEquals(4, check.getInconsistencies());
+    }
+
+    @Test
+    public void missingTableCountsEveryLegacyRowAsMissing() {
+        SortMergeChecker<Visit> check = new SortMergeChecker<Visit>().merge(
+            Arrays.asList(visit(1, "rabies shot"), visit(2, "x-ray")).iterator(), RowFingerprint::of,
+            db.select("SELECT * FROM no_such_table ORDER BY id"), RowFingerprint::visit);
+
+        assertEquals(2, check.getMissing().size());
+        assertEquals(0, check.getExtra().size());
+    }
+}
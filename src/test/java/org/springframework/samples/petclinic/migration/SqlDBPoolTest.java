@@ -0,0 +1,113 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SqlDBPoolTest {
+
+    private static final String DB_LOCATION = "pool_testing.db";
+
+    private SqlDBPool pool;
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+        pool = new SqlDBPool(DB_LOCATION, SQLitePragmaProfile.ONLINE, 2, 50, 100);
+        SqlDB db = pool.borrow();
+        db.execute("CREATE TABLE IF NOT EXISTS `types` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `name` TEXT )");
+        db.close();
+    }
+
+    @After
+    public void afterTest() {
+        pool.close();
+        new File(DB_LOCATION).delete();
+        new File(DB_LOCATION + "-wal").delete();
+        new File(DB_LOCATION + "-shm").delete();
+    }
+
+    @Test
+    public void returnedConnectionsAreReused() {
+        for (int i = 0; i < 10; i++) {
+            SqlDB db = pool.borrow();
+            db.execute("INSERT INTO types (name) VALUES ('cat')");
+            db.close();
+        }
+        assertEquals(1, pool.getCreated());
+        assertEquals(0, pool.getActive());
+        assertEquals(1, pool.getIdle());
+    }
+
+    @Test
+    public void borrowTimesOutWhenThePoolIsExhausted() {
+        SqlDB first = pool.borrow();
+        SqlDB second = pool.borrow();
+        try {
+            pool.borrow();
+            fail("a third connection was handed out");
+        } catch (IllegalStateException e) {
+            assertEquals(1, pool.getTimeouts());
+        }
+        second.close();
+        pool.borrow().close();
+        first.close();
+        assertEquals(2, pool.getCreated());
+    }
+
+    @Test
+    public void returningAConnectionRollsBackItsOpenTransaction() throws Exception {
+        SqlDB db = pool.borrow();
+        db.setAutoCommit(false);
+        db.execute("INSERT INTO types (name) VALUES ('dog')");
+        db.close();
+        try {
+            db.execute("INSERT INTO types (name) VALUES ('dog')");
+            fail("a returned connection was still usable");
+        } catch (IllegalStateException expected) {
+        }
+
+        db = pool.borrow();
+        db.execute("INSERT INTO types (name) VALUES ('bird')");
+        assertEquals(1, db.select("SELECT COUNT(*) AS total FROM types").getInt("total"));
+        db.close();
+    }
+
+    @Test
+    public void concurrentRequestsEachGetTheirOwnGateway() throws Exception {
+        pool.close();
+        pool = new SqlDBPool(DB_LOCATION, SQLitePragmaProfile.ONLINE, 2, 5000, 0);
+        ExecutorService requests = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 200; i++) {
+            requests.execute(() -> {
+                try (TableDataGateway tdg = pool.openGateway()) {
+                    tdg.selectTable("types");
+                }
+            });
+        }
+        requests.shutdown();
+        requests.awaitTermination(30, TimeUnit.SECONDS);
+
+        assertEquals(0, pool.getActive());
+        assertTrue(pool.getCreated() <= 2);
+        assertEquals(0, pool.getTimeouts());
+    }
+
+    @Test
+    public void connectionsHeldPastTheThresholdAreReportedOnce() throws Exception {
+        SqlDB db = pool.borrow();
+        Thread.sleep(400);
+        assertEquals(1, pool.getLeaks());
+        db.close();
+        assertEquals(0, pool.getActive());
+    }
+}
@@ -0,0 +1,161 @@
+package org.springframework.samples.petclinic.migration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.owner.Owner;
+import org.springframework.samples.petclinic.visit.Visit;
+
+public class TableDataGatewayBatchTest {
+
+    private static final String DB_LOCATION = "batch_testing.db";
+
+    private SqlDB db;
+    private TableDataGateway tdg;
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+        db = new SQLiteDB(DB_LOCATION);
+        tdg = new TableDataGateway(db);
+        db.execute("CREATE TABLE IF NOT EXISTS `owners` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `first_name` TEXT, `last_name` TEXT, `address` TEXT, `city` TEXT, `telephone` TEXT )");
+        db.execute("CREATE TABLE IF NOT EXISTS `visits` ( `id` INTEGER PRIMARY KEY AUTOINCREMENT, `pet_id` INTEGER, `visit_date` TEXT, `description` TEXT )");
+        db.execute("CREATE TABLE IF NOT EXISTS `forklift_progress` ( `table_name` TEXT PRIMARY KEY, `last_id` INTEGER NOT NULL, `updated_at` TEXT )");
+    }
+
+    private Visit visit(int id) {
+        Visit visit = new Visit();
+        visit.setId(id);
+        visit.setPetId(1);
+        visit.setDate(LocalDate.of(2010, 1, 1));
+        visit.setDescription("visit " + id);
+        return visit;
+    }
+
+    @After
+    public void afterTest() {
+        db.close();
+        new File(DB_LOCATION).delete();
+    }
+
+    @Test
+    public void batchInsertCommitsEveryRow() throws Exception {
+        tdg.beginBatch(7);
+        for (int id = 1; id <= 50; id++) {
+            tdg.batchInsertVisit(visit(id));
+        }
+        tdg.endBatch();
+
+        ResultSet resultSet = db.select("SELECT COUNT(*) AS total, MAX(id) AS last FROM visits");
+        assertEquals(50, resultSet.getInt("total"));
+        assertEquals(50, resultSet.getInt("last"));
+    }
+
+    @Test
+    public void batchInsertBindsValuesWithoutQuoting() throws Exception {
+        Owner owner = new Owner();
+        owner.setId(3);
+        owner.setFirstName("Jean");
+        owner.setLastName("O'Brien");
+        owner.setAddress("1 Rue d'Arc");
+        owner.setCity("Montreal");
+        owner.setTelephone("5145550000");
+
+        tdg.beginBatch(TableDataGateway.DEFAULT_COMMIT_INTERVAL);
+        tdg.batchInsertOwner(owner);
+        tdg.endBatch();
+
+        ResultSet resultSet = tdg.getById(3, "owners");
+        assertEquals("O'Brien", resultSet.getString("last_name"));
+        assertEquals("1 Rue d'Arc", resultSet.getString("address"));
+    }
+
+    @Test
+    public void checkpointsAreCommittedWithTheirRows() throws Exception {
+        tdg.setCheckpointing(true);
+        tdg.beginBatch(4);
+        for (int id = 1; id <= 10; id++) {
+            tdg.batchInsertVisit(visit(id));
+            tdg.checkpoint("visits", id);
+        }
+        // the process dies before endBatch: rows 9 and 10 were never committed
+        db.close();
+
+        db = new SQLiteDB(DB_LOCATION);
+        tdg = new TableDataGateway(db);
+        assertEquals(Integer.valueOf(8), tdg.getCheckpoints().get("visits"));
+        assertEquals(8, db.select("SELECT COUNT(*) AS total FROM visits").getInt("total"));
+
+        // resuming replays from the checkpoint, skipping rows that are already there
+        tdg.setCheckpointing(true);
+        tdg.setIgnoreDuplicates(true);
+        tdg.beginBatch(4);
+        for (int id = 7; id <= 10; id++) {
+            tdg.batchInsertVisit(visit(id));
+            tdg.checkpoint("visits", id);
+        }
+        tdg.endBatch();
+        assertEquals(Integer.valueOf(10), tdg.getCheckpoints().get("visits"));
+        assertEquals(10, db.select("SELECT COUNT(*) AS total FROM visits").getInt("total"));
+    }
+
+    @Test
+    public void upsertRepairsChangedRowsAndDeletesExtraOnesInOneBatch() throws Exception {
+        tdg.beginBatch(TableDataGateway.DEFAULT_COMMIT_INTERVAL);
+        for (int id = 1; id <= 5; id++) {
+            tdg.batchInsertVisit(visit(id));
+        }
+        tdg.endBatch();
+
+        Visit changed = visit(2);
+        changed.setDescription("neutered");
+        tdg.beginBatch(2);
+        tdg.setUpsert(true);
+        tdg.batchDeleteById(4, "visits");
+        tdg.batchInsertVisit(changed);
+        tdg.batchInsertVisit(visit(6));
+        tdg.setUpsert(false);
+        tdg.endBatch();
+
+        assertEquals("neutered", tdg.getById(2, "visits").getString("description"));
+        assertEquals(5, db.select("SELECT COUNT(*) AS total FROM visits").getInt("total"));
+        assertEquals(0, db.select("SELECT COUNT(*) AS total FROM visits WHERE id = 4").getInt("total"));
+    }
+
+    @Test
+    public void failedBatchIsRolledBackWithItsCheckpoint() throws Exception {
+        tdg.setCheckpointing(true);
+        tdg.beginBatch(4);
+        for (int id = 1; id <= 4; id++) {
+            tdg.batchInsertVisit(visit(id));
+            tdg.checkpoint("visits", id);
+        }
+        tdg.batchInsertVisit(visit(5));
+        tdg.batchInsertVisit(visit(3)); // already committed: the primary key fails the batch
+        tdg.batchInsertVisit(visit(6));
+        tdg.checkpoint("visits", 6);
+        try {
+            tdg.endBatch();
+            fail("the failed batch was not thrown");
+        } catch (BatchWriteException e) {
+            // expected
+        }
+
+        assertEquals(Integer.valueOf(4), tdg.getCheckpoints().get("visits"));
+        assertEquals(4, db.select("SELECT COUNT(*) AS total FROM visits").getInt("total"));
+
+        // the gateway can go on after the rollback
+        tdg.beginBatch(4);
+        tdg.batchInsertVisit(visit(5));
+        tdg.checkpoint("visits", 5);
+        tdg.endBatch();
+        assertEquals(Integer.valueOf(5), tdg.getCheckpoints().get("visits"));
+    }
+}
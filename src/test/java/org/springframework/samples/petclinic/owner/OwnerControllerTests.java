@@ -2,7 +2,10 @@ package org.springframework.samples.petclinic.owner;
 
 import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.verify;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -15,6 +18,11 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.samples.petclinic.migration.SQLiteDB;
+import org.springframework.samples.petclinic.migration.ReadRouter;
+import org.springframework.samples.petclinic.migration.ShadowWriteQueue;
+import org.springframework.samples.petclinic.migration.SqlDBPool;
+import org.springframework.samples.petclinic.migration.TableDataGateway;
 import org.springframework.samples.petclinic.owner.Owner;
 import org.springframework.samples.petclinic.owner.OwnerController;
 import org.springframework.samples.petclinic.owner.OwnerRepository;
@@ -23,6 +31,8 @@ import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.util.function.Supplier;
+
 /**
  * Test class for {@link OwnerController}
  *
@@ -40,12 +50,23 @@ public class OwnerControllerTests {
     @MockBean
     private OwnerRepository owners;
 
+    @MockBean
+    private SqlDBPool shadowDb;
+
+    @MockBean
+    private ReadRouter readRouter;
+
+    @MockBean
+    private ShadowWriteQueue shadowWrites;
+
     private Owner george;
 
     @Before
     public void setup() {
-        FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION = false;
-        FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH = true;
+        given(this.shadowDb.openGateway()).willAnswer(invocation -> new TableDataGateway(new SQLiteDB()));
+        given(this.readRouter.owner(anyInt(), any())).willAnswer(invocation -> invocation.<Supplier<Owner>>getArgument(1).get());
+        FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.set(false);
+        FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH.set(true);
         
         george = new Owner();
         george.setId(TEST_OWNER_ID);
@@ -78,6 +99,20 @@ public class OwnerControllerTests {
             .andExpect(status().is3xxRedirection());
     }
 
+    @Test
+    public void testProcessCreationFormQueuesTheShadowWriteWhenReadsAreRouted() throws Exception {
+        given(this.readRouter.getPercent()).willReturn(1);
+        mockMvc.perform(post("/owners/new")
+            .param("firstName", "Joe")
+            .param("lastName", "Bloggs")
+            .param("address", "123 Caramel Street")
+            .param("city", "London")
+            .param("telephone", "01316761638")
+        )
+            .andExpect(status().is3xxRedirection());
+        verify(this.shadowWrites).upsert(any(Owner.class));
+    }
+
     @Test
     public void testProcessCreationFormHasErrors() throws Exception {
         mockMvc.perform(post("/owners/new")
@@ -165,6 +200,20 @@ public class OwnerControllerTests {
             .andExpect(view().name("redirect:/owners/{ownerId}"));
     }
 
+    @Test
+    public void testProcessUpdateOwnerFormQueuesTheShadowWriteWhenReadsAreRouted() throws Exception {
+        given(this.readRouter.getPercent()).willReturn(1);
+        mockMvc.perform(post("/owners/{ownerId}/edit", TEST_OWNER_ID)
+            .param("firstName", "Joe")
+            .param("lastName", "Bloggs")
+            .param("address", "123 Caramel Street")
+            .param("city", "London")
+            .param("telephone", "01616291589")
+        )
+            .andExpect(status().is3xxRedirection());
+        verify(this.shadowWrites).upsert(any(Owner.class));
+    }
+
     @Test
     public void testProcessUpdateOwnerFormHasErrors() throws Exception {
         mockMvc.perform(post("/owners/{ownerId}/edit", TEST_OWNER_ID)
@@ -196,12 +245,12 @@ public class OwnerControllerTests {
         for (int i=0; i<400; i++){
             if (Math.random() < 0.5) {
                 ABTestingLogger.log("Search by first name experiment A starts" ,"","a");
-                FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH = false;
+                FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH.set(false);
                 testExpAFirstNameSearchToggle();
             }
             else {
                 ABTestingLogger.log("Search by first name experiment B starts" ,"","b");
-                FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH = true;
+                FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH.set(true);
                 //usage of existing test for this feature
                 testProcessFindFormByFirstName();
             }
@@ -210,7 +259,7 @@ public class OwnerControllerTests {
 
     @Test
     public void testExpAFirstNameSearchToggle() throws Exception {
-        FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH = false;
+        FeatureToggleManager.DO_ENABLE_FIRST_NAME_SEARCH.set(false);
         //DO_ENABLE_FIRST_NAME_SEARCH toggle is set to false
         given(this.owners.findByFirstName(george.getFirstName())).willReturn(Lists.newArrayList(george));
         mockMvc.perform(get("/owners2")
@@ -225,19 +274,19 @@ public class OwnerControllerTests {
         ABTestingLogger.resetLogger();
 
         // Use Feature A
-        FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION = false;
+        FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.set(false);
 
         // Execute experiment A
         this.experimentA();
 
         // Use Feature B
-        FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION = true;
+        FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.set(true);
 
         // Execute experiment B
         this.experimentB();
 
         // Rollback Feature back to A
-        FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION = false;
+        FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.set(false);
 
         // Show that feature can be rolled back to experiment A
         this.experimentA();
@@ -246,11 +295,11 @@ public class OwnerControllerTests {
         for (int i=0; i<400; i++){
             if (Math.random() < 0.5) {
                 // Use Feature A
-                FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION = false;
+                FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.set(false);
                 experimentA();
             }
             else {
-                FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION = true;
+                FeatureToggleManager.DO_REDIRECT_TO_NEW_PET_PAGE_AFTER_OWNER_CREATION.set(true);
                 experimentB();
             }
         }
@@ -300,19 +349,19 @@ public class OwnerControllerTests {
         ABTestingLogger.resetLogger();
 
         // Use Feature A
-        FeatureToggleManager.DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS = false;
+        FeatureToggleManager.DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS.set(false);
 
         // Execute experiment A
         this.experimentA_Click_Find_Owner();
 
         // Use Feature B
-        FeatureToggleManager.DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS = true;
+        FeatureToggleManager.DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS.set(true);
          
         // Execute experiment B
         this.experimentB_Click_Find_Owner();
 
         // Rollback Feature back to A
-        FeatureToggleManager.DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS = false;
+        FeatureToggleManager.DO_REDIRECT_TO_VIEW_OWNERS_AFTER_CLICKING_FIND_OWNERS.set(false);
 
         // Show that feature can be rolled back to experiment A
         this.experimentA_Click_Find_Owner();
@@ -2,7 +2,10 @@ package org.springframework.samples.petclinic.owner;
 
 
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.verify;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.model;
@@ -16,6 +19,9 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.samples.petclinic.migration.ShadowWriteQueue;
+import org.springframework.samples.petclinic.migration.ReadRouter;
+import org.springframework.samples.petclinic.migration.ShadowReader;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.FilterType;
 import org.springframework.samples.petclinic.owner.Owner;
@@ -28,6 +34,9 @@ import org.springframework.samples.petclinic.owner.PetTypeFormatter;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.ResultActions;
+
+import java.util.function.Supplier;
+
 import org.springframework.samples.petclinic.toggles.ABTestingLogger;
 import org.springframework.samples.petclinic.toggles.FeatureToggleManager;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -57,10 +66,19 @@ public class PetControllerTests {
     @MockBean
     private OwnerRepository owners;
 
+    @MockBean
+    private ShadowReader shadowReader;
+
+    @MockBean
+    private ReadRouter readRouter;
+
+    @MockBean
+    private ShadowWriteQueue shadowWrites;
+
 
     @Before
     public void setup() {
-        FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION = false;
+        FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION.set(false);
 
         PetType cat = new PetType();
         cat.setId(3);
@@ -68,6 +86,7 @@ public class PetControllerTests {
         given(this.pets.findPetTypes()).willReturn(Lists.newArrayList(cat));
         given(this.owners.findById(TEST_OWNER_ID)).willReturn(new Owner());
         given(this.pets.findById(TEST_PET_ID)).willReturn(new Pet());
+        given(this.readRouter.pet(anyInt(), any())).willAnswer(invocation -> invocation.<Supplier<Pet>>getArgument(1).get());
 
     }
 
@@ -90,6 +109,18 @@ public class PetControllerTests {
             .andExpect(view().name("redirect:/owners/{ownerId}"));
     }
 
+    @Test
+    public void testProcessCreationFormQueuesTheShadowWriteWhenReadsAreRouted() throws Exception {
+        given(this.readRouter.getPercent()).willReturn(1);
+        mockMvc.perform(post("/owners/{ownerId}/pets/new", TEST_OWNER_ID)
+            .param("name", "Betty")
+            .param("type", "hamster")
+            .param("birthDate", "2015-02-12")
+        )
+            .andExpect(status().is3xxRedirection());
+        verify(this.shadowWrites).upsert(any(Pet.class));
+    }
+
     @Test
     public void testProcessCreationFormHasErrors() throws Exception {
         mockMvc.perform(post("/owners/{ownerId}/pets/new", TEST_OWNER_ID)
@@ -123,6 +154,18 @@ public class PetControllerTests {
             .andExpect(view().name("redirect:/owners/{ownerId}"));
     }
 
+    @Test
+    public void testProcessUpdateFormQueuesTheShadowWriteWhenReadsAreRouted() throws Exception {
+        given(this.readRouter.getPercent()).willReturn(1);
+        mockMvc.perform(post("/owners/{ownerId}/pets/{petId}/edit", TEST_OWNER_ID, TEST_PET_ID)
+            .param("name", "Betty")
+            .param("type", "hamster")
+            .param("birthDate", "2015-02-12")
+        )
+            .andExpect(status().is3xxRedirection());
+        verify(this.shadowWrites).upsert(any(Pet.class));
+    }
+
     @Test
     public void testProcessUpdateFormHasErrors() throws Exception {
         mockMvc.perform(post("/owners/{ownerId}/pets/{petId}/edit", TEST_OWNER_ID, TEST_PET_ID)
@@ -142,19 +185,19 @@ public class PetControllerTests {
         ABTestingLogger.resetLogger();
 
         // Use Feature A
-        FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION = false;
+        FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION.set(false);
 
         // Execute experiment A
         this.experimentA();
 
         // Use Feature B
-        FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION = true;
+        FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION.set(true);
 
         // Execute experiment B
         this.experimentB();
 
         // Rollback Feature back to A
-        FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION = false;
+        FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION.set(false);
 
         // Show that feature can be rolled back to experiment A
         this.experimentA();
@@ -162,10 +205,10 @@ public class PetControllerTests {
         for (int i = 0; i < 500; i++) {
             if (Math.random() < 0.5) {
                 // Use Feature A
-                FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION = false;
+                FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION.set(false);
                 experimentA();
             } else {
-                FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION = true;
+                FeatureToggleManager.DO_REDIRECT_TO_NEW_VISIT_PAGE_AFTER_PET_CREATION.set(true);
                 experimentB();
             }
         }
@@ -1,6 +1,9 @@
 package org.springframework.samples.petclinic.owner;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.verify;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.model;
@@ -13,13 +16,18 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.samples.petclinic.migration.ShadowWriteQueue;
+import org.springframework.samples.petclinic.migration.ReadRouter;
 import org.springframework.samples.petclinic.owner.Pet;
 import org.springframework.samples.petclinic.owner.PetRepository;
 import org.springframework.samples.petclinic.owner.VisitController;
+import org.springframework.samples.petclinic.visit.Visit;
 import org.springframework.samples.petclinic.visit.VisitRepository;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.util.function.Supplier;
+
 /**
  * Test class for {@link VisitController}
  *
@@ -40,9 +48,16 @@ public class VisitControllerTests {
     @MockBean
     private PetRepository pets;
 
+    @MockBean
+    private ReadRouter readRouter;
+
+    @MockBean
+    private ShadowWriteQueue shadowWrites;
+
     @Before
     public void init() {
         given(this.pets.findById(TEST_PET_ID)).willReturn(new Pet());
+        given(this.readRouter.pet(anyInt(), any())).willAnswer(invocation -> invocation.<Supplier<Pet>>getArgument(1).get());
     }
 
     @Test
@@ -62,6 +77,17 @@ public class VisitControllerTests {
             .andExpect(view().name("redirect:/owners/{ownerId}"));
     }
 
+    @Test
+    public void testProcessNewVisitFormQueuesTheShadowWriteWhenReadsAreRouted() throws Exception {
+        given(this.readRouter.getPercent()).willReturn(1);
+        mockMvc.perform(post("/owners/*/pets/{petId}/visits/new", TEST_PET_ID)
+            .param("name", "George")
+            .param("description", "Visit Description")
+        )
+            .andExpect(status().is3xxRedirection());
+        verify(this.shadowWrites).upsert(any(Visit.class));
+    }
+
     
     @Test
     public void testProcessNewVisitFormHasErrors() throws Exception {
@@ -0,0 +1,121 @@
+package org.springframework.samples.petclinic.toggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.minidev.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.migration.MigrationTestUtils;
+import org.springframework.samples.petclinic.migration.SQLiteDB;
+import org.springframework.samples.petclinic.migration.SqlDB;
+
+public class ABTestingLogWriterTest {
+
+    private static final String DB_LOCATION = "ab_testing_writer_testing.db";
+
+    private ABTestingLogWriter writer;
+    private ToggleSnapshot toggles = FeatureToggleManager.snapshot();
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+    }
+
+    @After
+    public void afterTest() {
+        writer.close();
+        new File(DB_LOCATION).delete();
+    }
+
+    private int count(String where) throws Exception {
+        return MigrationTestUtils.count(new SQLiteDB(DB_LOCATION), "logs", where);
+    }
+
+    private JSONObject log(String logName) {
+        JSONObject log = new JSONObject();
+        log.put("logName", logName);
+        return log;
+    }
+
+    @Test
+    public void logsAreWrittenInBatches() throws Exception {
+        writer = new ABTestingLogWriter(DB_LOCATION, 1024, 100, 60000);
+        for (int i = 0; i < 250; i++) {
+            assertTrue(writer.offer(log("Owner's log " + i), toggles));
+        }
+        assertTrue(writer.flush(5000));
+        assertEquals(250, writer.getWritten());
+        assertEquals(250, count("1 = 1"));
+        assertEquals(1, count("log = '{\"logName\":\"Owner''s log 7\"}'"));
+    }
+
+    @Test
+    public void logsAreWrittenAfterTheFlushInterval() throws Exception {
+        writer = new ABTestingLogWriter(DB_LOCATION, 1024, 100, 20);
+        writer.offer(log("one"), toggles);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getWritten() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, count("log = '{\"logName\":\"one\"}'"));
+    }
+
+    @Test
+    public void logsAreDroppedWhenTheBufferIsFull() throws Exception {
+        writer = new ABTestingLogWriter(DB_LOCATION, 4, 100, 60000);
+        SqlDB held = new SQLiteDB(DB_LOCATION);
+        held.execute(ABTestingLogWriter.CREATE_TABLE);
+        held.setAutoCommit(false);
+        held.execute("INSERT INTO logs ( log ) VALUES ( 'held' )"); // the writer waits for this lock
+        int offered = 0;
+        while (writer.getDropped() == 0) {
+            writer.offer(log("log " + offered++), toggles);
+        }
+        assertFalse(writer.offer(log("one more"), toggles));
+        held.commit();
+        held.close();
+        assertTrue(writer.flush(10000));
+        assertEquals(offered - 1, count("log LIKE '%log %'"));
+        assertEquals(2, writer.getDropped());
+    }
+
+    @Test
+    public void resetDropsTheLogs() throws Exception {
+        writer = new ABTestingLogWriter(DB_LOCATION, 1024, 100, 60000);
+        writer.offer(log("before"), toggles);
+        writer.reset();
+        writer.offer(log("after"), toggles);
+        assertTrue(writer.flush(5000));
+        assertEquals(1, count("1 = 1"));
+        assertEquals(1, count("log LIKE '%after%'"));
+    }
+
+    @Test
+    public void eachSnapshotIsWrittenOnce() throws Exception {
+        writer = new ABTestingLogWriter(DB_LOCATION, 1024, 2, 60000);
+        Map<String, Boolean> values = new LinkedHashMap<>();
+        values.put("DO_SHADOW_READ", true);
+        ToggleSnapshot next = new ToggleSnapshot(toggles.getVersion() + 1, values);
+        for (int i = 0; i < 5; i++) {
+            writer.offer(log("before"), toggles);
+            writer.offer(log("after"), next);
+        }
+        assertTrue(writer.flush(5000));
+        SqlDB db = new SQLiteDB(DB_LOCATION);
+        ResultSet rows = db.select("SELECT version, toggles FROM toggle_snapshots ORDER BY version");
+        assertTrue(rows.next());
+        assertEquals(toggles.getVersion(), rows.getLong("version"));
+        assertTrue(rows.next());
+        assertEquals("{\"DO_SHADOW_READ\":true}", rows.getString("toggles"));
+        assertFalse(rows.next());
+        db.close();
+    }
+}
@@ -0,0 +1,101 @@
+package org.springframework.samples.petclinic.toggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.migration.MigrationTestUtils;
+import org.springframework.samples.petclinic.migration.SQLiteDB;
+
+public class ABTestingRollupsTest {
+
+    private static final String DB_LOCATION = "ab_testing_rollups_testing.db";
+    private static final List<String> STEPS = Arrays.asList("Owner being created", "Owner created", "Pet created");
+    private static final long MINUTE = 60000;
+
+    private ABTestingRollups rollups;
+
+    @Before
+    public void setup() {
+        new File(DB_LOCATION).delete();
+        rollups = new ABTestingRollups(DB_LOCATION, MINUTE, 0);
+    }
+
+    @After
+    public void afterTest() {
+        rollups.close();
+        new File(DB_LOCATION).delete();
+    }
+
+    private long rows(String where) throws Exception {
+        return MigrationTestUtils.count(new SQLiteDB(DB_LOCATION), "rollups", where);
+    }
+
+    @Test
+    public void countsOfConcurrentLogsAreFlushedOnce() throws Exception {
+        long now = System.currentTimeMillis();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    rollups.record("Owner created", "a", now);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        rollups.flush(); // while the threads are counting
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(rollups.flush());
+        assertTrue(rollups.flush());
+
+        List<Map<String, Object>> funnel = rollups.funnel(STEPS, 0).get("a");
+        assertEquals(4000L, funnel.get(1).get("count"));
+        assertEquals(1, rows("1 = 1"));
+    }
+
+    @Test
+    public void funnelsArePerVariant() throws Exception {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            rollups.record("Owner being created", "a", now);
+            rollups.record("Owner being created", "b", now - 5 * MINUTE);
+        }
+        for (int i = 0; i < 5; i++) {
+            rollups.record("Owner created", "a", now);
+            rollups.record("Owner created", "b", now);
+        }
+        rollups.record("Pet created", "b", now);
+        rollups.record("Owner search by pet name enabled", "b", now);
+
+        Map<String, List<Map<String, Object>>> funnel = rollups.funnel(STEPS, 0);
+        assertEquals(0.5, funnel.get("a").get(1).get("conversion"));
+        assertEquals(0.0, funnel.get("a").get(2).get("conversion"));
+        assertEquals(0.1, funnel.get("b").get(2).get("conversion"));
+        assertEquals(2, rows("log_name = 'Owner being created'")); // the b logs are in an older bucket
+
+        Map<String, List<Map<String, Object>>> lastMinute = rollups.funnel(STEPS, now - MINUTE);
+        assertEquals(0L, lastMinute.get("b").get(0).get("count"));
+        assertNull(lastMinute.get("b").get(1).get("conversion"));
+    }
+
+    @Test
+    public void resetForgetsTheCounts() {
+        rollups.record("Owner created", "a", System.currentTimeMillis());
+        rollups.flush();
+        rollups.record("Owner created", "a", System.currentTimeMillis());
+        rollups.reset();
+        assertTrue(rollups.funnel(STEPS, 0).isEmpty());
+    }
+}
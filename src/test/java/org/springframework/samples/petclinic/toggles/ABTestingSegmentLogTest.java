@@ -0,0 +1,170 @@
+package org.springframework.samples.petclinic.toggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import net.minidev.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.samples.petclinic.migration.SQLiteDB;
+import org.springframework.samples.petclinic.migration.SqlDB;
+
+public class ABTestingSegmentLogTest {
+
+    private static final File DIRECTORY = new File("ab_testing_segments_testing");
+    private static final String DB_LOCATION = "ab_testing_segments_testing.db";
+
+    private ABTestingSegmentLog segments;
+    private ToggleSnapshot toggles = FeatureToggleManager.snapshot();
+
+    @Before
+    public void setup() {
+        clean();
+    }
+
+    @After
+    public void afterTest() {
+        if (segments != null) segments.close();
+        clean();
+    }
+
+    private void clean() {
+        File[] files = DIRECTORY.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        DIRECTORY.delete();
+        new File(DB_LOCATION).delete();
+    }
+
+    private JSONObject log(String logName, String variant) {
+        JSONObject log = new JSONObject();
+        log.put("logName", logName);
+        log.put("object", "Pet 'Leo'");
+        log.put("time", "2019-04-07 22:19:01");
+        log.put("a_or_b", variant);
+        log.put("toggles_version", toggles.getVersion());
+        return log;
+    }
+
+    @Test
+    public void recordsAreDecodedAsTheyWereLogged() throws Exception {
+        JSONObject log = log("Owner created", "a");
+        assertEquals(log.toString(), ABTestingSegmentLog.decode(ABTestingSegmentLog.encode(log)).toString());
+        JSONObject snapshot = ABTestingSegmentLog.decode(ABTestingSegmentLog.encode(toggles));
+        assertEquals(toggles.getVersion(), snapshot.get("toggles_version"));
+        assertEquals(toggles.toJSONString(), ((JSONObject) snapshot.get("toggles")).toJSONString());
+    }
+
+    @Test
+    public void logsAreReportedAndReplayedIntoSQLite() throws Exception {
+        segments = new ABTestingSegmentLog(DIRECTORY, 1024, 64, 0); // a few records per segment, so they rotate
+        for (int i = 0; i < 20; i++) {
+            assertTrue(segments.offer(log("Owner created", i % 4 == 0 ? "a" : "b"), toggles));
+        }
+        segments.offer(log("Pet created", "b"), toggles);
+        assertTrue(segments.getSegmentCount() > 1);
+
+        Map<String, Map<String, Long>> report = segments.report();
+        assertEquals(Long.valueOf(5), report.get("Owner created").get("a"));
+        assertEquals(Long.valueOf(15), report.get("Owner created").get("b"));
+        assertEquals(Long.valueOf(1), report.get("Pet created").get("b"));
+
+        assertEquals(21, segments.replayInto(DB_LOCATION, 4));
+        assertEquals(1, segments.getSegmentCount());
+        assertTrue(segments.report().isEmpty());
+        SqlDB db = new SQLiteDB(DB_LOCATION);
+        ResultSet rows = db.select("SELECT log FROM logs ORDER BY id");
+        assertTrue(rows.next());
+        assertEquals(log("Owner created", "a").toString(), rows.getString("log"));
+        ResultSet snapshots = db.select("SELECT toggles FROM toggle_snapshots WHERE version = " + toggles.getVersion());
+        assertTrue(snapshots.next());
+        assertEquals(toggles.toJSONString(), snapshots.getString("toggles"));
+        db.close();
+    }
+
+    @Test
+    public void aTornTailIsCutOffOnReopen() throws Exception {
+        segments = new ABTestingSegmentLog(DIRECTORY, 4096, 4, 0);
+        segments.offer(log("Owner created", "a"), toggles);
+        segments.offer(log("Pet created", "a"), toggles);
+        long end = segments.getPendingBytes();
+        segments.close();
+        try (RandomAccessFile file = new RandomAccessFile(new File(DIRECTORY, String.format("%020d.seg", 0)), "rw")) {
+            file.seek(end - 1);
+            file.write(0x7f); // the last record is torn
+        }
+
+        segments = new ABTestingSegmentLog(DIRECTORY, 4096, 4, 0);
+        List<JSONObject> replayed = new ArrayList<>();
+        assertEquals(1, segments.replay(10, replayed::addAll));
+        assertEquals(Long.valueOf(toggles.getVersion()), replayed.get(0).get("toggles_version")); // the snapshot
+        assertEquals("Owner created", replayed.get(1).get("logName"));
+        assertTrue(segments.offer(log("Visit created", "b"), toggles));
+        assertEquals(1, segments.replay(10, replayed::addAll));
+        assertFalse(segments.report().containsKey("Pet created"));
+    }
+
+    @Test
+    public void theSnapshotComesBeforeEveryLogUnderItWhenThreadsRace() throws Exception {
+        segments = new ABTestingSegmentLog(DIRECTORY, 1 << 20, 4, 0);
+        for (int round = 1; round <= 20; round++) {
+            toggles = new ToggleSnapshot(round, Collections.singletonMap("DO_SHADOW_READ", round % 2 == 0));
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                JSONObject log = log("Owner created", "a");
+                ToggleSnapshot snapshot = toggles;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    segments.offer(log, snapshot);
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        Set<Object> stored = new HashSet<>();
+        List<JSONObject> replayed = new ArrayList<>();
+        assertEquals(160, segments.replay(1000, replayed::addAll));
+        for (JSONObject record : replayed) {
+            if (record.containsKey("toggles")) stored.add(record.get("toggles_version"));
+            else assertTrue(stored.contains(record.get("toggles_version")));
+        }
+        assertEquals(20, stored.size());
+    }
+
+    @Test
+    public void logsAreDroppedWhenEverySegmentIsInUse() throws Exception {
+        segments = new ABTestingSegmentLog(DIRECTORY, 1024, 1, 0);
+        int appended = 0;
+        while (segments.offer(log("Owner created", "a"), toggles)) {
+            appended++;
+        }
+        assertEquals(1, segments.getDropped());
+        segments.reset();
+        assertTrue(segments.report().isEmpty());
+        assertTrue(appended > 0);
+    }
+}
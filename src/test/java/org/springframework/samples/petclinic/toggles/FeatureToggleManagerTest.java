@@ -0,0 +1,67 @@
+package org.springframework.samples.petclinic.toggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class FeatureToggleManagerTest {
+
+    @Test
+    public void snapshotIsRebuiltOnlyWhenAToggleChanges() throws Exception {
+        ToggleSnapshot before = FeatureToggleManager.snapshot();
+        assertSame(before, FeatureToggleManager.snapshot());
+        assertEquals(FeatureToggleManager.DO_SHADOW_READ.isEnabled(), before.getValues().get("DO_SHADOW_READ"));
+
+        FeatureToggleManager.toggleByName("DO_SHADOW_READ");
+        try {
+            ToggleSnapshot after = FeatureToggleManager.snapshot();
+            assertTrue(after.getVersion() > before.getVersion());
+            assertEquals(!before.getValues().get("DO_SHADOW_READ"), after.getValues().get("DO_SHADOW_READ"));
+            assertSame(after, FeatureToggleManager.snapshot());
+        } finally {
+            FeatureToggleManager.toggleByName("DO_SHADOW_READ");
+        }
+        assertEquals(before.getValues(), FeatureToggleManager.snapshot().getValues());
+    }
+
+    @Test
+    public void settingATogglesValueAgainKeepsTheSnapshot() {
+        ToggleSnapshot before = FeatureToggleManager.snapshot();
+        FeatureToggleManager.DO_SHADOW_READ.set(FeatureToggleManager.DO_SHADOW_READ.isEnabled());
+        assertSame(before, FeatureToggleManager.snapshot());
+    }
+
+    @Test
+    public void togglesAreLookedUpByName() {
+        List<Toggle> toggles = FeatureToggleManager.getToggles();
+        assertEquals("DO_DROP_TABLES_UPON_FORKLIFT", toggles.get(0).name);
+        assertEquals(toggles.size(), FeatureToggleManager.snapshot().getValues().size());
+        assertSame(FeatureToggleManager.DO_ENABLE_PET_NAME_SEARCH, FeatureToggleManager.get("DO_ENABLE_PET_NAME_SEARCH"));
+        assertNull(FeatureToggleManager.get("DO_NOTHING"));
+        assertFalse(FeatureToggleManager.toggleByName("DO_NOTHING"));
+    }
+
+    @Test
+    public void concurrentFlipsAreNotLost() throws Exception {
+        boolean before = FeatureToggleManager.DO_ENABLE_PET_NAME_SEARCH.isEnabled();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1001; i++) {
+                    FeatureToggleManager.toggleByName("DO_ENABLE_PET_NAME_SEARCH");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(before, FeatureToggleManager.DO_ENABLE_PET_NAME_SEARCH.isEnabled()); // an even number of flips
+    }
+}
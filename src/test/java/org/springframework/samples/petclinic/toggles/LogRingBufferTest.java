@@ -0,0 +1,64 @@
+package org.springframework.samples.petclinic.toggles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LogRingBufferTest {
+
+    @Test
+    public void offersFailOnceTheBufferIsFull() {
+        LogRingBuffer<Integer> buffer = new LogRingBuffer<>(3);
+        assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void everyElementOfConcurrentProducersIsPolledOnce() throws Exception {
+        LogRingBuffer<Integer> buffer = new LogRingBuffer<>(64);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            int first = p * 10000;
+            Thread producer = new Thread(() -> {
+                for (int i = first; i < first + 10000; i++) {
+                    while (!buffer.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        Set<Integer> polled = new HashSet<>();
+        while (polled.size() < 40000) {
+            Integer element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertTrue(polled.add(element));
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertNull(buffer.poll());
+    }
+}
@@ -1,5 +1,6 @@
 package org.springframework.samples.petclinic.vet;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.BDDMockito.given;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
@@ -15,11 +16,15 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.samples.petclinic.migration.ReadRouter;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.ResultActions;
 
+import java.util.Collection;
+import java.util.function.Supplier;
+
 /**
  * Test class for the {@link VetController}
  */
@@ -33,6 +38,9 @@ public class VetControllerTests {
     @MockBean
     private VetRepository vets;
 
+    @MockBean
+    private ReadRouter readRouter;
+
     @Before
     public void setup() {
         Vet james = new Vet();
@@ -48,6 +56,7 @@ public class VetControllerTests {
         radiology.setName("radiology");
         helen.addSpecialty(radiology);
         given(this.vets.findAll()).willReturn(Lists.newArrayList(james, helen));
+        given(this.readRouter.vets(any())).willAnswer(invocation -> invocation.<Supplier<Collection<Vet>>>getArgument(0).get());
     }
 
     @Test